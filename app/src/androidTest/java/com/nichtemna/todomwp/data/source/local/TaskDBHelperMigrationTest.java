@@ -0,0 +1,109 @@
+package com.nichtemna.todomwp.data.source.local;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the {@link TaskDBHelper} migrations, starting from a database in the version 1
+ * schema.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskDBHelperMigrationTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        TaskLocalDataSource.clearInstance();
+        context.deleteDatabase(TaskDBHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        context.deleteDatabase(TaskDBHelper.DATABASE_NAME);
+    }
+
+    @Test
+    public void migrations_keepTheLastRowWritten_andCreateTheIndexesAndTables() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        createVersion1(db);
+
+        TaskDBHelper.MIGRATION_1_2.migrate(db);
+        TaskDBHelper.MIGRATION_2_3.migrate(db);
+        TaskDBHelper.MIGRATION_3_4.migrate(db);
+
+        assertVersion4(db);
+        db.close();
+    }
+
+    @Test
+    public void openingAVersion1Database_upgradesItToTheCurrentVersion() {
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(
+                context.getDatabasePath(TaskDBHelper.DATABASE_NAME), null);
+        createVersion1(v1);
+        v1.setVersion(1);
+        v1.close();
+
+        TaskDBHelper helper = new TaskDBHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+
+        assertEquals(TaskDBHelper.DATABASE_VERSION, db.getVersion());
+        assertVersion4(db);
+        helper.close();
+    }
+
+    /**
+     * Creates the version 1 schema, with the rows it could hold: an edit inserted a second row
+     * with the same entry id, and completed could be null.
+     */
+    private static void createVersion1(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE task (_id TEXT PRIMARY KEY,entryId TEXT,title TEXT,"
+                + "description TEXT,completed INTEGER )");
+        db.execSQL("INSERT INTO task (entryId,title,description,completed)"
+                + " VALUES ('a','A','',0)");
+        db.execSQL("INSERT INTO task (entryId,title,description,completed)"
+                + " VALUES ('b','B','',NULL)");
+        db.execSQL("INSERT INTO task (entryId,title,description,completed)"
+                + " VALUES ('a','A2','',1)");
+        db.execSQL("INSERT INTO task (entryId,title,description,completed)"
+                + " VALUES (NULL,'Orphan','',0)");
+    }
+
+    private static void assertVersion4(SQLiteDatabase db) {
+        assertEquals(2, count(db, "SELECT * FROM task"));
+        assertEquals(1, count(db, "SELECT * FROM task WHERE entryId = 'a' AND title = 'A2'"
+                + " AND completed = 1"));
+        assertEquals(1, count(db, "SELECT * FROM task WHERE entryId = 'b' AND completed = 0"));
+        assertTrue(hasSchemaObject(db, "index", "index_task_entryId"));
+        assertTrue(hasSchemaObject(db, "index", "index_task_completed"));
+        assertTrue(hasSchemaObject(db, "index", "index_outbox_entryId"));
+        assertTrue(hasSchemaObject(db, "table", "outbox"));
+        assertTrue(hasSchemaObject(db, "table", "sync_state"));
+    }
+
+    private static boolean hasSchemaObject(SQLiteDatabase db, String type, String name) {
+        return count(db, "SELECT * FROM sqlite_master WHERE type = '" + type
+                + "' AND name = '" + name + "'") == 1;
+    }
+
+    private static int count(SQLiteDatabase db, String query) {
+        Cursor c = db.rawQuery(query, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
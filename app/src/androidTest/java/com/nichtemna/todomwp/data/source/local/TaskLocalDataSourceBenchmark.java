@@ -0,0 +1,174 @@
+package com.nichtemna.todomwp.data.source.local;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.local.TaskPersistenceContract.TaskEntry;
+import com.nichtemna.todomwp.util.AppExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Times single-task writes with the connection opened and closed around every call, as
+ * {@link TaskLocalDataSource} used to do, against its shared WAL connection and compiled
+ * statements.
+ * <p>
+ * The median latency of each operation is reported as instrumentation status, e.g. with
+ * {@code adb shell am instrument -r -w -e class <this class> <runner>}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskLocalDataSourceBenchmark {
+
+    private static final String OPEN_CLOSE_DATABASE_NAME = "TasksOpenCloseBenchmark.db";
+
+    private static final int WARMUP_COUNT = 20;
+
+    private static final int RUN_COUNT = 200;
+
+    private static final Executor INSTANT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private Context context;
+
+    private TaskLocalDataSource localDataSource;
+
+    private OpenCloseHelper openCloseHelper;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        TaskLocalDataSource.clearInstance();
+        context.deleteDatabase(TaskDBHelper.DATABASE_NAME);
+        context.deleteDatabase(OPEN_CLOSE_DATABASE_NAME);
+        localDataSource = TaskLocalDataSource.getInstance(
+                new AppExecutors(INSTANT, INSTANT, INSTANT, INSTANT), context);
+        openCloseHelper = new OpenCloseHelper(context);
+    }
+
+    @After
+    public void tearDown() {
+        TaskLocalDataSource.clearInstance();
+        context.deleteDatabase(TaskDBHelper.DATABASE_NAME);
+        context.deleteDatabase(OPEN_CLOSE_DATABASE_NAME);
+    }
+
+    @Test
+    public void singleTaskWrites_openCloseVersusSharedConnection() {
+        Bundle results = new Bundle();
+        results.putLong("openClose_save_us", median(new Operation() {
+            @Override
+            public void run(Task task) {
+                SQLiteDatabase db = openCloseHelper.getWritableDatabase();
+                ContentValues values = new ContentValues();
+                values.put(TaskEntry.COLUMN_NAME_ENTRY_ID, task.getId());
+                values.put(TaskEntry.COLUMN_NAME_TITLE, task.getTitle());
+                values.put(TaskEntry.COLUMN_NAME_DESCRIPTION, task.getDescription());
+                values.put(TaskEntry.COLUMN_NAME_COMPLETED, task.isCompleted() ? 1 : 0);
+                db.insert(TaskEntry.TABLE_NAME, null, values);
+                db.close();
+            }
+        }));
+        results.putLong("openClose_complete_us", median(new Operation() {
+            @Override
+            public void run(Task task) {
+                SQLiteDatabase db = openCloseHelper.getWritableDatabase();
+                ContentValues values = new ContentValues();
+                values.put(TaskEntry.COLUMN_NAME_COMPLETED, 1);
+                db.update(TaskEntry.TABLE_NAME, values, TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?",
+                        new String[]{task.getId()});
+                db.close();
+            }
+        }));
+        results.putLong("openClose_delete_us", median(new Operation() {
+            @Override
+            public void run(Task task) {
+                SQLiteDatabase db = openCloseHelper.getWritableDatabase();
+                db.delete(TaskEntry.TABLE_NAME, TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?",
+                        new String[]{task.getId()});
+                db.close();
+            }
+        }));
+        results.putLong("shared_save_us", median(new Operation() {
+            @Override
+            public void run(Task task) {
+                localDataSource.saveTask(task);
+            }
+        }));
+        results.putLong("shared_complete_us", median(new Operation() {
+            @Override
+            public void run(Task task) {
+                localDataSource.completeTask(task);
+            }
+        }));
+        results.putLong("shared_delete_us", median(new Operation() {
+            @Override
+            public void run(Task task) {
+                localDataSource.deleteTask(task.getId());
+            }
+        }));
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    /**
+     * Runs {@code operation} once per task, on a distinct task each time, and returns the median
+     * latency in microseconds, warm-up runs excluded.
+     */
+    private static long median(Operation operation) {
+        long[] latencies = new long[RUN_COUNT];
+        for (int i = 0; i < WARMUP_COUNT + RUN_COUNT; i++) {
+            Task task = new Task("Title " + i, "Description " + i, "id" + i, false);
+            long startNanos = System.nanoTime();
+            operation.run(task);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            if (i >= WARMUP_COUNT) {
+                latencies[i - WARMUP_COUNT] = elapsedNanos / 1000;
+            }
+        }
+        Arrays.sort(latencies);
+        return latencies[RUN_COUNT / 2];
+    }
+
+    private interface Operation {
+
+        void run(Task task);
+    }
+
+    /**
+     * The same schema in a database of its own, opened without write-ahead logging like the
+     * helper used to be.
+     */
+    private static final class OpenCloseHelper extends SQLiteOpenHelper {
+
+        private final TaskDBHelper schema;
+
+        OpenCloseHelper(Context context) {
+            super(context, OPEN_CLOSE_DATABASE_NAME, null, TaskDBHelper.DATABASE_VERSION);
+            schema = new TaskDBHelper(context);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            schema.onCreate(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+}
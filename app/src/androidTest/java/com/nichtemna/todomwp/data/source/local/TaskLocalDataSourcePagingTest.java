@@ -0,0 +1,147 @@
+package com.nichtemna.todomwp.data.source.local;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskPage;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.AppExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Integration tests of the keyset paging of {@link TaskLocalDataSource} against the database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskLocalDataSourcePagingTest {
+
+    private static final Executor INSTANT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private TaskLocalDataSource localDataSource;
+
+    @Before
+    public void setUp() {
+        TaskLocalDataSource.clearInstance();
+        localDataSource = TaskLocalDataSource.getInstance(
+                new AppExecutors(INSTANT, INSTANT, INSTANT, INSTANT),
+                InstrumentationRegistry.getTargetContext());
+        localDataSource.deleteAllTasks();
+    }
+
+    @After
+    public void tearDown() {
+        localDataSource.deleteAllTasks();
+        TaskLocalDataSource.clearInstance();
+    }
+
+    @Test
+    public void exactlyPageSizeTasks_fitInOnePageWithoutNextKey() {
+        saveTasks(3);
+
+        TaskPage page = getPage(TasksFilterType.ALL_TASKS, 3, null);
+
+        assertEquals(Arrays.asList("id0", "id1", "id2"), getIds(page));
+        assertNull(page.getNextPageKey());
+    }
+
+    @Test
+    public void oneTaskMoreThanPageSize_endsUpAloneOnTheLastPage() {
+        saveTasks(4);
+
+        TaskPage first = getPage(TasksFilterType.ALL_TASKS, 3, null);
+        TaskPage last = getPage(TasksFilterType.ALL_TASKS, 3, first.getNextPageKey());
+
+        assertEquals(Arrays.asList("id0", "id1", "id2"), getIds(first));
+        assertNotNull(first.getNextPageKey());
+        assertEquals(Arrays.asList("id3"), getIds(last));
+        assertNull(last.getNextPageKey());
+    }
+
+    @Test
+    public void filteredPages_skipTheOtherTasks() {
+        // Even ids are completed, odd ids are active.
+        saveTasks(10);
+
+        assertEquals(Arrays.asList("id1", "id3", "id5", "id7", "id9"),
+                getAllIds(TasksFilterType.ACTIVE_TASKS, 2));
+        assertEquals(Arrays.asList("id0", "id2", "id4", "id6", "id8"),
+                getAllIds(TasksFilterType.COMPLETED_TASKS, 2));
+    }
+
+    @Test
+    public void deletingTheRowOfThePageKey_stillContinuesAfterIt() {
+        saveTasks(6);
+        TaskPage first = getPage(TasksFilterType.ALL_TASKS, 3, null);
+
+        localDataSource.deleteTask("id2");
+        TaskPage second = getPage(TasksFilterType.ALL_TASKS, 3, first.getNextPageKey());
+
+        assertEquals(Arrays.asList("id3", "id4", "id5"), getIds(second));
+        assertNull(second.getNextPageKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignPageKey_isRejected() {
+        localDataSource.getTaskPage(TasksFilterType.ALL_TASKS, 3, "cursor-of-the-server",
+                mock(TaskDataSource.LoadTaskPageCallback.class));
+    }
+
+    /**
+     * Saves tasks "id0" to "id(count - 1)" one at a time, completing the even ones.
+     */
+    private void saveTasks(int count) {
+        for (int i = 0; i < count; i++) {
+            localDataSource.saveTask(new Task("Task " + i, "", "id" + i, i % 2 == 0));
+        }
+    }
+
+    private List<String> getAllIds(TasksFilterType filtering, int pageSize) {
+        List<String> ids = new ArrayList<>();
+        String pageKey = null;
+        do {
+            TaskPage page = getPage(filtering, pageSize, pageKey);
+            ids.addAll(getIds(page));
+            pageKey = page.getNextPageKey();
+        } while (pageKey != null);
+        return ids;
+    }
+
+    private TaskPage getPage(TasksFilterType filtering, int pageSize, String pageKey) {
+        TaskDataSource.LoadTaskPageCallback callback =
+                mock(TaskDataSource.LoadTaskPageCallback.class);
+        localDataSource.getTaskPage(filtering, pageSize, pageKey, callback);
+        ArgumentCaptor<TaskPage> pageCaptor = ArgumentCaptor.forClass(TaskPage.class);
+        verify(callback).onTaskPageLoaded(pageCaptor.capture());
+        return pageCaptor.getValue();
+    }
+
+    private static List<String> getIds(TaskPage page) {
+        List<String> ids = new ArrayList<>();
+        for (Task task : page.getTasks()) {
+            ids.add(task.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,140 @@
+package com.nichtemna.todomwp.data.source.local;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.AppExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Integration tests of the batch operations of {@link TaskLocalDataSource} against the database.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskLocalDataSourceTest {
+
+    private static final Executor INSTANT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final Task TASK_A = new Task("A", "", "a", false);
+
+    private static final Task TASK_B = new Task("B", "", "b", false);
+
+    private static final Task TASK_C = new Task("C", "", "c", true);
+
+    @Captor
+    private ArgumentCaptor<List<Task>> tasksCaptor;
+
+    private TaskLocalDataSource localDataSource;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        TaskLocalDataSource.clearInstance();
+        localDataSource = TaskLocalDataSource.getInstance(
+                new AppExecutors(INSTANT, INSTANT, INSTANT, INSTANT),
+                InstrumentationRegistry.getTargetContext());
+        localDataSource.deleteAllTasks();
+        localDataSource.saveTasks(Arrays.asList(TASK_A, TASK_B, TASK_C));
+    }
+
+    @After
+    public void tearDown() {
+        localDataSource.deleteAllTasks();
+        TaskLocalDataSource.clearInstance();
+    }
+
+    @Test
+    public void completeTasks_completesOnlyTheGivenTasks() {
+        localDataSource.completeTasks(Arrays.asList("a", "unknown"));
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")),
+                getTaskIds(TasksFilterType.COMPLETED_TASKS));
+        assertEquals(new HashSet<>(Arrays.asList("b")),
+                getTaskIds(TasksFilterType.ACTIVE_TASKS));
+    }
+
+    @Test
+    public void activateTasks_activatesOnlyTheGivenTasks() {
+        localDataSource.completeTasks(Arrays.asList("a", "b"));
+
+        localDataSource.activateTasks(Arrays.asList("b", "c"));
+
+        assertEquals(new HashSet<>(Arrays.asList("a")),
+                getTaskIds(TasksFilterType.COMPLETED_TASKS));
+        assertEquals(new HashSet<>(Arrays.asList("b", "c")),
+                getTaskIds(TasksFilterType.ACTIVE_TASKS));
+    }
+
+    @Test
+    public void getTasksByIds_skipsUnknownIds() {
+        List<Task> tasks = getTasks(Arrays.asList("c", "unknown", "a"));
+
+        assertEquals(new HashSet<>(Arrays.asList(TASK_A, TASK_C)), new HashSet<>(tasks));
+    }
+
+    @Test
+    public void batchesOverTheBoundArgumentLimit_areSplit() {
+        List<Task> manyTasks = new ArrayList<>();
+        List<String> manyIds = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            manyTasks.add(new Task("Task " + i, "", "id" + i, false));
+            manyIds.add("id" + i);
+        }
+        localDataSource.saveTasks(manyTasks);
+
+        localDataSource.completeTasks(manyIds);
+        List<Task> tasks = getTasks(manyIds);
+
+        assertEquals(manyTasks.size(), tasks.size());
+        Set<String> loadedIds = new HashSet<>();
+        for (Task task : tasks) {
+            assertTrue(task.isCompleted());
+            loadedIds.add(task.getId());
+        }
+        assertEquals(new HashSet<>(manyIds), loadedIds);
+    }
+
+    private List<Task> getTasks(List<String> taskIds) {
+        TaskDataSource.LoadTasksCallback callback = mock(TaskDataSource.LoadTasksCallback.class);
+        localDataSource.getTasks(taskIds, callback);
+        verify(callback).onTasksLoaded(tasksCaptor.capture());
+        return tasksCaptor.getValue();
+    }
+
+    private Set<String> getTaskIds(TasksFilterType filtering) {
+        TaskDataSource.LoadTasksCallback callback = mock(TaskDataSource.LoadTasksCallback.class);
+        localDataSource.getTasks(filtering, callback);
+        verify(callback).onTasksLoaded(tasksCaptor.capture());
+        Set<String> taskIds = new HashSet<>();
+        for (Task task : tasksCaptor.getValue()) {
+            taskIds.add(task.getId());
+        }
+        return taskIds;
+    }
+}
@@ -0,0 +1,99 @@
+package com.nichtemna.todomwp;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.source.TaskRepository;
+import com.nichtemna.todomwp.data.source.local.TaskLocalDataSource;
+import com.nichtemna.todomwp.data.source.remote.OutboxRemoteDataSource;
+import com.nichtemna.todomwp.data.source.remote.TasksRemoteDataSource;
+import com.nichtemna.todomwp.util.AppExecutors;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Enables injection of production implementations for
+ * {@link com.nichtemna.todomwp.data.source.TaskDataSource} at compile time.
+ */
+public class Injection {
+
+    /**
+     * How long a task lookup waits for the local database before asking the server as well.
+     */
+    private static final long TASK_LOOKUP_HEDGE_DELAY_MILLIS = 100;
+
+    private static AppExecutors appExecutors;
+
+    private static boolean flushOnBackgroundRegistered;
+
+    /**
+     * The repository last provided, flushed when the app goes to the background. Guarded by the
+     * class.
+     */
+    private static TaskRepository flushedRepository;
+
+    public static TaskRepository provideTasksRepository(@NonNull Context context) {
+        checkNotNull(context);
+        AppExecutors executors = provideAppExecutors();
+        TasksRemoteDataSource remoteDataSource = TasksRemoteDataSource.getInstance(executors);
+        TaskLocalDataSource localDataSource = TaskLocalDataSource.getInstance(executors, context);
+        OutboxRemoteDataSource outboxDataSource = OutboxRemoteDataSource.getInstance(
+                remoteDataSource, remoteDataSource, localDataSource.getOutbox());
+        TaskRepository repository = TaskRepository.getInstance(outboxDataSource, localDataSource);
+        outboxDataSource.setWriteListener(repository.getRemoteWriteListener());
+        repository.setDeltaSync(outboxDataSource.afterPendingWrites(remoteDataSource), localDataSource);
+        repository.setLookupMode(TaskRepository.LookupMode.HEDGED, TASK_LOOKUP_HEDGE_DELAY_MILLIS);
+        registerFlushOnBackground(context.getApplicationContext(), repository);
+        return repository;
+    }
+
+    /**
+     * Writes the pending writes of {@code repository} as soon as the app's UI is no longer
+     * visible, as the process may be killed any time after that. The callbacks are registered
+     * once and flush whichever repository was provided last, so that one recreated after
+     * {@link TaskRepository#destroyInstance()} is flushed too.
+     */
+    private static synchronized void registerFlushOnBackground(@NonNull Context context,
+                                                               @NonNull TaskRepository repository) {
+        flushedRepository = repository;
+        if (flushOnBackgroundRegistered) {
+            return;
+        }
+        flushOnBackgroundRegistered = true;
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                    flushPendingWrites();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+                // Nothing to do
+            }
+
+            @Override
+            public void onLowMemory() {
+                flushPendingWrites();
+            }
+        });
+    }
+
+    private static void flushPendingWrites() {
+        TaskRepository repository;
+        synchronized (Injection.class) {
+            repository = flushedRepository;
+        }
+        repository.flushPendingWrites();
+    }
+
+    public static synchronized AppExecutors provideAppExecutors() {
+        if (appExecutors == null) {
+            appExecutors = new AppExecutors();
+        }
+        return appExecutors;
+    }
+}
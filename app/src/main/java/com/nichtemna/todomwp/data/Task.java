@@ -44,7 +44,7 @@ public class Task {
      * @param mId          id of the task
      */
     public Task(@Nullable String mTitle, @Nullable String mDescription, @NonNull String mId) {
-        this(mTitle, mDescription, UUID.randomUUID().toString(), false);
+        this(mTitle, mDescription, mId, false);
     }
 
     /**
@@ -0,0 +1,50 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decides how long the tasks cached by {@link TasksCache} stay fresh.
+ * <p>
+ * A task is fresh for {@link #getTtlMillis(Task)} after it was loaded. Once expired it is still
+ * served for up to {@link #getMaxStalenessMillis()} while it is refreshed in the background;
+ * after that it has to be loaded again before it is served. Override {@link #getTtlMillis(Task)}
+ * to give some tasks their own TTL.
+ */
+public class CachePolicy {
+
+    public static final long NO_EXPIRY = Long.MAX_VALUE;
+
+    /**
+     * Cached tasks never expire, they are only reloaded by an explicit refresh.
+     */
+    public static final CachePolicy NEVER_EXPIRE = new CachePolicy(NO_EXPIRY, NO_EXPIRY);
+
+    private final long ttlMillis;
+
+    private final long maxStalenessMillis;
+
+    public CachePolicy(long ttlMillis, long maxStalenessMillis) {
+        checkArgument(ttlMillis >= 0, "ttlMillis must not be negative");
+        checkArgument(maxStalenessMillis >= 0, "maxStalenessMillis must not be negative");
+        this.ttlMillis = ttlMillis;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * Returns how long {@code task} stays fresh after it was loaded. Defaults to the global TTL.
+     */
+    public long getTtlMillis(@NonNull Task task) {
+        return ttlMillis;
+    }
+
+    /**
+     * Returns how long an expired task may still be served while it is being refreshed.
+     */
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+}
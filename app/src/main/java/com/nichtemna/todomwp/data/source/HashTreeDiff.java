@@ -0,0 +1,179 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds the tasks that differ between two {@link TaskHashTreeSource}s by walking their hash trees
+ * down from the root, only into the nodes whose hashes differ. Both are asked for the same nodes
+ * at once, one level per round trip, then for the digests of the differing buckets; the transfer
+ * grows with the number of differences times the depth, not with the number of tasks.
+ * <p>
+ * Callbacks are expected on the main thread, like those of the data sources.
+ */
+final class HashTreeDiff {
+
+    interface Callback {
+
+        /**
+         * @param changedTaskIds ids of the tasks {@code target} is missing or has another version
+         *                       of
+         * @param removedTaskIds ids of the tasks only {@code target} has
+         */
+        void onDiffFound(@NonNull Set<String> changedTaskIds, @NonNull Set<String> removedTaskIds);
+
+        void onDataNotAvailable();
+    }
+
+    private final TaskHashTreeSource target;
+
+    private final TaskHashTreeSource reference;
+
+    private final Callback callback;
+
+    /**
+     * @param target    the copy to be repaired
+     * @param reference the copy it should match
+     */
+    HashTreeDiff(@NonNull TaskHashTreeSource target, @NonNull TaskHashTreeSource reference,
+                 @NonNull Callback callback) {
+        this.target = checkNotNull(target);
+        this.reference = checkNotNull(reference);
+        this.callback = checkNotNull(callback);
+    }
+
+    void start() {
+        compareLevel(0, Collections.singletonList(0));
+    }
+
+    private void compareLevel(final int level, @NonNull final List<Integer> nodeIndexes) {
+        final long[][] hashes = new long[2][];
+        Round round = new Round(new Runnable() {
+            @Override
+            public void run() {
+                List<Integer> differing = new ArrayList<>();
+                for (int i = 0; i < nodeIndexes.size(); i++) {
+                    if (hashes[0][i] != hashes[1][i]) {
+                        differing.add(nodeIndexes.get(i));
+                    }
+                }
+                if (differing.isEmpty()) {
+                    callback.onDiffFound(Collections.<String>emptySet(),
+                            Collections.<String>emptySet());
+                } else if (level == TaskHashTree.DEPTH) {
+                    compareBuckets(differing);
+                } else {
+                    compareLevel(level + 1, getChildren(differing));
+                }
+            }
+        });
+        getHashes(target, level, nodeIndexes, hashes, 0, round);
+        getHashes(reference, level, nodeIndexes, hashes, 1, round);
+    }
+
+    private void compareBuckets(@NonNull List<Integer> bucketIndexes) {
+        final List<Map<String, Long>> digests = Arrays.<Map<String, Long>>asList(null, null);
+        Round round = new Round(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Long> targetDigests = digests.get(0);
+                Map<String, Long> referenceDigests = digests.get(1);
+                Set<String> changedTaskIds = new HashSet<>();
+                for (Map.Entry<String, Long> entry : referenceDigests.entrySet()) {
+                    if (!entry.getValue().equals(targetDigests.get(entry.getKey()))) {
+                        changedTaskIds.add(entry.getKey());
+                    }
+                }
+                Set<String> removedTaskIds = new HashSet<>(targetDigests.keySet());
+                removedTaskIds.removeAll(referenceDigests.keySet());
+                callback.onDiffFound(changedTaskIds, removedTaskIds);
+            }
+        });
+        getBucketDigests(target, bucketIndexes, digests, 0, round);
+        getBucketDigests(reference, bucketIndexes, digests, 1, round);
+    }
+
+    private static void getHashes(@NonNull TaskHashTreeSource source, int level,
+                                  @NonNull List<Integer> nodeIndexes, final long[][] results,
+                                  final int slot, final Round round) {
+        source.getHashes(level, nodeIndexes, new TaskHashTreeSource.GetHashesCallback() {
+            @Override
+            public void onHashesLoaded(@NonNull long[] hashes) {
+                results[slot] = hashes;
+                round.onAnswered(true);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                round.onAnswered(false);
+            }
+        });
+    }
+
+    private static void getBucketDigests(@NonNull TaskHashTreeSource source,
+                                         @NonNull List<Integer> bucketIndexes,
+                                         final List<Map<String, Long>> results, final int slot,
+                                         final Round round) {
+        source.getBucketDigests(bucketIndexes,
+                new TaskHashTreeSource.GetBucketDigestsCallback() {
+                    @Override
+                    public void onBucketDigestsLoaded(@NonNull Map<String, Long> digests) {
+                        results.set(slot, digests);
+                        round.onAnswered(true);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        round.onAnswered(false);
+                    }
+                });
+    }
+
+    private static List<Integer> getChildren(List<Integer> nodeIndexes) {
+        List<Integer> children = new ArrayList<>(nodeIndexes.size() * TaskHashTree.FANOUT);
+        for (int index : nodeIndexes) {
+            for (int child = 0; child < TaskHashTree.FANOUT; child++) {
+                children.add(index * TaskHashTree.FANOUT + child);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Waits for both copies to answer the same request, then goes on with
+     * {@code onBothLoaded}, or fails the diff if either couldn't answer.
+     */
+    private final class Round {
+
+        private final Runnable onBothLoaded;
+
+        private int pending = 2;
+
+        private boolean failed;
+
+        Round(@NonNull Runnable onBothLoaded) {
+            this.onBothLoaded = onBothLoaded;
+        }
+
+        void onAnswered(boolean loaded) {
+            failed |= !loaded;
+            if (--pending > 0) {
+                return;
+            }
+            if (failed) {
+                callback.onDataNotAvailable();
+            } else {
+                onBothLoaded.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Loads in progress by key, so that concurrent identical loads share a single fetch.
+ * <p>
+ * The first caller for a key starts the fetch; later callers only add their callback until the
+ * fetch completes and {@link #complete(Object, Load)} hands back every waiting callback.
+ *
+ * @param <K> identifies identical loads
+ * @param <C> callback type of the load
+ */
+final class InFlightLoads<K, C> {
+
+    /**
+     * One load in flight and the callbacks waiting for it.
+     */
+    static final class Load<C> {
+
+        private final List<C> callbacks = new ArrayList<>(1);
+    }
+
+    private final Map<K, Load<C>> loads = new HashMap<>();
+
+    private int startedCount;
+
+    private int deduplicatedCount;
+
+    /**
+     * Registers {@code callback} for the load identified by {@code key}.
+     *
+     * @return the load the caller has to start and later pass to
+     * {@link #complete(Object, Load)} if no such load is joinable, or null if the callback joined
+     * the load in flight
+     */
+    @Nullable
+    synchronized Load<C> join(@NonNull K key, @NonNull C callback) {
+        checkNotNull(callback);
+        Load<C> load = loads.get(checkNotNull(key));
+        if (load != null) {
+            load.callbacks.add(callback);
+            deduplicatedCount++;
+            return null;
+        }
+        load = new Load<>();
+        load.callbacks.add(callback);
+        loads.put(key, load);
+        startedCount++;
+        return load;
+    }
+
+    /**
+     * Ends {@code load}, identified by {@code key}. A later {@link #join(Object, Object)} starts a
+     * new load, even from one of the returned callbacks.
+     *
+     * @return the callbacks waiting for the load, in the order they joined
+     */
+    @NonNull
+    synchronized List<C> complete(@NonNull K key, @NonNull Load<C> load) {
+        if (loads.get(key) == load) {
+            loads.remove(key);
+        }
+        List<C> callbacks = new ArrayList<>(load.callbacks);
+        load.callbacks.clear();
+        return callbacks;
+    }
+
+    /**
+     * Makes every later {@link #join(Object, Object)} start a new load, for when the loads in
+     * flight may answer with outdated results. They still complete the callbacks that joined
+     * them.
+     */
+    synchronized void startOver() {
+        loads.clear();
+    }
+
+    /**
+     * Returns how many loads were actually started.
+     */
+    synchronized int getStartedCount() {
+        return startedCount;
+    }
+
+    /**
+     * Returns how many calls joined a load in flight instead of starting their own.
+     */
+    synchronized int getDeduplicatedCount() {
+        return deduplicatedCount;
+    }
+}
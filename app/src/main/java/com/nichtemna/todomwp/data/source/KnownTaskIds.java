@@ -0,0 +1,137 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.util.Clock;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Answers "does a task with this id certainly not exist?" without any I/O, so that lookups of
+ * unknown ids (deleted elsewhere, stale links) don't go through the database and the network.
+ * <p>
+ * Two sources of knowledge are combined:
+ * <ul>
+ * <li>A Bloom filter over every id seen since the last full task list of the server. Ids are
+ * added on every write; deleted ids stay in it until the next full list rebuilds it, which only
+ * costs a false positive. It can only rule an id out while it is complete.</li>
+ * <li>A bounded cache of ids that the server recently answered it doesn't have, each forgotten
+ * after an expiry time or as soon as a task with that id is written.</li>
+ * </ul>
+ */
+final class KnownTaskIds {
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * Lower bound of the filter capacity, so that a small list leaves room for new tasks.
+     */
+    private static final int MIN_EXPECTED_IDS = 1024;
+
+    private static final int MAX_MISSING_IDS = 256;
+
+    private static final long MISSING_ID_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Cache<String, Boolean> missingIds;
+
+    private BloomFilter<CharSequence> filter;
+
+    private int expectedIds;
+
+    private int addedIds;
+
+    /**
+     * True while {@link #filter} holds every existing id.
+     */
+    private boolean complete;
+
+    KnownTaskIds() {
+        this(Clock.SYSTEM);
+    }
+
+    KnownTaskIds(@NonNull final Clock clock) {
+        checkNotNull(clock);
+        missingIds = CacheBuilder.newBuilder()
+                .maximumSize(MAX_MISSING_IDS)
+                .expireAfterWrite(MISSING_ID_EXPIRY_MILLIS, TimeUnit.MILLISECONDS)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return TimeUnit.MILLISECONDS.toNanos(clock.elapsedMillis());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Rebuilds the filter from the full task list of the server, making it complete. A list
+     * that only comes from the local data source must not be used, it may miss tasks created
+     * elsewhere.
+     */
+    synchronized void reset(@NonNull Collection<Task> tasks) {
+        expectedIds = Math.max(MIN_EXPECTED_IDS, tasks.size() * 2);
+        filter = BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), expectedIds,
+                FALSE_POSITIVE_PROBABILITY);
+        addedIds = 0;
+        for (Task task : tasks) {
+            filter.put(task.getId());
+            addedIds++;
+        }
+        complete = true;
+        missingIds.invalidateAll();
+    }
+
+    /**
+     * Records that a task with {@code taskId} exists.
+     */
+    synchronized void add(@NonNull String taskId) {
+        missingIds.invalidate(taskId);
+        if (filter == null) {
+            return;
+        }
+        if (addedIds >= expectedIds) {
+            // Over capacity the false positive rate climbs quickly, stop trusting the filter
+            // until the next full list.
+            filter = null;
+            complete = false;
+            return;
+        }
+        filter.put(taskId);
+        addedIds++;
+    }
+
+    /**
+     * Stops ruling ids out with the filter, e.g. because tasks may have been created elsewhere.
+     */
+    synchronized void invalidate() {
+        complete = false;
+    }
+
+    /**
+     * Records that the server answered it has no task with {@code taskId}. A failure to answer
+     * proves nothing and must not be recorded.
+     */
+    void markMissing(@NonNull String taskId) {
+        missingIds.put(taskId, Boolean.TRUE);
+    }
+
+    /**
+     * Returns true if no task with {@code taskId} exists. False doesn't mean the task exists.
+     */
+    synchronized boolean isCertainlyMissing(@NonNull String taskId) {
+        if (complete && !filter.mightContain(taskId)) {
+            return true;
+        }
+        return missingIds.getIfPresent(taskId) != null;
+    }
+}
@@ -0,0 +1,74 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.nichtemna.todomwp.data.Task;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A single change to the tasks held by {@link TaskRepository}, delivered to
+ * {@link TaskRepository.TasksObserver}s.
+ * <p>
+ * Positions are not part of the change because every view filters the tasks differently;
+ * observers map the id to a position in their own list.
+ */
+public final class TaskChange {
+
+    public enum Type {
+        INSERTED,
+        UPDATED,
+        REMOVED
+    }
+
+    @NonNull
+    private final Type type;
+
+    @NonNull
+    private final String taskId;
+
+    @Nullable
+    private final Task task;
+
+    private TaskChange(@NonNull Type type, @NonNull String taskId, @Nullable Task task) {
+        this.type = type;
+        this.taskId = checkNotNull(taskId);
+        this.task = task;
+    }
+
+    public static TaskChange inserted(@NonNull Task task) {
+        return new TaskChange(Type.INSERTED, task.getId(), task);
+    }
+
+    public static TaskChange updated(@NonNull Task task) {
+        return new TaskChange(Type.UPDATED, task.getId(), task);
+    }
+
+    public static TaskChange removed(@NonNull String taskId) {
+        return new TaskChange(Type.REMOVED, taskId, null);
+    }
+
+    @NonNull
+    public Type getType() {
+        return type;
+    }
+
+    @NonNull
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * The new state of the task, or null for {@link Type#REMOVED}.
+     */
+    @Nullable
+    public Task getTask() {
+        return task;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskChange{" + type + " " + taskId + "}";
+    }
+}
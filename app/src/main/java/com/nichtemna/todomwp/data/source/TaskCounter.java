@@ -0,0 +1,98 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+
+/**
+ * Running counts of active and completed tasks, used by {@link TaskRepository} while its cache
+ * doesn't hold the full task list.
+ * <p>
+ * The counts are seeded from a {@code COUNT(*)} query and then adjusted on every mutation, so the
+ * statistics never need to load any task. A mutation whose effect on the counts is unknown
+ * (e.g. saving a task that isn't cached) invalidates them and the next read seeds them again.
+ */
+final class TaskCounter {
+
+    private int activeCount;
+
+    private int completedCount;
+
+    private boolean known;
+
+    /**
+     * Incremented on every mutation, so that a seed computed before a mutation can be detected
+     * and dropped.
+     */
+    private int generation;
+
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stores counts loaded from a data source, unless something changed after
+     * {@code generationAtRequest} was taken.
+     */
+    synchronized void seed(int generationAtRequest, int activeCount, int completedCount) {
+        if (generationAtRequest != generation) {
+            return;
+        }
+        this.activeCount = activeCount;
+        this.completedCount = completedCount;
+        known = true;
+    }
+
+    synchronized boolean isKnown() {
+        return known;
+    }
+
+    synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    synchronized int getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * A task went from {@code previous} (null if it didn't exist) to {@code current}.
+     */
+    synchronized void onTaskChanged(Task previous, @NonNull Task current) {
+        generation++;
+        if (previous != null) {
+            add(previous, -1);
+        }
+        add(current, 1);
+    }
+
+    synchronized void onTaskRemoved(@NonNull Task removed) {
+        generation++;
+        add(removed, -1);
+    }
+
+    synchronized void onCompletedTasksCleared() {
+        generation++;
+        completedCount = 0;
+    }
+
+    synchronized void onAllTasksDeleted() {
+        generation++;
+        activeCount = 0;
+        completedCount = 0;
+        known = true;
+    }
+
+    synchronized void invalidate() {
+        generation++;
+        known = false;
+    }
+
+    private void add(Task task, int delta) {
+        if (task.isCompleted()) {
+            completedCount += delta;
+        } else {
+            activeCount += delta;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package com.nichtemna.todomwp.data.source;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -19,19 +22,102 @@ public interface TaskDataSource {
         void onDataNotAvailable();
     }
 
+    interface LoadTaskPageCallback {
+
+        void onTaskPageLoaded(TaskPage page);
+
+        void onDataNotAvailable();
+    }
+
+    /**
+     * Receives tasks progressively, so the first ones can be shown before the rest is read.
+     */
+    interface StreamTasksCallback {
+
+        /**
+         * Called once per chunk, in order. Chunks are never empty.
+         */
+        void onTasksChunkLoaded(List<Task> tasks);
+
+        /**
+         * Called once after the last chunk.
+         */
+        void onTasksStreamComplete();
+
+        /**
+         * Called instead of {@link #onTasksStreamComplete()}, possibly after some chunks if the
+         * stream broke off; those chunks are then not the full list.
+         */
+        void onDataNotAvailable();
+    }
+
     interface GetTaskCallback {
 
+        /**
+         * @param task the task, or null if the data source answered that it has no such task
+         */
         void onTaskLoaded(Task task);
 
         void onDataNotAvailable();
     }
 
+    interface GetTaskCountsCallback {
+
+        void onTaskCountsLoaded(int activeCount, int completedCount);
+
+        void onDataNotAvailable();
+    }
+
     void getTasks(@NonNull LoadTasksCallback callback);
 
+    /**
+     * Loads only the tasks matching {@code filtering}, in the same order as
+     * {@link #getTasks(LoadTasksCallback)}.
+     */
+    void getTasks(@NonNull TasksFilterType filtering, @NonNull LoadTasksCallback callback);
+
+    /**
+     * Loads at most {@code pageSize} tasks matching {@code filtering}, in the same order as
+     * {@link #getTasks(LoadTasksCallback)}, starting after the page that returned
+     * {@code pageKey}. Pass a null key to get the first page.
+     * <p>
+     * Page keys are opaque and only valid with the data source that returned them.
+     */
+    void getTaskPage(@NonNull TasksFilterType filtering, int pageSize, @Nullable String pageKey,
+                     @NonNull LoadTaskPageCallback callback);
+
+    /**
+     * Loads the same tasks as {@link #getTasks(TasksFilterType, LoadTasksCallback)}, delivered in
+     * chunks of at most {@code chunkSize} tasks as soon as each chunk is read.
+     */
+    void streamTasks(@NonNull TasksFilterType filtering, int chunkSize,
+                     @NonNull StreamTasksCallback callback);
+
     void getTask(@NonNull String taskId, @NonNull GetTaskCallback callback);
 
+    /**
+     * Loads the tasks with the given ids in one request. Ids without a task are skipped;
+     * {@link LoadTasksCallback#onDataNotAvailable()} is fired if none of them has one.
+     */
+    void getTasks(@NonNull Collection<String> taskIds, @NonNull LoadTasksCallback callback);
+
+    /**
+     * Counts active and completed tasks without loading them.
+     */
+    void getTaskCounts(@NonNull GetTaskCountsCallback callback);
+
     void saveTask(@NonNull Task task);
 
+    /**
+     * Inserts or updates all {@code tasks} as one batch.
+     */
+    void saveTasks(@NonNull Collection<Task> tasks);
+
+    /**
+     * Replaces the whole content of the data source with {@code tasks} as one batch.
+     */
+    void replaceAllTasks(@NonNull Collection<Task> tasks);
+
     void completeTask(@NonNull Task task);
 
     void completeTask(@NonNull String taskId);
@@ -40,6 +126,16 @@ public interface TaskDataSource {
 
     void activateTask(@NonNull String taskId);
 
+    /**
+     * Marks all tasks with the given ids as completed as one batch.
+     */
+    void completeTasks(@NonNull Collection<String> taskIds);
+
+    /**
+     * Marks all tasks with the given ids as active as one batch.
+     */
+    void activateTasks(@NonNull Collection<String> taskIds);
+
     void clearCompletedTasks();
 
     void refreshTasks();
@@ -48,5 +144,10 @@ public interface TaskDataSource {
 
     void deleteTask(@NonNull String taskId);
 
+    /**
+     * Deletes all tasks with the given ids as one batch.
+     */
+    void deleteTasks(@NonNull Collection<String> taskIds);
+
 
 }
@@ -0,0 +1,70 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The tasks created, edited or deleted on the server since a sync token, see
+ * {@link TaskSyncSource}.
+ */
+public final class TaskDelta {
+
+    private final List<Task> changedTasks;
+
+    private final List<String> deletedTaskIds;
+
+    private final String syncToken;
+
+    private final boolean fullSync;
+
+    /**
+     * @param fullSync true if {@code changedTasks} are all tasks the server has, because it
+     *                 couldn't tell what changed since the token the client sent
+     */
+    public TaskDelta(@NonNull List<Task> changedTasks, @NonNull List<String> deletedTaskIds,
+                     @NonNull String syncToken, boolean fullSync) {
+        this.changedTasks = Collections.unmodifiableList(checkNotNull(changedTasks));
+        this.deletedTaskIds = Collections.unmodifiableList(checkNotNull(deletedTaskIds));
+        this.syncToken = checkNotNull(syncToken);
+        this.fullSync = fullSync;
+    }
+
+    @NonNull
+    public List<Task> getChangedTasks() {
+        return changedTasks;
+    }
+
+    /**
+     * Returns the ids of the deleted tasks; always empty for a full sync.
+     */
+    @NonNull
+    public List<String> getDeletedTaskIds() {
+        return deletedTaskIds;
+    }
+
+    /**
+     * Returns the token to send with the next request for changes.
+     */
+    @NonNull
+    public String getSyncToken() {
+        return syncToken;
+    }
+
+    /**
+     * Returns true if the tasks not in {@link #getChangedTasks()} were deleted, rather than
+     * unchanged.
+     */
+    public boolean isFullSync() {
+        return fullSync;
+    }
+
+    public boolean isEmpty() {
+        return !fullSync && changedTasks.isEmpty() && deletedTaskIds.isEmpty();
+    }
+}
@@ -0,0 +1,160 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.nichtemna.todomwp.data.Task;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Hash tree of a set of tasks, so that two copies of the set can find where they differ by
+ * comparing a few hashes instead of every task.
+ * <p>
+ * Tasks are put in {@link #BUCKET_COUNT} buckets by the prefix of the hash of their id, which
+ * spreads them evenly whatever the ids look like. Each node hashes to the XOR of the digests of
+ * the tasks below it, so a change updates one node per level instead of rehashing the children.
+ * <p>
+ * Nodes are addressed by level, the root being level 0, and by index within their level; the
+ * children of node {@code i} are {@code i * FANOUT} to {@code i * FANOUT + FANOUT - 1} of the
+ * next level. Not thread-safe.
+ */
+public final class TaskHashTree {
+
+    private static final int BITS_PER_LEVEL = 4;
+
+    public static final int FANOUT = 1 << BITS_PER_LEVEL;
+
+    /**
+     * Level of the buckets.
+     */
+    public static final int DEPTH = 3;
+
+    public static final int BUCKET_COUNT = 1 << (BITS_PER_LEVEL * DEPTH);
+
+    private static final HashFunction DIGEST_FUNCTION = Hashing.murmur3_128();
+
+    private static final HashFunction BUCKET_FUNCTION = Hashing.murmur3_32();
+
+    private final long[][] levels = new long[DEPTH + 1][];
+
+    private final Map<String, Long> digests = new HashMap<>();
+
+    /**
+     * Digests of the tasks of every non-empty bucket, by id.
+     */
+    private final Map<Integer, Map<String, Long>> buckets = new HashMap<>();
+
+    public TaskHashTree() {
+        for (int level = 0; level <= DEPTH; level++) {
+            levels[level] = new long[getNodeCount(level)];
+        }
+    }
+
+    public static int getNodeCount(int level) {
+        checkArgument(level >= 0 && level <= DEPTH, "No level %s", level);
+        return 1 << (BITS_PER_LEVEL * level);
+    }
+
+    public static int getBucket(@NonNull String taskId) {
+        return BUCKET_FUNCTION.hashString(taskId, Charsets.UTF_8).asInt() >>> (32 - BITS_PER_LEVEL * DEPTH);
+    }
+
+    /**
+     * Returns a digest of every field of {@code task}, so that any edit changes it.
+     */
+    public static long digest(@NonNull Task task) {
+        Hasher hasher = DIGEST_FUNCTION.newHasher().putString(task.getId(), Charsets.UTF_8);
+        putNullableString(hasher, task.getTitle());
+        putNullableString(hasher, task.getDescription());
+        return hasher.putBoolean(task.isCompleted()).hash().asLong();
+    }
+
+    public void put(@NonNull Task task) {
+        String taskId = task.getId();
+        long digest = digest(task);
+        Long previous = digests.put(taskId, digest);
+        if (previous != null) {
+            if (previous == digest) {
+                return;
+            }
+            update(taskId, previous);
+        }
+        update(taskId, digest);
+        Map<String, Long> bucket = buckets.get(getBucket(taskId));
+        if (bucket == null) {
+            bucket = new HashMap<>();
+            buckets.put(getBucket(taskId), bucket);
+        }
+        bucket.put(taskId, digest);
+    }
+
+    public void remove(@NonNull String taskId) {
+        Long previous = digests.remove(checkNotNull(taskId));
+        if (previous == null) {
+            return;
+        }
+        update(taskId, previous);
+        int bucketIndex = getBucket(taskId);
+        Map<String, Long> bucket = buckets.get(bucketIndex);
+        bucket.remove(taskId);
+        if (bucket.isEmpty()) {
+            buckets.remove(bucketIndex);
+        }
+    }
+
+    public void clear() {
+        for (long[] level : levels) {
+            Arrays.fill(level, 0);
+        }
+        digests.clear();
+        buckets.clear();
+    }
+
+    public int size() {
+        return digests.size();
+    }
+
+    public long getHash(int level, int index) {
+        checkArgument(index >= 0 && index < getNodeCount(level), "No node %s at level %s",
+                index, level);
+        return levels[level][index];
+    }
+
+    /**
+     * Returns the digests of the tasks in bucket {@code index}, by id.
+     */
+    @NonNull
+    public Map<String, Long> getBucketDigests(int index) {
+        checkArgument(index >= 0 && index < BUCKET_COUNT, "No bucket %s", index);
+        Map<String, Long> bucket = buckets.get(index);
+        return bucket == null ? new HashMap<String, Long>() : new HashMap<>(bucket);
+    }
+
+    /**
+     * XORs {@code digest} into every node on the path from the bucket of {@code taskId} to the
+     * root, which adds it if it wasn't there and removes it if it was.
+     */
+    private void update(String taskId, long digest) {
+        int index = getBucket(taskId);
+        for (int level = DEPTH; level >= 0; level--) {
+            levels[level][index] ^= digest;
+            index /= FANOUT;
+        }
+    }
+
+    private static void putNullableString(Hasher hasher, String value) {
+        hasher.putBoolean(value != null);
+        if (value != null) {
+            hasher.putInt(value.length()).putString(value, Charsets.UTF_8);
+        }
+    }
+}
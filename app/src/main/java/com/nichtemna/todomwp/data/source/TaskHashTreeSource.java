@@ -0,0 +1,39 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A copy of the task set that exposes its {@link TaskHashTree}, so that it can be compared with
+ * another copy a few nodes at a time.
+ */
+public interface TaskHashTreeSource {
+
+    interface GetHashesCallback {
+
+        /**
+         * @param hashes the hash of every requested node, in the order of the request
+         */
+        void onHashesLoaded(@NonNull long[] hashes);
+
+        void onDataNotAvailable();
+    }
+
+    interface GetBucketDigestsCallback {
+
+        /**
+         * @param digests the digest of every task in the requested buckets, by id
+         */
+        void onBucketDigestsLoaded(@NonNull Map<String, Long> digests);
+
+        void onDataNotAvailable();
+    }
+
+    void getHashes(int level, @NonNull List<Integer> nodeIndexes,
+                   @NonNull GetHashesCallback callback);
+
+    void getBucketDigests(@NonNull List<Integer> bucketIndexes,
+                          @NonNull GetBucketDigestsCallback callback);
+}
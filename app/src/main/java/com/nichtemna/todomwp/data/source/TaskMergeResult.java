@@ -0,0 +1,125 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Difference between the tasks stored locally and a fresh list of tasks from the server.
+ * <p>
+ * Tasks are matched by id and compared with {@link Task#equals(Object)}, so only rows that were
+ * added, edited or removed on the server need to be written.
+ */
+public final class TaskMergeResult {
+
+    private final List<Task> insertedTasks;
+
+    private final List<Task> updatedTasks;
+
+    private final List<String> deletedTaskIds;
+
+    private final int unchangedCount;
+
+    private TaskMergeResult(List<Task> insertedTasks, List<Task> updatedTasks,
+                            List<String> deletedTaskIds, int unchangedCount) {
+        this.insertedTasks = Collections.unmodifiableList(insertedTasks);
+        this.updatedTasks = Collections.unmodifiableList(updatedTasks);
+        this.deletedTaskIds = Collections.unmodifiableList(deletedTaskIds);
+        this.unchangedCount = unchangedCount;
+    }
+
+    /**
+     * Compares {@code remoteTasks} against {@code localTasks}. Runs in O(local + remote).
+     */
+    @NonNull
+    public static TaskMergeResult compute(@NonNull Collection<Task> localTasks,
+                                          @NonNull Collection<Task> remoteTasks) {
+        checkNotNull(localTasks);
+        checkNotNull(remoteTasks);
+
+        Map<String, Task> remaining = new LinkedHashMap<>();
+        for (Task task : localTasks) {
+            remaining.put(task.getId(), task);
+        }
+
+        List<Task> inserted = new ArrayList<>();
+        List<Task> updated = new ArrayList<>();
+        int unchanged = 0;
+        for (Task remoteTask : remoteTasks) {
+            Task localTask = remaining.remove(remoteTask.getId());
+            if (localTask == null) {
+                inserted.add(remoteTask);
+            } else if (!localTask.equals(remoteTask)) {
+                updated.add(remoteTask);
+            } else {
+                unchanged++;
+            }
+        }
+
+        // Whatever is left locally no longer exists on the server.
+        return new TaskMergeResult(inserted, updated, new ArrayList<>(remaining.keySet()), unchanged);
+    }
+
+    @NonNull
+    public List<Task> getInsertedTasks() {
+        return insertedTasks;
+    }
+
+    @NonNull
+    public List<Task> getUpdatedTasks() {
+        return updatedTasks;
+    }
+
+    @NonNull
+    public List<String> getDeletedTaskIds() {
+        return deletedTaskIds;
+    }
+
+    /**
+     * Inserted and updated tasks together, i.e. every row that has to be written.
+     */
+    @NonNull
+    public List<Task> getChangedTasks() {
+        List<Task> changed = new ArrayList<>(insertedTasks.size() + updatedTasks.size());
+        changed.addAll(insertedTasks);
+        changed.addAll(updatedTasks);
+        return changed;
+    }
+
+    public int getInsertedCount() {
+        return insertedTasks.size();
+    }
+
+    public int getUpdatedCount() {
+        return updatedTasks.size();
+    }
+
+    public int getDeletedCount() {
+        return deletedTaskIds.size();
+    }
+
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    public boolean isEmpty() {
+        return insertedTasks.isEmpty() && updatedTasks.isEmpty() && deletedTaskIds.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "TaskMergeResult{inserted=" + getInsertedCount() +
+                ", updated=" + getUpdatedCount() +
+                ", deleted=" + getDeletedCount() +
+                ", unchanged=" + unchangedCount + "}";
+    }
+}
@@ -0,0 +1,99 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.nichtemna.todomwp.data.Task;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A single write to a data source, recorded so that it can be stored and applied later, see
+ * {@link TaskMutationTarget}.
+ */
+public final class TaskMutation {
+
+    public enum Type {
+        /**
+         * Inserts or replaces {@link #getTask()}.
+         */
+        SAVE,
+        DELETE,
+        COMPLETE,
+        ACTIVATE,
+        /**
+         * Deletes all completed tasks, has no task id.
+         */
+        CLEAR_COMPLETED,
+        /**
+         * Deletes all tasks, has no task id.
+         */
+        DELETE_ALL
+    }
+
+    @NonNull
+    private final Type type;
+
+    @Nullable
+    private final String taskId;
+
+    @Nullable
+    private final Task task;
+
+    private TaskMutation(@NonNull Type type, @Nullable String taskId, @Nullable Task task) {
+        this.type = checkNotNull(type);
+        this.taskId = taskId;
+        this.task = task;
+    }
+
+    public static TaskMutation save(@NonNull Task task) {
+        return new TaskMutation(Type.SAVE, task.getId(), task);
+    }
+
+    public static TaskMutation delete(@NonNull String taskId) {
+        return new TaskMutation(Type.DELETE, checkNotNull(taskId), null);
+    }
+
+    public static TaskMutation complete(@NonNull String taskId) {
+        return new TaskMutation(Type.COMPLETE, checkNotNull(taskId), null);
+    }
+
+    public static TaskMutation activate(@NonNull String taskId) {
+        return new TaskMutation(Type.ACTIVATE, checkNotNull(taskId), null);
+    }
+
+    public static TaskMutation clearCompleted() {
+        return new TaskMutation(Type.CLEAR_COMPLETED, null, null);
+    }
+
+    public static TaskMutation deleteAll() {
+        return new TaskMutation(Type.DELETE_ALL, null, null);
+    }
+
+    @NonNull
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the id of the task written, or null for {@link Type#CLEAR_COMPLETED} and
+     * {@link Type#DELETE_ALL}.
+     */
+    @Nullable
+    public String getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * Returns the task saved by a {@link Type#SAVE}, null for every other type.
+     */
+    @Nullable
+    public Task getTask() {
+        return task;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskMutation{" + type + (taskId != null ? " " + taskId : "") + "}";
+    }
+}
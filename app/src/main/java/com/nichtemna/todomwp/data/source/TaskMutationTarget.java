@@ -0,0 +1,32 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * A data source that applies a batch of writes as one acknowledged request, so that the caller
+ * knows whether they need to be sent again.
+ */
+public interface TaskMutationTarget {
+
+    interface ApplyMutationsCallback {
+
+        /**
+         * The request went through. {@code rejected} are the mutations the server refused for
+         * good, e.g. because they failed its validation; all others were applied.
+         */
+        void onMutationsApplied(@NonNull List<TaskMutation> rejected);
+
+        /**
+         * None of the mutations was applied, sending them again may succeed.
+         */
+        void onMutationsFailed();
+    }
+
+    /**
+     * Applies {@code mutations} in order, as one request.
+     */
+    void applyMutations(@NonNull List<TaskMutation> mutations,
+                        @NonNull ApplyMutationsCallback callback);
+}
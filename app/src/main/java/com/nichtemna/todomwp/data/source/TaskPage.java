@@ -0,0 +1,48 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.nichtemna.todomwp.data.Task;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * One window of tasks returned by
+ * {@link TaskDataSource#getTaskPage(com.nichtemna.todomwp.tasks.TasksFilterType, int, String, TaskDataSource.LoadTaskPageCallback)}.
+ * <p>
+ * The next page key is opaque: it only has a meaning for the data source that produced it and
+ * must be passed back unchanged to get the following page.
+ */
+public final class TaskPage {
+
+    @NonNull
+    private final List<Task> tasks;
+
+    @Nullable
+    private final String nextPageKey;
+
+    public TaskPage(@NonNull List<Task> tasks, @Nullable String nextPageKey) {
+        this.tasks = checkNotNull(tasks);
+        this.nextPageKey = nextPageKey;
+    }
+
+    @NonNull
+    public List<Task> getTasks() {
+        return tasks;
+    }
+
+    /**
+     * Returns the key of the following page, or null if this is the last one.
+     */
+    @Nullable
+    public String getNextPageKey() {
+        return nextPageKey;
+    }
+
+    public boolean hasMore() {
+        return nextPageKey != null;
+    }
+}
@@ -1,51 +1,295 @@
 package com.nichtemna.todomwp.data.source;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.Clock;
+import com.nichtemna.todomwp.util.Scheduler;
 
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Concrete implementation to load tasks from the data sources into a cache.
  * <p>
  * For simplicity, this implements a dumb synchronisation between locally persisted data and data
  * obtained from the server, by using the remote data source only if the local database doesn't
- * exist or is empty.
+ * exist or is empty. When the server data is fetched, it is merged into the local data source so
+ * only the tasks that actually changed are written.
+ * <p>
+ * Identical loads issued while one is already in flight share its result instead of querying
+ * the data source again.
+ * <p>
+ * Task changes are applied to the cache right away and written to the data sources in batches,
+ * see {@link WriteBehindQueue}. They stay pending until the remote data source reports, through
+ * {@link #getRemoteWriteListener()}, that the server accepted them; a change the server rejected
+ * is undone and observers are told.
  */
 public class TaskRepository implements TaskDataSource {
 
+    /**
+     * Receives fine-grained changes to the repository content, in the order they were applied.
+     */
+    public interface TasksObserver {
+
+        void onTasksChanged(@NonNull List<TaskChange> changes);
+
+        /**
+         * Called when the server rejected {@code count} writes made through this repository. The
+         * tasks they changed were restored first, through {@link #onTasksChanged(List)}.
+         */
+        void onWritesRejected(int count);
+    }
+
+    /**
+     * How a read behaves while the cache waits for a refresh from the remote data source.
+     */
+    public enum RefreshMode {
+        /**
+         * Answers only once the remote data source did.
+         */
+        BLOCKING,
+
+        /**
+         * Answers right away with the tasks known in memory or in the local data source, marked
+         * as stale, then again with the fresh tasks once the remote data source answered.
+         */
+        STALE_WHILE_REVALIDATE
+    }
+
+    public interface RevalidatingLoadTasksCallback extends LoadTasksCallback {
+
+        /**
+         * Called before {@link #onTasksLoaded(List)} with the tasks known before the refresh.
+         * Not called if nothing is known yet, or if the fresh tasks arrived first.
+         */
+        void onStaleTasksLoaded(List<Task> tasks);
+    }
+
+    public interface RevalidatingStreamTasksCallback extends StreamTasksCallback {
+
+        /**
+         * Called before the first chunk with the tasks known before the refresh. Not called if
+         * nothing is known yet, or if the fresh tasks arrived first.
+         */
+        void onStaleTasksLoaded(List<Task> tasks);
+    }
+
+    /**
+     * How {@link #getTask(String, GetTaskCallback)} queries the data sources on a cache miss.
+     */
+    public enum LookupMode {
+        /**
+         * Local data source first, remote data source only if the task isn't stored locally.
+         */
+        SEQUENTIAL,
+
+        /**
+         * Both data sources at once, the first one that has the task wins.
+         */
+        PARALLEL,
+
+        /**
+         * Local data source first, remote data source as well if the local one didn't answer
+         * within the hedge delay. The first one that has the task wins.
+         */
+        HEDGED
+    }
+
+    /**
+     * Pending writes that trigger a flush of the write-behind queue.
+     */
+    private static final int MAX_PENDING_WRITES = 50;
+
+    /**
+     * How long a write may stay in the write-behind queue.
+     */
+    private static final long WRITE_BEHIND_DELAY_MILLIS = 1000;
+
     private static TaskRepository INSTANCE = null;
     private final TaskDataSource taskRemoteDataSource;
     private final TaskDataSource taskLocalDataSource;
 
-    Map<String, Task> cachedTasks;
+    /**
+     * Safe to read from any thread without locking. This variable has package local visibility
+     * so it can be accessed from tests.
+     */
+    final TasksCache cachedTasks;
+
+    /**
+     * Active and completed counts for when {@link #cachedTasks} isn't fully loaded.
+     */
+    private final TaskCounter taskCounter = new TaskCounter();
+
+    /**
+     * Rules out ids of tasks that don't exist, see {@link KnownTaskIds}.
+     */
+    private final KnownTaskIds knownTaskIds = new KnownTaskIds();
+
+    /**
+     * Changes not confirmed by the server yet, see {@link TaskWriteTracker}.
+     */
+    private final TaskWriteTracker writeTracker = new TaskWriteTracker();
+
+    private final TaskWriteListener remoteWriteListener = new TaskWriteListener() {
+        @Override
+        public void onWritesConfirmed(@NonNull List<TaskMutation> mutations) {
+            for (TaskMutation mutation : mutations) {
+                if (mutation.getTaskId() != null) {
+                    writeTracker.onConfirmed(mutation, getTaskWithId(mutation.getTaskId()));
+                }
+            }
+        }
+
+        @Override
+        public void onWritesRejected(@NonNull List<TaskMutation> mutations) {
+            rollBack(mutations);
+        }
+    };
 
     /**
      * Marks the cache as invalid, to force an update the next time data is requested. This variable
      * has package local visibility so it can be accessed from tests.
      */
-    boolean cacheIsDirty = false;
+    volatile boolean cacheIsDirty = false;
+
+    /**
+     * Outcome of the most recent merge of remote data into the local data source, or null if no
+     * merge happened yet.
+     */
+    private TaskMergeResult lastMergeResult;
+
+    private final List<TasksObserver> observers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Task list loads in flight from the local data source, by filter, and from the remote data
+     * source, so that concurrent callers share one query.
+     */
+    private final InFlightLoads<TasksFilterType, LoadTasksCallback> localTaskListLoads =
+            new InFlightLoads<>();
+
+    private final InFlightLoads<TasksFilterType, LoadTasksCallback> remoteTaskListLoads =
+            new InFlightLoads<>();
+
+    private volatile LookupMode lookupMode = LookupMode.SEQUENTIAL;
+
+    /**
+     * Where refreshes get the changes since the last sync from, and where its token is kept.
+     * Both null while refreshes download the whole list.
+     */
+    @Nullable
+    private volatile TaskSyncSource syncSource;
+
+    @Nullable
+    private volatile TaskSyncStore syncStore;
+
+    private volatile long hedgeDelayMillis;
+
+    /**
+     * Runs delayed repository work: hedged remote lookups and write-behind flushes.
+     */
+    private final Scheduler scheduler;
+
+    /**
+     * The thread behind {@link #scheduler} if the repository created it, shut down by
+     * {@link #destroyInstance()}.
+     */
+    @Nullable
+    private final ScheduledExecutorService ownedExecutor;
+
+    /**
+     * Batches writes to the data sources. Flushed before any data source is read, so reads
+     * always see the writes made through this repository.
+     */
+    private final WriteBehindQueue writeBehind;
+
+    /**
+     * Single task loads in flight, by task id.
+     */
+    private final InFlightLoads<String, GetTaskCallback> taskLoads = new InFlightLoads<>();
+
+    /**
+     * True while expired tasks are being reloaded from the remote data source. Only accessed on
+     * the main thread, like the callbacks that change it.
+     */
+    private boolean refreshingExpiredTasks;
+
+    /**
+     * Run once the refresh of expired tasks in progress is done.
+     */
+    private final List<Runnable> expiredTasksRefreshListeners = new ArrayList<>();
 
-    private TaskRepository(@NonNull TaskDataSource taskRemoteDataSource, @NonNull TaskDataSource taskLocalDataSource) {
+    private TaskRepository(@NonNull TaskDataSource taskRemoteDataSource, @NonNull TaskDataSource taskLocalDataSource,
+                           @NonNull Clock clock, @NonNull Scheduler scheduler,
+                           @Nullable ScheduledExecutorService ownedExecutor) {
         this.taskRemoteDataSource = checkNotNull(taskRemoteDataSource);
         this.taskLocalDataSource = checkNotNull(taskLocalDataSource);
+        cachedTasks = new TasksCache(clock);
+        this.scheduler = checkNotNull(scheduler);
+        this.ownedExecutor = ownedExecutor;
+        writeBehind = new WriteBehindQueue(
+                Arrays.asList(taskRemoteDataSource, taskLocalDataSource),
+                MAX_PENDING_WRITES, WRITE_BEHIND_DELAY_MILLIS, scheduler);
     }
 
     public static TaskRepository getInstance(TaskDataSource taskRemoteDataSource, TaskDataSource taskLocalDataSource) {
         if (INSTANCE == null) {
-            INSTANCE = new TaskRepository(taskRemoteDataSource, taskLocalDataSource);
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("task-repository-%d")
+                            .setDaemon(true)
+                            .build());
+            INSTANCE = new TaskRepository(taskRemoteDataSource, taskLocalDataSource, Clock.SYSTEM,
+                    Scheduler.from(executor), executor);
         }
         return INSTANCE;
     }
 
+    /**
+     * Same as {@link #getInstance(TaskDataSource, TaskDataSource)}, with the cache expiring its
+     * tasks in the time of {@code clock} and delayed work run by {@code scheduler}.
+     */
+    @VisibleForTesting
+    static TaskRepository getInstance(TaskDataSource taskRemoteDataSource, TaskDataSource taskLocalDataSource,
+                                      Clock clock, Scheduler scheduler) {
+        if (INSTANCE == null) {
+            INSTANCE = new TaskRepository(taskRemoteDataSource, taskLocalDataSource, clock,
+                    scheduler, null);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Forgets the instance after writing its pending writes, and stops the thread it created
+     * for delayed work.
+     */
     public static void destroyInstance() {
+        if (INSTANCE != null) {
+            INSTANCE.writeBehind.flush();
+            if (INSTANCE.ownedExecutor != null) {
+                INSTANCE.ownedExecutor.shutdownNow();
+            }
+        }
         INSTANCE = null;
     }
 
@@ -61,225 +305,1700 @@ public class TaskRepository implements TaskDataSource {
         checkNotNull(callback);
 
         // Respond immediately with cache if available and not dirty
-        if (cachedTasks != null && !cacheIsDirty) {
-            callback.onTasksLoaded(new ArrayList<Task>(cachedTasks.values()));
+        if (cachedTasks.isLoaded() && !cacheIsDirty) {
+            answerFromCache(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onTasksLoaded(cachedTasks.getTasks());
+                }
+            });
             return;
         }
 
         if (cacheIsDirty) {
             // If the cache is dirty we need to fetch new data from the network.
             getTasksFromRemoteDataSource(callback);
-        } else {
-            taskLocalDataSource.getTasks(new LoadTasksCallback() {
-                @Override
-                public void onTasksLoaded(List<Task> tasks) {
+            return;
+        }
+
+        InFlightLoads.Load<LoadTasksCallback> load =
+                localTaskListLoads.join(TasksFilterType.ALL_TASKS, callback);
+        if (load == null) {
+            return;
+        }
+        final LoadTasksCallback waitingCallbacks =
+                completeTaskListLoad(localTaskListLoads, TasksFilterType.ALL_TASKS, load);
+        writeBehind.flush();
+        taskLocalDataSource.getTasks(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                if (cacheIsDirty) {
+                    // Refreshed while the query ran, the cache still has to be reloaded.
+                    loadCache(tasks);
+                } else {
                     refreshCache(tasks);
-                    callback.onTasksLoaded(new ArrayList<Task>(cachedTasks.values()));
                 }
+                waitingCallbacks.onTasksLoaded(cachedTasks.getTasks());
+            }
 
-                @Override
-                public void onDataNotAvailable() {
-                    getTasksFromRemoteDataSource(callback);
-                }
-            });
-        }
+            @Override
+            public void onDataNotAvailable() {
+                getTasksFromRemoteDataSource(waitingCallbacks);
+            }
+        });
     }
 
     /**
-     * Gets tasks from local data source (sqlite) unless the table is new or empty. In that case it
-     * uses the network data source. This is done to simplify the sample.
+     * Gets the tasks matching {@code filtering}. A warm cache answers from its per-filter indexes
+     * in time proportional to the result. A cold cache pushes the filter down to the local data
+     * source, so only the matching rows are read.
      * <p>
-     * Note: {@link GetTaskCallback#onDataNotAvailable()} is fired if both data sources fail to
+     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if all data sources fail to
      * get the data.
      */
     @Override
-    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
-        checkNotNull(taskId);
+    public void getTasks(@NonNull final TasksFilterType filtering,
+                         @NonNull final LoadTasksCallback callback) {
+        checkNotNull(filtering);
         checkNotNull(callback);
 
-        final Task cachedTask = getTaskWithId(taskId);
-
-        // Respond immediately with cache if available
-        if (cachedTask != null) {
-            callback.onTaskLoaded(cachedTask);
+        // Respond immediately with cache if available and not dirty
+        if (cachedTasks.isLoaded() && !cacheIsDirty) {
+            answerFromCache(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onTasksLoaded(cachedTasks.getTasks(filtering));
+                }
+            });
             return;
         }
 
-        // Load from server/persisted if needed.
+        if (cacheIsDirty || filtering == TasksFilterType.ALL_TASKS) {
+            getTasks(filterFromCache(filtering, callback));
+            return;
+        }
 
-        // Is the task in the local data source? If not, query the network.
-        taskLocalDataSource.getTask(taskId, new GetTaskCallback() {
+        InFlightLoads.Load<LoadTasksCallback> load = localTaskListLoads.join(filtering, callback);
+        if (load == null) {
+            return;
+        }
+        final LoadTasksCallback waitingCallbacks =
+                completeTaskListLoad(localTaskListLoads, filtering, load);
+        writeBehind.flush();
+        taskLocalDataSource.getTasks(filtering, new LoadTasksCallback() {
             @Override
-            public void onTaskLoaded(Task task) {
-                // Do in memory cache update to keep the app UI up to date
-                if (cachedTasks == null) {
-                    cachedTasks = new LinkedHashMap();
-                }
-                cachedTasks.put(taskId, task);
-                callback.onTaskLoaded(task);
+            public void onTasksLoaded(List<Task> tasks) {
+                // Only part of the tasks is known, so the cache stays not loaded.
+                cachedTasks.putAll(tasks);
+                waitingCallbacks.onTasksLoaded(tasks);
             }
 
             @Override
             public void onDataNotAvailable() {
-                taskRemoteDataSource.getTask(taskId, new GetTaskCallback() {
-                    @Override
-                    public void onTaskLoaded(Task task) {
-                        // Do in memory cache update to keep the app UI up to date
-                        if (cachedTasks == null) {
-                            cachedTasks = new LinkedHashMap();
-                        }
-                        cachedTasks.put(taskId, task);
-                        callback.onTaskLoaded(task);
-                    }
-
-                    @Override
-                    public void onDataNotAvailable() {
-                        callback.onDataNotAvailable();
-                    }
-                });
+                // Either nothing matches or the table is empty and the server has to be asked,
+                // the full load tells those apart.
+                getTasks(filterFromCache(filtering, waitingCallbacks));
             }
         });
     }
 
-    @Override
-    public void saveTask(@NonNull Task task) {
-        checkNotNull(task);
-
-        taskRemoteDataSource.saveTask(task);
-        taskLocalDataSource.saveTask(task);
-
-        // Do in memory cache update to keep the app UI up to date
-        if (cachedTasks == null) {
-            cachedTasks = new LinkedHashMap<>();
-        }
-        cachedTasks.put(task.getId(), task);
-    }
-
-    @Override
-    public void completeTask(@NonNull Task task) {
-        checkNotNull(task);
-
-        taskRemoteDataSource.completeTask(task);
-        taskLocalDataSource.completeTask(task);
-
-        Task completedTask = new Task(task.getTitle(), task.getDescription(), task.getId(), true);
-
-        // Do in memory cache update to keep the app UI up to date
-        if (cachedTasks == null) {
-            cachedTasks = new LinkedHashMap<>();
-        }
-        cachedTasks.put(task.getId(), completedTask);
-    }
-
-    @Override
-    public void completeTask(@NonNull String taskId) {
-        checkNotNull(taskId);
-        completeTask(getTaskWithId(taskId));
-    }
-
-    @Override
-    public void activateTask(@NonNull Task task) {
-        checkNotNull(task);
-
-        taskRemoteDataSource.activateTask(task);
-        taskLocalDataSource.activateTask(task);
-
-        Task activeTask = new Task(task.getTitle(), task.getDescription(), task.getId());
+    /**
+     * Same as {@link #getTasks(TasksFilterType, LoadTasksCallback)}, except that with
+     * {@link RefreshMode#STALE_WHILE_REVALIDATE} a pending refresh doesn't delay the answer: the
+     * known tasks are delivered as stale first and the refresh runs in the background.
+     */
+    public void getTasks(@NonNull TasksFilterType filtering, @NonNull RefreshMode mode,
+                         @NonNull final RevalidatingLoadTasksCallback callback) {
+        checkNotNull(filtering);
+        checkNotNull(mode);
+        checkNotNull(callback);
 
-        // Do in memory cache update to keep the app UI up to date
-        if (cachedTasks == null) {
-            cachedTasks = new LinkedHashMap<>();
+        if (mode == RefreshMode.BLOCKING || !cacheIsDirty) {
+            getTasks(filtering, (LoadTasksCallback) callback);
+            return;
         }
-        cachedTasks.put(task.getId(), activeTask);
-    }
-
-    @Override
-    public void activateTask(@NonNull String taskId) {
-        checkNotNull(taskId);
-        activateTask(getTaskWithId(taskId));
-    }
 
-    @Override
-    public void clearCompletedTasks() {
-        taskRemoteDataSource.clearCompletedTasks();
-        taskLocalDataSource.clearCompletedTasks();
+        final AtomicBoolean freshDelivered = new AtomicBoolean();
+        loadStaleTasks(filtering, freshDelivered, new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onStaleTasksLoaded(tasks);
+            }
 
-        // Do in memory cache update to keep the app UI up to date
-        if (cachedTasks == null) {
-            cachedTasks = new LinkedHashMap<>();
-        }
-        Iterator<Map.Entry<String, Task>> it = cachedTasks.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Task> entry = it.next();
-            if (entry.getValue().isCompleted()) {
-                it.remove();
+            @Override
+            public void onDataNotAvailable() {
+            }
+        });
+        getTasks(filtering, new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                freshDelivered.set(true);
+                callback.onTasksLoaded(tasks);
             }
-        }
-    }
 
-    public void refreshTasks() {
-        cacheIsDirty = true;
+            @Override
+            public void onDataNotAvailable() {
+                freshDelivered.set(true);
+                callback.onDataNotAvailable();
+            }
+        });
     }
 
+    /**
+     * Gets one page of the tasks matching {@code filtering}.
+     * <p>
+     * Pages are read from the local data source, so a cold start only reads the rows that are
+     * shown; page keys are the local data source's. When the tasks are already all in memory,
+     * or have to come from the remote data source, the first page is the whole filtered list
+     * and has no next page.
+     * <p>
+     * Note: {@link LoadTaskPageCallback#onDataNotAvailable()} is fired if all data sources fail to
+     * get the data.
+     */
     @Override
-    public void deleteAllTasks() {
-        taskLocalDataSource.deleteAllTasks();
-        taskRemoteDataSource.deleteAllTasks();
+    public void getTaskPage(@NonNull final TasksFilterType filtering, int pageSize,
+                            @Nullable final String pageKey,
+                            @NonNull final LoadTaskPageCallback callback) {
+        checkNotNull(filtering);
+        checkNotNull(callback);
 
-        if (cachedTasks == null) {
-            cachedTasks = new LinkedHashMap<>();
+        // A key always continues the local data source's pages, whatever answered the first one.
+        // Respond immediately with cache if available and not dirty
+        if (pageKey == null && cachedTasks.isLoaded() && !cacheIsDirty) {
+            answerFromCache(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onTaskPageLoaded(new TaskPage(cachedTasks.getTasks(filtering), null));
+                }
+            });
+            return;
         }
-        cachedTasks.clear();
-    }
 
-    @Override
-    public void deleteTask(@NonNull String taskId) {
-        taskLocalDataSource.deleteTask(checkNotNull(taskId));
-        taskRemoteDataSource.deleteTask(checkNotNull(taskId));
+        final LoadTasksCallback singlePageCallback = new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onTaskPageLoaded(new TaskPage(cachedTasks.getTasks(filtering), null));
+            }
 
-        cachedTasks.remove(taskId);
-    }
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        };
 
-    private void refreshCache(List<Task> tasks) {
-        if (cachedTasks == null) {
-            cachedTasks = new LinkedHashMap<>();
-        }
-        cachedTasks.clear();
-        for (Task task : tasks) {
-            cachedTasks.put(task.getId(), task);
+        if (pageKey == null && cacheIsDirty) {
+            getTasks(singlePageCallback);
+            return;
         }
-        cacheIsDirty = false;
-    }
 
-    private void getTasksFromRemoteDataSource(@NonNull final LoadTasksCallback callback) {
-        taskRemoteDataSource.getTasks(new LoadTasksCallback() {
+        writeBehind.flush();
+        taskLocalDataSource.getTaskPage(filtering, pageSize, pageKey, new LoadTaskPageCallback() {
             @Override
-            public void onTasksLoaded(List<Task> tasks) {
-                refreshCache(tasks);
-                refreshLocalDataSource(tasks);
-                callback.onTasksLoaded(tasks);
+            public void onTaskPageLoaded(TaskPage page) {
+                // Only part of the tasks is known, so the cache stays not loaded.
+                cachedTasks.putAll(page.getTasks());
+                callback.onTaskPageLoaded(page);
             }
 
             @Override
             public void onDataNotAvailable() {
-                callback.onDataNotAvailable();
+                // Either nothing matches or the table is empty and the server has to be asked,
+                // the full load tells those apart.
+                getTasks(singlePageCallback);
             }
         });
     }
 
-    private void refreshLocalDataSource(List<Task> tasks) {
-        taskLocalDataSource.deleteAllTasks();
-        for (Task task : tasks) {
-            taskLocalDataSource.saveTask(task);
-        }
-    }
-
-    private Task getTaskWithId(String taskId) {
+    /**
+     * Streams the tasks matching {@code filtering} from the cache, the local data source or the
+     * remote data source, forwarding every chunk as soon as it arrives. Once a full list has been
+     * streamed it becomes the cache content, exactly as with {@link #getTasks(LoadTasksCallback)}.
+     * <p>
+     * Note: {@link StreamTasksCallback#onDataNotAvailable()} is fired if all data sources fail to
+     * get the data.
+     */
+    @Override
+    public void streamTasks(@NonNull final TasksFilterType filtering, final int chunkSize,
+                            @NonNull final StreamTasksCallback callback) {
+        checkNotNull(filtering);
+        checkNotNull(callback);
+
+        // Respond immediately with cache if available and not dirty
+        if (cachedTasks.isLoaded() && !cacheIsDirty) {
+            answerFromCache(new Runnable() {
+                @Override
+                public void run() {
+                    streamInChunks(cachedTasks.getTasks(filtering), chunkSize, callback);
+                }
+            });
+            return;
+        }
+
+        if (cacheIsDirty) {
+            streamTasksFromRemoteDataSource(filtering, chunkSize, callback);
+            return;
+        }
+
+        writeBehind.flush();
+        taskLocalDataSource.streamTasks(filtering, chunkSize, new StreamTasksCallback() {
+            private final List<Task> streamedTasks = new ArrayList<>();
+
+            @Override
+            public void onTasksChunkLoaded(List<Task> tasks) {
+                if (filtering == TasksFilterType.ALL_TASKS) {
+                    streamedTasks.addAll(tasks);
+                } else {
+                    // Only part of the tasks is known, so the cache stays not loaded.
+                    cachedTasks.putAll(tasks);
+                }
+                callback.onTasksChunkLoaded(tasks);
+            }
+
+            @Override
+            public void onTasksStreamComplete() {
+                if (filtering == TasksFilterType.ALL_TASKS) {
+                    refreshCache(streamedTasks);
+                }
+                callback.onTasksStreamComplete();
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                if (filtering == TasksFilterType.ALL_TASKS) {
+                    streamTasksFromRemoteDataSource(filtering, chunkSize, callback);
+                } else {
+                    // Either nothing matches or the table is empty and the server has to be
+                    // asked, the full load tells those apart.
+                    getTasks(new LoadTasksCallback() {
+                        @Override
+                        public void onTasksLoaded(List<Task> tasks) {
+                            List<Task> filteredTasks = cachedTasks.getTasks(filtering);
+                            if (!filteredTasks.isEmpty()) {
+                                callback.onTasksChunkLoaded(filteredTasks);
+                            }
+                            callback.onTasksStreamComplete();
+                        }
+
+                        @Override
+                        public void onDataNotAvailable() {
+                            callback.onDataNotAvailable();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #streamTasks(TasksFilterType, int, StreamTasksCallback)}, except that with
+     * {@link RefreshMode#STALE_WHILE_REVALIDATE} the known tasks are delivered as stale before
+     * the fresh chunks arrive.
+     */
+    public void streamTasks(@NonNull TasksFilterType filtering, int chunkSize,
+                            @NonNull RefreshMode mode,
+                            @NonNull final RevalidatingStreamTasksCallback callback) {
+        checkNotNull(filtering);
+        checkNotNull(mode);
+        checkNotNull(callback);
+
+        if (mode == RefreshMode.BLOCKING || !cacheIsDirty) {
+            streamTasks(filtering, chunkSize, (StreamTasksCallback) callback);
+            return;
+        }
+
+        final AtomicBoolean freshDelivered = new AtomicBoolean();
+        loadStaleTasks(filtering, freshDelivered, new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onStaleTasksLoaded(tasks);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+            }
+        });
+        streamTasks(filtering, chunkSize, new StreamTasksCallback() {
+            @Override
+            public void onTasksChunkLoaded(List<Task> tasks) {
+                freshDelivered.set(true);
+                callback.onTasksChunkLoaded(tasks);
+            }
+
+            @Override
+            public void onTasksStreamComplete() {
+                freshDelivered.set(true);
+                callback.onTasksStreamComplete();
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                freshDelivered.set(true);
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * Gets the number of active and completed tasks without materializing any task when
+     * possible: from the cache indexes if the cache is loaded, from the running counters, or from
+     * a count query on the local data source that seeds the counters.
+     */
+    @Override
+    public void getTaskCounts(@NonNull final GetTaskCountsCallback callback) {
+        checkNotNull(callback);
+
+        if (cachedTasks.isLoaded() && !cacheIsDirty) {
+            callback.onTaskCountsLoaded(cachedTasks.getActiveCount(), cachedTasks.getCompletedCount());
+            return;
+        }
+
+        if (cacheIsDirty) {
+            getTaskCountsFromCache(callback);
+            return;
+        }
+
+        synchronized (taskCounter) {
+            if (taskCounter.isKnown()) {
+                callback.onTaskCountsLoaded(taskCounter.getActiveCount(), taskCounter.getCompletedCount());
+                return;
+            }
+        }
+
+        final int generation = taskCounter.getGeneration();
+        writeBehind.flush();
+        taskLocalDataSource.getTaskCounts(new GetTaskCountsCallback() {
+            @Override
+            public void onTaskCountsLoaded(int activeCount, int completedCount) {
+                taskCounter.seed(generation, activeCount, completedCount);
+                callback.onTaskCountsLoaded(activeCount, completedCount);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                getTaskCountsFromCache(callback);
+            }
+        });
+    }
+
+    /**
+     * Gets the task from the cache, or else from the local and remote data sources as set by
+     * {@link #setLookupMode(LookupMode, long)}: by default the network data source is only used
+     * if the task isn't stored locally.
+     * <p>
+     * Note: {@link GetTaskCallback#onDataNotAvailable()} is fired if both data sources fail to
+     * get the data.
+     */
+    @Override
+    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
+        checkNotNull(taskId);
+        checkNotNull(callback);
+
+        final Task cachedTask = getTaskWithId(taskId);
+
+        // Reject ids known not to exist without any I/O.
+        if (cachedTask == null && knownTaskIds.isCertainlyMissing(taskId)) {
+            callback.onDataNotAvailable();
+            return;
+        }
+
+        // Respond immediately with cache if available
+        if (cachedTask != null && !cachedTasks.isTooStale(taskId)) {
+            callback.onTaskLoaded(cachedTask);
+            refreshExpiredTasks(null);
+            return;
+        }
+
+        if (cachedTask != null) {
+            // Too stale to be served, wait for it to be reloaded.
+            refreshExpiredTasks(new Runnable() {
+                @Override
+                public void run() {
+                    Task task = getTaskWithId(taskId);
+                    if (task != null) {
+                        callback.onTaskLoaded(task);
+                    } else {
+                        callback.onDataNotAvailable();
+                    }
+                }
+            });
+            return;
+        }
+
+        // Load from server/persisted if needed.
+
+        // Share the load with identical ones in flight.
+        final InFlightLoads.Load<GetTaskCallback> load = taskLoads.join(taskId, callback);
+        if (load == null) {
+            return;
+        }
+        final GetTaskCallback waitingCallbacks = new GetTaskCallback() {
+            @Override
+            public void onTaskLoaded(Task task) {
+                for (GetTaskCallback waitingCallback : taskLoads.complete(taskId, load)) {
+                    waitingCallback.onTaskLoaded(task);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                for (GetTaskCallback waitingCallback : taskLoads.complete(taskId, load)) {
+                    waitingCallback.onDataNotAvailable();
+                }
+            }
+        };
+
+        new TaskLookup(taskId, waitingCallbacks).start();
+    }
+
+    /**
+     * Gets the tasks with the given ids from the cache, then the ones missing from it with one
+     * request to the local data source, then the ones still missing with one request to the remote
+     * data source. Tasks are returned in the order of {@code taskIds}; ids without a task are
+     * skipped.
+     * <p>
+     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if none of the ids has a task.
+     */
+    @Override
+    public void getTasks(@NonNull Collection<String> taskIds,
+                         @NonNull LoadTasksCallback callback) {
+        checkNotNull(taskIds);
+        checkNotNull(callback);
+
+        TaskBatchLookup lookup = new TaskBatchLookup(taskIds, callback);
+        for (String taskId : lookup.taskIds) {
+            Task cachedTask = getTaskWithId(taskId);
+            if (cachedTask != null && !cachedTasks.isTooStale(taskId)) {
+                lookup.foundTasks.put(taskId, cachedTask);
+            } else if (cachedTask != null) {
+                // The local copy can't be fresher than the cached one.
+                lookup.remoteTaskIds.add(taskId);
+            } else if (!knownTaskIds.isCertainlyMissing(taskId)) {
+                lookup.localTaskIds.add(taskId);
+            }
+        }
+        lookup.start();
+        refreshExpiredTasks(null);
+    }
+
+    @Override
+    public void saveTask(@NonNull Task task) {
+        checkNotNull(task);
+
+        trackLocalWrite(task.getId(), null);
+        writeBehind.save(task);
+
+        // Do in memory cache update to keep the app UI up to date
+        notifyTasksChanged(Collections.singletonList(putInCache(task, null)));
+    }
+
+    @Override
+    public void saveTasks(@NonNull Collection<Task> tasks) {
+        checkNotNull(tasks);
+
+        for (Task task : tasks) {
+            trackLocalWrite(task.getId(), null);
+            writeBehind.save(task);
+        }
+
+        // Do in memory cache update to keep the app UI up to date
+        List<TaskChange> changes = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            changes.add(putInCache(task, null));
+        }
+        notifyTasksChanged(changes);
+    }
+
+    @Override
+    public void replaceAllTasks(@NonNull Collection<Task> tasks) {
+        checkNotNull(tasks);
+
+        writeBehind.flush();
+        taskRemoteDataSource.replaceAllTasks(tasks);
+        taskLocalDataSource.replaceAllTasks(tasks);
+        // The server drops every earlier write, so they will never be confirmed.
+        writeTracker.clear();
+
+        // The tasks become the full list of the server.
+        refreshCacheFromServer(tasks);
+    }
+
+    @Override
+    public void completeTask(@NonNull Task task) {
+        checkNotNull(task);
+
+        Task completedTask = new Task(task.getTitle(), task.getDescription(), task.getId(), true);
+        trackLocalWrite(task.getId(), task);
+        writeBehind.save(completedTask);
+
+        // Do in memory cache update to keep the app UI up to date
+        notifyTasksChanged(Collections.singletonList(putInCache(completedTask, task)));
+    }
+
+    @Override
+    public void completeTask(@NonNull String taskId) {
+        checkNotNull(taskId);
+        completeTask(getTaskWithId(taskId));
+    }
+
+    @Override
+    public void activateTask(@NonNull Task task) {
+        checkNotNull(task);
+
+        Task activeTask = new Task(task.getTitle(), task.getDescription(), task.getId(), false);
+        trackLocalWrite(task.getId(), task);
+        writeBehind.save(activeTask);
+
+        // Do in memory cache update to keep the app UI up to date
+        notifyTasksChanged(Collections.singletonList(putInCache(activeTask, task)));
+    }
+
+    @Override
+    public void activateTask(@NonNull String taskId) {
         checkNotNull(taskId);
-        if (cachedTasks == null || cachedTasks.isEmpty()) {
-            return null;
+        activateTask(getTaskWithId(taskId));
+    }
+
+    /**
+     * Updates the cache right away and each data source with a single batch.
+     */
+    @Override
+    public void completeTasks(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds);
+
+        // A pending save of one of these tasks would otherwise undo the update once flushed.
+        writeBehind.flush();
+        taskRemoteDataSource.completeTasks(taskIds);
+        taskLocalDataSource.completeTasks(taskIds);
+
+        // Do in memory cache update to keep the app UI up to date
+        notifyTasksChanged(setCompletedInCache(taskIds, true));
+    }
+
+    /**
+     * Updates the cache right away and each data source with a single batch.
+     */
+    @Override
+    public void activateTasks(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds);
+
+        // A pending save of one of these tasks would otherwise undo the update once flushed.
+        writeBehind.flush();
+        taskRemoteDataSource.activateTasks(taskIds);
+        taskLocalDataSource.activateTasks(taskIds);
+
+        // Do in memory cache update to keep the app UI up to date
+        notifyTasksChanged(setCompletedInCache(taskIds, false));
+    }
+
+    @Override
+    public void clearCompletedTasks() {
+        writeBehind.flush();
+        taskRemoteDataSource.clearCompletedTasks();
+        taskLocalDataSource.clearCompletedTasks();
+
+        // Do in memory cache update to keep the app UI up to date
+        taskCounter.onCompletedTasksCleared();
+        notifyTasksChanged(toRemovedChanges(cachedTasks.removeCompleted()));
+    }
+
+    /**
+     * Returns true if {@code taskId} has local changes the server hasn't confirmed yet.
+     */
+    public boolean isTaskPending(@NonNull String taskId) {
+        return writeTracker.isPending(checkNotNull(taskId));
+    }
+
+    /**
+     * Returns the listener the remote data source reports the server's answers to writes to.
+     */
+    @NonNull
+    public TaskWriteListener getRemoteWriteListener() {
+        return remoteWriteListener;
+    }
+
+    /**
+     * Writes all changes still waiting in the write-behind queue to the data sources now, e.g.
+     * before the app goes to the background.
+     */
+    public void flushPendingWrites() {
+        writeBehind.flush();
+    }
+
+    /**
+     * Marks the cache dirty, so the next read reloads it from the remote data source. Loads in
+     * flight started before the refresh still answer their callers, but later reads don't join
+     * them.
+     */
+    public void refreshTasks() {
+        cacheIsDirty = true;
+        localTaskListLoads.startOver();
+        remoteTaskListLoads.startOver();
+        taskLoads.startOver();
+        // The server may have tasks that were never seen here.
+        knownTaskIds.invalidate();
+    }
+
+    @Override
+    public void deleteAllTasks() {
+        writeBehind.flush();
+        taskLocalDataSource.deleteAllTasks();
+        taskRemoteDataSource.deleteAllTasks();
+        // The server drops every earlier write, so they will never be confirmed.
+        writeTracker.clear();
+
+        taskCounter.onAllTasksDeleted();
+        notifyTasksChanged(toRemovedChanges(cachedTasks.clear()));
+    }
+
+    @Override
+    public void deleteTask(@NonNull String taskId) {
+        trackLocalWrite(checkNotNull(taskId), null);
+        writeBehind.delete(taskId);
+
+        knownTaskIds.markMissing(taskId);
+        Task removed = cachedTasks.remove(taskId);
+        if (removed != null) {
+            taskCounter.onTaskRemoved(removed);
+            notifyTasksChanged(Collections.singletonList(TaskChange.removed(taskId)));
         } else {
-            return cachedTasks.get(taskId);
+            taskCounter.invalidate();
         }
     }
+
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds);
+
+        for (String taskId : taskIds) {
+            trackLocalWrite(taskId, null);
+            writeBehind.delete(taskId);
+            knownTaskIds.markMissing(taskId);
+            Task cachedTask = cachedTasks.get(taskId);
+            if (cachedTask != null) {
+                taskCounter.onTaskRemoved(cachedTask);
+            } else {
+                taskCounter.invalidate();
+            }
+        }
+        notifyTasksChanged(toRemovedChanges(cachedTasks.removeAll(taskIds)));
+    }
+
+    /**
+     * Sets how single tasks missing from the cache are looked up.
+     *
+     * @param hedgeDelayMillis for {@link LookupMode#HEDGED}, how long the local data source has
+     *                         to answer before the remote data source is queried as well
+     */
+    public void setLookupMode(@NonNull LookupMode mode, long hedgeDelayMillis) {
+        checkArgument(hedgeDelayMillis >= 0, "hedgeDelayMillis must not be negative");
+        this.hedgeDelayMillis = hedgeDelayMillis;
+        this.lookupMode = checkNotNull(mode);
+    }
+
+    /**
+     * Returns how many task and task list loads were sent to a data source.
+     */
+    public int getStartedLoadCount() {
+        return localTaskListLoads.getStartedCount() + remoteTaskListLoads.getStartedCount()
+                + taskLoads.getStartedCount();
+    }
+
+    /**
+     * Returns how many {@code getTasks} and {@code getTask} calls were answered by a load
+     * already in flight instead of sending their own.
+     */
+    public int getDeduplicatedLoadCount() {
+        return localTaskListLoads.getDeduplicatedCount() + remoteTaskListLoads.getDeduplicatedCount()
+                + taskLoads.getDeduplicatedCount();
+    }
+
+    /**
+     * Sets how long cached tasks stay fresh. Expired tasks are reloaded one by one in the
+     * background when they are read, tasks past the max staleness are reloaded before they are
+     * served (or served anyway if the remote data source can't be reached). The default policy
+     * never expires tasks.
+     */
+    public void setCachePolicy(@NonNull CachePolicy policy) {
+        cachedTasks.setPolicy(policy);
+    }
+
+    /**
+     * Makes refreshes ask {@code source} only for the changes since the last sync, whose token is
+     * kept by {@code store}, instead of downloading every task. {@code store} has to be the local
+     * data source, as the token is only valid for the tasks stored with it.
+     */
+    public void setDeltaSync(@NonNull TaskSyncSource source, @NonNull TaskSyncStore store) {
+        syncStore = checkNotNull(store);
+        syncSource = checkNotNull(source);
+    }
+
+    /**
+     * Compares the stored tasks with the server's through their {@link TaskHashTree}s and
+     * downloads only the tasks that differ, for when the stored tasks may no longer match their
+     * sync token, like after restoring the database from a backup. Needs
+     * {@link #setDeltaSync(TaskSyncSource, TaskSyncStore)}.
+     */
+    public void repairDivergence(@NonNull LoadTasksCallback callback) {
+        checkNotNull(callback);
+        checkState(syncSource != null, "Delta sync isn't set up");
+        writeBehind.flush();
+        syncWithRemoteDataSource(callback, true);
+    }
+
+    /**
+     * Reloads only the expired cached tasks from the remote data source, instead of every task
+     * like {@link #refreshTasks()}. Tasks changed locally while they were reloaded keep the local
+     * change, tasks gone from the server are removed.
+     */
+    public void refreshExpiredTasks() {
+        refreshExpiredTasks(null);
+    }
+
+    /**
+     * Registers {@code observer} to be told about every single-task change made through this
+     * repository. Full reloads are still delivered through {@link #getTasks(LoadTasksCallback)}.
+     */
+    public void addTasksObserver(@NonNull TasksObserver observer) {
+        checkNotNull(observer);
+        if (!observers.contains(observer)) {
+            observers.add(observer);
+        }
+    }
+
+    public void removeTasksObserver(@NonNull TasksObserver observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Returns the counts of the most recent refresh from the remote data source, or null if
+     * there was none yet.
+     */
+    public TaskMergeResult getLastMergeResult() {
+        return lastMergeResult;
+    }
+
+    private void refreshCache(Collection<Task> tasks) {
+        loadCache(tasks);
+        cacheIsDirty = false;
+    }
+
+    /**
+     * Refreshes the cache with the full task list of the server, which also tells which ids
+     * don't exist.
+     */
+    private void refreshCacheFromServer(Collection<Task> tasks) {
+        refreshCache(tasks);
+        knownTaskIds.reset(cachedTasks.getTasks());
+    }
+
+    /**
+     * Fills the cache with {@code tasks} without marking it clean.
+     */
+    private void loadCache(Collection<Task> tasks) {
+        cachedTasks.replaceAll(tasks);
+        // The full list may differ from what the counters were seeded with.
+        taskCounter.invalidate();
+    }
+
+    private void getTasksFromRemoteDataSource(@NonNull LoadTasksCallback callback) {
+        InFlightLoads.Load<LoadTasksCallback> load =
+                remoteTaskListLoads.join(TasksFilterType.ALL_TASKS, callback);
+        if (load == null) {
+            return;
+        }
+        final LoadTasksCallback waitingCallbacks =
+                completeTaskListLoad(remoteTaskListLoads, TasksFilterType.ALL_TASKS, load);
+        writeBehind.flush();
+        if (syncSource != null) {
+            syncWithRemoteDataSource(waitingCallbacks, false);
+            return;
+        }
+        taskRemoteDataSource.getTasks(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                List<Task> storedTasks = getStoredTasksIfLoaded();
+                refreshCacheFromServer(tasks);
+                refreshLocalDataSource(storedTasks, tasks);
+                waitingCallbacks.onTasksLoaded(cachedTasks.getTasks());
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                waitingCallbacks.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * Brings the cache and the local data source up to date with the changes since the last
+     * sync. A delta only applies on top of the tasks stored with its token, so a cold cache is
+     * loaded from the local data source first.
+     */
+    private void syncWithRemoteDataSource(@NonNull final LoadTasksCallback callback,
+                                          final boolean repair) {
+        final TaskSyncSource source = syncSource;
+        final TaskSyncStore store = syncStore;
+        store.getSyncToken(new TaskSyncStore.GetSyncTokenCallback() {
+            @Override
+            public void onSyncTokenLoaded(@Nullable final String syncToken) {
+                if (cachedTasks.isLoaded()) {
+                    syncLoadedCache(source, store, syncToken, repair, callback);
+                    return;
+                }
+                taskLocalDataSource.getTasks(new LoadTasksCallback() {
+                    @Override
+                    public void onTasksLoaded(List<Task> tasks) {
+                        loadCache(tasks);
+                        syncLoadedCache(source, store, syncToken, repair, callback);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        loadCache(Collections.<Task>emptyList());
+                        syncLoadedCache(source, store, syncToken, repair, callback);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Asks for a delta if there is a token to ask with. Otherwise stored tasks are repaired
+     * through their hash tree rather than downloaded again, unless there are none.
+     */
+    private void syncLoadedCache(@NonNull TaskSyncSource source, @NonNull TaskSyncStore store,
+                                 @Nullable String syncToken, boolean repair,
+                                 @NonNull LoadTasksCallback callback) {
+        if ((syncToken != null && !repair) || cachedTasks.isEmpty()) {
+            getChangesSince(source, store, syncToken, callback);
+        } else {
+            repairFromHashTree(source, store, callback);
+        }
+    }
+
+    /**
+     * Downloads the tasks whose digests differ between the hash trees of {@code store} and
+     * {@code source}, and removes those the server no longer has. The token is taken before the
+     * trees are compared, so the next delta repeats any change made meanwhile.
+     * <p>
+     * The remote data source answers a fetch of tasks it no longer has like a failed one, so
+     * when none of the differing tasks can be fetched the repair starts over once: if they were
+     * deleted meanwhile, the new diff finds them removed.
+     */
+    private void repairFromHashTree(@NonNull final TaskSyncSource source,
+                                    @NonNull final TaskSyncStore store,
+                                    @NonNull final LoadTasksCallback callback) {
+        repairFromHashTree(source, store, true, callback);
+    }
+
+    private void repairFromHashTree(@NonNull final TaskSyncSource source,
+                                    @NonNull final TaskSyncStore store,
+                                    final boolean startOverIfNoneFetched,
+                                    @NonNull final LoadTasksCallback callback) {
+        source.getCurrentSyncToken(new TaskSyncSource.GetCurrentSyncTokenCallback() {
+            @Override
+            public void onCurrentSyncTokenLoaded(@NonNull final String syncToken) {
+                new HashTreeDiff(store, source, new HashTreeDiff.Callback() {
+                    @Override
+                    public void onDiffFound(@NonNull Set<String> changedTaskIds,
+                                            @NonNull final Set<String> removedTaskIds) {
+                        if (changedTaskIds.isEmpty()) {
+                            applyRepair(Collections.<Task>emptyList(), removedTaskIds, syncToken,
+                                    store, callback);
+                            return;
+                        }
+                        taskRemoteDataSource.getTasks(changedTaskIds, new LoadTasksCallback() {
+                            @Override
+                            public void onTasksLoaded(List<Task> tasks) {
+                                applyRepair(tasks, removedTaskIds, syncToken, store, callback);
+                            }
+
+                            @Override
+                            public void onDataNotAvailable() {
+                                if (startOverIfNoneFetched) {
+                                    repairFromHashTree(source, store, false, callback);
+                                } else {
+                                    callback.onDataNotAvailable();
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        callback.onDataNotAvailable();
+                    }
+                }).start();
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    private void applyRepair(@NonNull List<Task> changedTasks,
+                             @NonNull Collection<String> removedTaskIds, @NonNull String syncToken,
+                             @NonNull TaskSyncStore store, @NonNull LoadTasksCallback callback) {
+        applyDelta(new TaskDelta(changedTasks, new ArrayList<>(removedTaskIds), syncToken, false),
+                store);
+        // The repaired cache holds every task of the server, plus the pending writes.
+        knownTaskIds.reset(cachedTasks.getTasks());
+        callback.onTasksLoaded(cachedTasks.getTasks());
+    }
+
+    private void getChangesSince(@NonNull TaskSyncSource source, @NonNull final TaskSyncStore store,
+                                 @Nullable String syncToken,
+                                 @NonNull final LoadTasksCallback callback) {
+        source.getChangesSince(syncToken, new TaskSyncSource.GetChangesCallback() {
+            @Override
+            public void onChangesLoaded(@NonNull TaskDelta delta) {
+                if (delta.isFullSync()) {
+                    List<Task> tasks = keepPendingWrites(delta.getChangedTasks());
+                    refreshCacheFromServer(tasks);
+                    store.applyDelta(new TaskDelta(tasks, delta.getDeletedTaskIds(),
+                            delta.getSyncToken(), true));
+                } else {
+                    applyDelta(delta, store);
+                    // Applied on top of the tasks stored with the token, the cache now holds
+                    // every task of the server, plus the pending writes.
+                    knownTaskIds.reset(cachedTasks.getTasks());
+                }
+                callback.onTasksLoaded(cachedTasks.getTasks());
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * Returns the full task list of the server with the local state of the tasks that have
+     * writes the server hasn't confirmed yet, like {@link #applyDelta} does for a delta: their
+     * cached version replaces the server's, tasks created locally are added and tasks deleted
+     * locally are left out.
+     */
+    private List<Task> keepPendingWrites(@NonNull List<Task> serverTasks) {
+        List<Task> tasks = new ArrayList<>(serverTasks.size());
+        Set<String> serverTaskIds = new HashSet<>();
+        for (Task task : serverTasks) {
+            serverTaskIds.add(task.getId());
+            Task localTask = writeTracker.isPending(task.getId())
+                    ? cachedTasks.get(task.getId()) : task;
+            if (localTask != null) {
+                tasks.add(localTask);
+            }
+        }
+        for (Task task : cachedTasks.getTasks()) {
+            if (writeTracker.isPending(task.getId()) && !serverTaskIds.contains(task.getId())) {
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Applies an incremental delta to the cache and the local data source. Tasks with local
+     * writes the server hasn't confirmed yet keep the local state; the server reports them again
+     * once it has those writes.
+     */
+    private void applyDelta(@NonNull TaskDelta delta, @NonNull TaskSyncStore store) {
+        List<Task> changedTasks = new ArrayList<>(delta.getChangedTasks().size());
+        List<String> deletedTaskIds = new ArrayList<>(delta.getDeletedTaskIds().size());
+        List<TaskChange> changes = new ArrayList<>();
+        for (Task task : delta.getChangedTasks()) {
+            if (writeTracker.isPending(task.getId())) {
+                continue;
+            }
+            changedTasks.add(task);
+            Task previous = cachedTasks.get(task.getId());
+            if (!task.equals(previous)) {
+                changes.add(putInCache(task, previous));
+            }
+        }
+        for (String taskId : delta.getDeletedTaskIds()) {
+            if (writeTracker.isPending(taskId)) {
+                continue;
+            }
+            deletedTaskIds.add(taskId);
+            Task removed = cachedTasks.remove(taskId);
+            if (removed != null) {
+                knownTaskIds.markMissing(taskId);
+                taskCounter.onTaskRemoved(removed);
+                changes.add(TaskChange.removed(taskId));
+            }
+        }
+        cacheIsDirty = false;
+        store.applyDelta(new TaskDelta(changedTasks, deletedTaskIds, delta.getSyncToken(), false));
+        notifyTasksChanged(changes);
+    }
+
+    /**
+     * Returns a callback that ends {@code load}, identified by {@code filtering}, and forwards its
+     * result to every callback that joined it.
+     */
+    private static LoadTasksCallback completeTaskListLoad(
+            final InFlightLoads<TasksFilterType, LoadTasksCallback> loads,
+            final TasksFilterType filtering, final InFlightLoads.Load<LoadTasksCallback> load) {
+        return new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                for (LoadTasksCallback callback : loads.complete(filtering, load)) {
+                    callback.onTasksLoaded(tasks);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                for (LoadTasksCallback callback : loads.complete(filtering, load)) {
+                    callback.onDataNotAvailable();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a callback that answers {@code callback} with the cached tasks matching
+     * {@code filtering} once the full list is loaded.
+     */
+    private LoadTasksCallback filterFromCache(final TasksFilterType filtering,
+                                              final LoadTasksCallback callback) {
+        return new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onTasksLoaded(cachedTasks.getTasks(filtering));
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        };
+    }
+
+    /**
+     * Streams all tasks from the remote data source, forwarding the chunks matching
+     * {@code filtering}, then refreshes the cache and the local data source with the full list.
+     * With delta sync, syncs instead and streams the synced cache.
+     */
+    private void streamTasksFromRemoteDataSource(@NonNull final TasksFilterType filtering,
+                                                 final int chunkSize,
+                                                 @NonNull final StreamTasksCallback callback) {
+        if (syncSource != null) {
+            getTasksFromRemoteDataSource(new LoadTasksCallback() {
+                @Override
+                public void onTasksLoaded(List<Task> tasks) {
+                    streamInChunks(cachedTasks.getTasks(filtering), chunkSize, callback);
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    callback.onDataNotAvailable();
+                }
+            });
+            return;
+        }
+        writeBehind.flush();
+        taskRemoteDataSource.streamTasks(TasksFilterType.ALL_TASKS, chunkSize, new StreamTasksCallback() {
+            private final List<Task> streamedTasks = new ArrayList<>();
+
+            @Override
+            public void onTasksChunkLoaded(List<Task> tasks) {
+                streamedTasks.addAll(tasks);
+                List<Task> filteredTasks = filterTasks(tasks, filtering);
+                if (!filteredTasks.isEmpty()) {
+                    callback.onTasksChunkLoaded(filteredTasks);
+                }
+            }
+
+            @Override
+            public void onTasksStreamComplete() {
+                List<Task> storedTasks = getStoredTasksIfLoaded();
+                refreshCacheFromServer(streamedTasks);
+                refreshLocalDataSource(storedTasks, streamedTasks);
+                callback.onTasksStreamComplete();
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    private static void streamInChunks(@NonNull List<Task> tasks, int chunkSize,
+                                       @NonNull StreamTasksCallback callback) {
+        for (int from = 0; from < tasks.size(); from += chunkSize) {
+            callback.onTasksChunkLoaded(
+                    tasks.subList(from, Math.min(from + chunkSize, tasks.size())));
+        }
+        callback.onTasksStreamComplete();
+    }
+
+    /**
+     * Returns what the local data source holds if the cache mirrors it, or null if it's cold.
+     */
+    @Nullable
+    private List<Task> getStoredTasksIfLoaded() {
+        return cachedTasks.isLoaded() ? cachedTasks.getTasks() : null;
+    }
+
+    /**
+     * Diffs {@code remoteTasks} against what is stored locally and writes only the difference:
+     * new and edited tasks are upserted, tasks missing on the server are deleted.
+     *
+     * @param storedTasks the tasks stored locally if known, e.g. from a loaded cache; read from
+     *                    the local data source otherwise
+     */
+    private void refreshLocalDataSource(@Nullable List<Task> storedTasks,
+                                        final List<Task> remoteTasks) {
+        writeBehind.flush();
+        if (storedTasks != null) {
+            applyMerge(TaskMergeResult.compute(storedTasks, remoteTasks));
+            return;
+        }
+        taskLocalDataSource.getTasks(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> localTasks) {
+                applyMerge(TaskMergeResult.compute(localTasks, remoteTasks));
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                applyMerge(TaskMergeResult.compute(new ArrayList<Task>(0), remoteTasks));
+            }
+        });
+    }
+
+    private void applyMerge(TaskMergeResult result) {
+        if (!result.getDeletedTaskIds().isEmpty()) {
+            taskLocalDataSource.deleteTasks(result.getDeletedTaskIds());
+        }
+        List<Task> changedTasks = result.getChangedTasks();
+        if (!changedTasks.isEmpty()) {
+            taskLocalDataSource.saveTasks(changedTasks);
+        }
+        lastMergeResult = result;
+    }
+
+    /**
+     * Runs {@code answer}, which reads the cache, right away unless some cached task is too stale
+     * to be served; in that case it runs once the expired tasks were reloaded. Either way expired
+     * tasks are refreshed in the background.
+     */
+    private void answerFromCache(@NonNull Runnable answer) {
+        if (cachedTasks.hasTooStaleTasks()) {
+            refreshExpiredTasks(answer);
+        } else {
+            answer.run();
+            refreshExpiredTasks(null);
+        }
+    }
+
+    private void refreshExpiredTasks(@Nullable Runnable listener) {
+        if (listener != null) {
+            expiredTasksRefreshListeners.add(listener);
+        }
+        if (refreshingExpiredTasks) {
+            return;
+        }
+
+        List<String> expiredTaskIds = cachedTasks.getExpiredTaskIds();
+        if (expiredTaskIds.isEmpty()) {
+            onExpiredTasksRefreshed();
+            return;
+        }
+
+        refreshingExpiredTasks = true;
+        new ExpiredTasksRefresh(expiredTaskIds).start();
+    }
+
+    private void onExpiredTasksRefreshed() {
+        refreshingExpiredTasks = false;
+        List<Runnable> listeners = new ArrayList<>(expiredTasksRefreshListeners);
+        expiredTasksRefreshListeners.clear();
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Reloads a set of expired tasks from the remote data source and applies the answers in one
+     * batch once all of them arrived. An answer only replaces the cached task if its version
+     * didn't change meanwhile, so local writes made during the refresh win.
+     */
+    private final class ExpiredTasksRefresh {
+
+        private final List<String> taskIds;
+
+        private final List<Task> changedTasks = new ArrayList<>();
+
+        private final List<String> deletedTaskIds = new ArrayList<>();
+
+        private final List<TaskChange> changes = new ArrayList<>();
+
+        private int pending;
+
+        ExpiredTasksRefresh(List<String> taskIds) {
+            this.taskIds = taskIds;
+            pending = taskIds.size();
+        }
+
+        void start() {
+            writeBehind.flush();
+            for (final String taskId : taskIds) {
+                final Task cachedTask = cachedTasks.get(taskId);
+                final TasksCache.EntryStamp stamp = cachedTasks.getStamp(taskId);
+                if (cachedTask == null || stamp == null) {
+                    onTaskDone();
+                    continue;
+                }
+                taskRemoteDataSource.getTask(taskId, new GetTaskCallback() {
+                    @Override
+                    public void onTaskLoaded(Task task) {
+                        if (task == null) {
+                            if (cachedTasks.removeIfUnchanged(taskId, stamp.getVersion())) {
+                                knownTaskIds.markMissing(taskId);
+                                taskCounter.onTaskRemoved(cachedTask);
+                                deletedTaskIds.add(taskId);
+                                changes.add(TaskChange.removed(taskId));
+                            }
+                        } else if (cachedTasks.putIfUnchanged(task, stamp.getVersion())
+                                && !task.equals(cachedTask)) {
+                            taskCounter.onTaskChanged(cachedTask, task);
+                            changedTasks.add(task);
+                            changes.add(TaskChange.updated(task));
+                        }
+                        onTaskDone();
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        // Keep serving the expired task, it is retried on the next read.
+                        onTaskDone();
+                    }
+                });
+            }
+        }
+
+        private void onTaskDone() {
+            if (--pending > 0) {
+                return;
+            }
+            if (!deletedTaskIds.isEmpty()) {
+                taskLocalDataSource.deleteTasks(deletedTaskIds);
+            }
+            if (!changedTasks.isEmpty()) {
+                taskLocalDataSource.saveTasks(changedTasks);
+            }
+            notifyTasksChanged(changes);
+            onExpiredTasksRefreshed();
+        }
+    }
+
+    /**
+     * Looks a single task up in the local and remote data sources according to
+     * {@link #lookupMode}. The first data source that has the task wins and the task is cached;
+     * the answer of the other one is ignored. The callback is told the task isn't available only
+     * once every queried data source said so.
+     */
+    private final class TaskLookup {
+
+        private final String taskId;
+
+        private final GetTaskCallback callback;
+
+        private final AtomicBoolean answered = new AtomicBoolean();
+
+        private final AtomicBoolean remoteStarted = new AtomicBoolean();
+
+        /**
+         * Set once the remote data source answered that it has no such task, as opposed to
+         * failing to answer.
+         */
+        private volatile boolean remoteConfirmedMissing;
+
+        /**
+         * Number of data sources queried that didn't answer yet.
+         */
+        private final AtomicInteger pendingSources = new AtomicInteger();
+
+        TaskLookup(String taskId, GetTaskCallback callback) {
+            this.taskId = taskId;
+            this.callback = callback;
+        }
+
+        void start() {
+            LookupMode mode = lookupMode;
+            pendingSources.incrementAndGet();
+            if (mode == LookupMode.PARALLEL) {
+                startRemote();
+            } else if (mode == LookupMode.HEDGED) {
+                // Does nothing if the lookup was answered in the meantime.
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startRemote();
+                    }
+                }, hedgeDelayMillis);
+            }
+
+            // Is the task in the local data source? If not, query the network.
+            writeBehind.flush();
+            taskLocalDataSource.getTask(taskId, new GetTaskCallback() {
+                @Override
+                public void onTaskLoaded(Task task) {
+                    if (task != null) {
+                        onFound(task);
+                    } else {
+                        onLocalMissed();
+                    }
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    onLocalMissed();
+                }
+            });
+        }
+
+        private void startRemote() {
+            if (answered.get()) {
+                return;
+            }
+            // Counted before claiming the start, so that a local miss counted in between, on
+            // another thread, can't take every source for done.
+            pendingSources.incrementAndGet();
+            if (!remoteStarted.compareAndSet(false, true)) {
+                // Started already, withdraw the count like a miss would.
+                onMissed();
+                return;
+            }
+            writeBehind.flush();
+            taskRemoteDataSource.getTask(taskId, new GetTaskCallback() {
+                @Override
+                public void onTaskLoaded(Task task) {
+                    if (task != null) {
+                        onFound(task);
+                    } else {
+                        remoteConfirmedMissing = true;
+                        onMissed();
+                    }
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    onMissed();
+                }
+            });
+        }
+
+        private void onLocalMissed() {
+            // Start the remote lookup before counting the miss, so that it can't look like
+            // every data source failed.
+            startRemote();
+            onMissed();
+        }
+
+        private void onFound(Task task) {
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            // Do in memory cache update to keep the app UI up to date
+            cachedTasks.put(task);
+            knownTaskIds.add(task.getId());
+            callback.onTaskLoaded(task);
+        }
+
+        private void onMissed() {
+            if (pendingSources.decrementAndGet() == 0 && answered.compareAndSet(false, true)) {
+                if (remoteConfirmedMissing) {
+                    knownTaskIds.markMissing(taskId);
+                }
+                callback.onDataNotAvailable();
+            }
+        }
+    }
+
+    /**
+     * Looks several tasks up with at most one request per data source: the local data source for
+     * {@link #localTaskIds}, then the remote data source for {@link #remoteTaskIds} and the ids
+     * the local data source didn't have. Only accessed on the main thread.
+     */
+    private final class TaskBatchLookup {
+
+        /**
+         * Requested ids, in the order the tasks are returned.
+         */
+        final List<String> taskIds;
+
+        final Map<String, Task> foundTasks = new HashMap<>();
+
+        final List<String> localTaskIds = new ArrayList<>();
+
+        final List<String> remoteTaskIds = new ArrayList<>();
+
+        /**
+         * Set once the remote data source answered for {@link #remoteTaskIds}, so that the ones
+         * it didn't return are known not to exist.
+         */
+        private boolean remoteAnswered;
+
+        private final LoadTasksCallback callback;
+
+        TaskBatchLookup(Collection<String> taskIds, LoadTasksCallback callback) {
+            this.taskIds = new ArrayList<>(taskIds);
+            this.callback = callback;
+        }
+
+        void start() {
+            if (localTaskIds.isEmpty()) {
+                startRemote();
+                return;
+            }
+            writeBehind.flush();
+            taskLocalDataSource.getTasks(localTaskIds, new LoadTasksCallback() {
+                @Override
+                public void onTasksLoaded(List<Task> tasks) {
+                    onFound(tasks);
+                    for (String taskId : localTaskIds) {
+                        if (!foundTasks.containsKey(taskId)) {
+                            remoteTaskIds.add(taskId);
+                        }
+                    }
+                    startRemote();
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    remoteTaskIds.addAll(localTaskIds);
+                    startRemote();
+                }
+            });
+        }
+
+        private void startRemote() {
+            if (remoteTaskIds.isEmpty()) {
+                answer();
+                return;
+            }
+            writeBehind.flush();
+            taskRemoteDataSource.getTasks(remoteTaskIds, new LoadTasksCallback() {
+                @Override
+                public void onTasksLoaded(List<Task> tasks) {
+                    onFound(tasks);
+                    remoteAnswered = true;
+                    answer();
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    answer();
+                }
+            });
+        }
+
+        private void onFound(List<Task> tasks) {
+            for (Task task : tasks) {
+                foundTasks.put(task.getId(), task);
+                // Do in memory cache update to keep the app UI up to date
+                cachedTasks.put(task);
+                knownTaskIds.add(task.getId());
+            }
+        }
+
+        private void answer() {
+            List<Task> tasks = new ArrayList<>(foundTasks.size());
+            for (String taskId : taskIds) {
+                Task task = foundTasks.get(taskId);
+                if (task != null) {
+                    tasks.add(task);
+                } else if (remoteAnswered && remoteTaskIds.contains(taskId)
+                        && getTaskWithId(taskId) == null) {
+                    knownTaskIds.markMissing(taskId);
+                }
+            }
+            if (tasks.isEmpty()) {
+                callback.onDataNotAvailable();
+            } else {
+                callback.onTasksLoaded(tasks);
+            }
+        }
+    }
+
+    /**
+     * Delivers the tasks matching {@code filtering} as they were before the pending refresh,
+     * from memory or else from the local data source, unless {@code freshDelivered} is set by
+     * then.
+     */
+    private void loadStaleTasks(@NonNull final TasksFilterType filtering,
+                                @NonNull final AtomicBoolean freshDelivered,
+                                @NonNull final LoadTasksCallback staleCallback) {
+        if (cachedTasks.isLoaded()) {
+            answerFromCache(new Runnable() {
+                @Override
+                public void run() {
+                    if (!freshDelivered.get()) {
+                        staleCallback.onTasksLoaded(cachedTasks.getTasks(filtering));
+                    }
+                }
+            });
+            return;
+        }
+
+        writeBehind.flush();
+        taskLocalDataSource.getTasks(filtering, new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                if (!freshDelivered.get()) {
+                    staleCallback.onTasksLoaded(tasks);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                // Nothing known yet, the caller waits for the fresh tasks.
+            }
+        });
+    }
+
+    /**
+     * Loads the full task list the usual way and counts from the cache indexes.
+     */
+    private void getTaskCountsFromCache(@NonNull final GetTaskCountsCallback callback) {
+        getTasks(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onTaskCountsLoaded(cachedTasks.getActiveCount(),
+                        cachedTasks.getCompletedCount());
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * Records a local change of {@code taskId} for {@link #writeTracker}, before it is applied to
+     * the cache.
+     */
+    private void trackLocalWrite(@NonNull String taskId, @Nullable Task knownPrevious) {
+        Task previous = getTaskWithId(taskId);
+        writeTracker.onLocalWrite(taskId, previous != null ? previous : knownPrevious);
+    }
+
+    /**
+     * Undoes the local changes made by rejected writes: the cache and the local data source go
+     * back to the state the server has. Writes that can't be undone, because they were not
+     * tracked or changed many tasks at once, mark the cache as dirty instead so the next load
+     * gets the server's state.
+     */
+    private void rollBack(@NonNull List<TaskMutation> rejected) {
+        List<TaskChange> changes = new ArrayList<>();
+        for (TaskMutation mutation : rejected) {
+            String taskId = mutation.getTaskId();
+            if (taskId == null || !writeTracker.isPending(taskId)) {
+                refreshTasks();
+                continue;
+            }
+            Task current = getTaskWithId(taskId);
+            TaskWriteTracker.Rollback rollback = writeTracker.onRejected(mutation, current);
+            if (rollback == null) {
+                // A later write of the task is still pending and decides its state.
+                continue;
+            }
+            Task confirmedTask = rollback.getConfirmedTask();
+            if (confirmedTask != null) {
+                taskLocalDataSource.saveTask(confirmedTask);
+                changes.add(putInCache(confirmedTask, current));
+            } else if (current != null) {
+                taskLocalDataSource.deleteTask(taskId);
+                knownTaskIds.markMissing(taskId);
+                cachedTasks.remove(taskId);
+                taskCounter.onTaskRemoved(current);
+                changes.add(TaskChange.removed(taskId));
+            }
+        }
+        notifyTasksChanged(changes);
+        for (TasksObserver observer : observers) {
+            observer.onWritesRejected(rejected.size());
+        }
+    }
+
+    /**
+     * @param knownPrevious the state of the task before the change if the caller knows it, used
+     *                      when the task isn't cached
+     */
+    private TaskChange putInCache(@NonNull Task task, Task knownPrevious) {
+        Task previous = cachedTasks.put(task);
+        knownTaskIds.add(task.getId());
+        Task countedPrevious = previous != null ? previous : knownPrevious;
+        if (countedPrevious != null || cachedTasks.isLoaded()) {
+            taskCounter.onTaskChanged(countedPrevious, task);
+        } else {
+            // The task may or may not be stored already, so its effect on the counts is unknown.
+            taskCounter.invalidate();
+        }
+        return previous == null ? TaskChange.inserted(task) : TaskChange.updated(task);
+    }
+
+    /**
+     * Sets the completed state of the cached tasks with the given ids and returns the changes.
+     */
+    private List<TaskChange> setCompletedInCache(Collection<String> taskIds, boolean completed) {
+        List<TaskChange> changes = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            Task task = getTaskWithId(taskId);
+            if (task == null) {
+                // Updated in the data sources only, so the counts are no longer known.
+                taskCounter.invalidate();
+                continue;
+            }
+            Task updatedTask = new Task(task.getTitle(), task.getDescription(), taskId, completed);
+            writeTracker.onLocalWrite(taskId, task);
+            changes.add(putInCache(updatedTask, task));
+        }
+        return changes;
+    }
+
+    private static List<Task> filterTasks(List<Task> tasks, TasksFilterType filtering) {
+        if (filtering == TasksFilterType.ALL_TASKS) {
+            return tasks;
+        }
+        List<Task> filteredTasks = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            if ((filtering == TasksFilterType.COMPLETED_TASKS) == task.isCompleted()) {
+                filteredTasks.add(task);
+            }
+        }
+        return filteredTasks;
+    }
+
+    private static List<TaskChange> toRemovedChanges(List<String> removedTaskIds) {
+        List<TaskChange> changes = new ArrayList<>(removedTaskIds.size());
+        for (String taskId : removedTaskIds) {
+            changes.add(TaskChange.removed(taskId));
+        }
+        return changes;
+    }
+
+    private void notifyTasksChanged(List<TaskChange> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        List<TaskChange> unmodifiableChanges = Collections.unmodifiableList(changes);
+        for (TasksObserver observer : observers) {
+            observer.onTasksChanged(unmodifiableChanges);
+        }
+    }
+
+    private Task getTaskWithId(String taskId) {
+        checkNotNull(taskId);
+        return cachedTasks.get(taskId);
+    }
 }
@@ -0,0 +1,39 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A data source that can tell what changed since an earlier sync, so that refreshing costs in
+ * proportion to the changes rather than to the number of tasks.
+ * <p>
+ * Clients that lost their token compare their {@link TaskHashTree} with the source's instead of
+ * downloading everything, then continue from {@link #getCurrentSyncToken(GetCurrentSyncTokenCallback)}.
+ */
+public interface TaskSyncSource extends TaskHashTreeSource {
+
+    interface GetChangesCallback {
+
+        void onChangesLoaded(@NonNull TaskDelta delta);
+
+        void onDataNotAvailable();
+    }
+
+    interface GetCurrentSyncTokenCallback {
+
+        void onCurrentSyncTokenLoaded(@NonNull String syncToken);
+
+        void onDataNotAvailable();
+    }
+
+    /**
+     * Loads the changes since {@code syncToken}, the token of the last delta applied. A null
+     * token, or one the source no longer knows, gets a full sync.
+     */
+    void getChangesSince(@Nullable String syncToken, @NonNull GetChangesCallback callback);
+
+    /**
+     * Loads the token of the current state of the source, without any changes.
+     */
+    void getCurrentSyncToken(@NonNull GetCurrentSyncTokenCallback callback);
+}
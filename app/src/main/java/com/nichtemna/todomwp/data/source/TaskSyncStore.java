@@ -0,0 +1,27 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Local storage of tasks that keeps the sync token of the last delta it applied, see
+ * {@link TaskSyncSource}, and a hash tree of its tasks to compare with the source's.
+ */
+public interface TaskSyncStore extends TaskHashTreeSource {
+
+    interface GetSyncTokenCallback {
+
+        /**
+         * @param syncToken null if no delta was applied yet
+         */
+        void onSyncTokenLoaded(@Nullable String syncToken);
+    }
+
+    void getSyncToken(@NonNull GetSyncTokenCallback callback);
+
+    /**
+     * Applies {@code delta} and stores its token atomically, so the stored token never claims
+     * changes that weren't written.
+     */
+    void applyDelta(@NonNull TaskDelta delta);
+}
@@ -0,0 +1,19 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Told, after the write call returned, whether the server accepted writes handed to a remote data
+ * source. Called on the main thread.
+ */
+public interface TaskWriteListener {
+
+    void onWritesConfirmed(@NonNull List<TaskMutation> mutations);
+
+    /**
+     * The server refused {@code mutations} for good, they won't be sent again.
+     */
+    void onWritesRejected(@NonNull List<TaskMutation> mutations);
+}
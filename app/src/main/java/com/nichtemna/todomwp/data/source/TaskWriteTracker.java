@@ -0,0 +1,147 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.nichtemna.todomwp.data.Task;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Tracks which tasks have local changes the server hasn't confirmed yet, and the last state of
+ * each such task the server is known to have, so that the change can be undone if the server
+ * rejects it.
+ * <p>
+ * Writes are matched to the server's answers by the state they produce rather than one by one,
+ * because queued writes of a task are collapsed before they are sent: a task is confirmed once
+ * the server accepted a write that leaves it as it is locally, and rolled back once the server
+ * rejected such a write. Answers to older writes only move the confirmed state forward.
+ */
+final class TaskWriteTracker {
+
+    /**
+     * The state to restore a task to after its latest write was rejected.
+     */
+    static final class Rollback {
+
+        @NonNull
+        private final String taskId;
+
+        @Nullable
+        private final Task confirmedTask;
+
+        Rollback(@NonNull String taskId, @Nullable Task confirmedTask) {
+            this.taskId = taskId;
+            this.confirmedTask = confirmedTask;
+        }
+
+        @NonNull
+        String getTaskId() {
+            return taskId;
+        }
+
+        /**
+         * Returns the task as the server has it, or null if the server doesn't have it.
+         */
+        @Nullable
+        Task getConfirmedTask() {
+            return confirmedTask;
+        }
+    }
+
+    /**
+     * Last state confirmed by the server of every task with unconfirmed changes. A null value
+     * means the server doesn't have the task.
+     */
+    private final Map<String, Task> confirmedTasks = new HashMap<>();
+
+    /**
+     * Records that {@code taskId} changed locally. {@code previous} is its state before the
+     * change, null if it didn't exist; it only counts as confirmed if no earlier change is still
+     * pending.
+     */
+    synchronized void onLocalWrite(@NonNull String taskId, @Nullable Task previous) {
+        checkNotNull(taskId);
+        if (!confirmedTasks.containsKey(taskId)) {
+            confirmedTasks.put(taskId, previous);
+        }
+    }
+
+    synchronized boolean isPending(@NonNull String taskId) {
+        return confirmedTasks.containsKey(taskId);
+    }
+
+    /**
+     * Records that the server applied {@code mutation}; {@code current} is the local state of the
+     * task now.
+     */
+    synchronized void onConfirmed(@NonNull TaskMutation mutation, @Nullable Task current) {
+        String taskId = mutation.getTaskId();
+        if (taskId == null || !confirmedTasks.containsKey(taskId)) {
+            return;
+        }
+        if (produces(mutation, current)) {
+            confirmedTasks.remove(taskId);
+        } else {
+            confirmedTasks.put(taskId, apply(mutation, confirmedTasks.get(taskId)));
+        }
+    }
+
+    /**
+     * Records that the server rejected {@code mutation}; {@code current} is the local state of the
+     * task now. Returns how to undo the local change, or null if a later write of the task is
+     * still pending and decides its state.
+     */
+    @Nullable
+    synchronized Rollback onRejected(@NonNull TaskMutation mutation, @Nullable Task current) {
+        String taskId = mutation.getTaskId();
+        if (taskId == null || !confirmedTasks.containsKey(taskId) || !produces(mutation, current)) {
+            return null;
+        }
+        return new Rollback(taskId, confirmedTasks.remove(taskId));
+    }
+
+    /**
+     * Forgets every pending change, e.g. once all tasks were deleted.
+     */
+    synchronized void clear() {
+        confirmedTasks.clear();
+    }
+
+    /**
+     * Returns true if applying {@code mutation} leaves the task in the state {@code current}.
+     */
+    private static boolean produces(@NonNull TaskMutation mutation, @Nullable Task current) {
+        switch (mutation.getType()) {
+            case SAVE:
+                return mutation.getTask().equals(current);
+            case DELETE:
+                return current == null;
+            case COMPLETE:
+                return current != null && current.isCompleted();
+            case ACTIVATE:
+                return current != null && current.isActive();
+            default:
+                return false;
+        }
+    }
+
+    @Nullable
+    private static Task apply(@NonNull TaskMutation mutation, @Nullable Task task) {
+        switch (mutation.getType()) {
+            case SAVE:
+                return mutation.getTask();
+            case DELETE:
+                return null;
+            case COMPLETE:
+            case ACTIVATE:
+                return task == null ? null : new Task(task.getTitle(), task.getDescription(),
+                        task.getId(), mutation.getType() == TaskMutation.Type.COMPLETE);
+            default:
+                return task;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.Clock;
+import com.nichtemna.todomwp.util.PersistentSortedMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * In-memory cache of tasks used by {@link TaskRepository}, safe to use from any thread.
+ * <p>
+ * The content is an immutable, insertion-ordered snapshot published through a volatile field.
+ * Readers never lock and always see a complete snapshot. Writers are serialized and publish a
+ * new snapshot in a single write, so a reader can never observe a half-applied change.
+ * <p>
+ * Snapshots are persistent maps: a write copies only O(log n) tree nodes and shares the rest
+ * with the previous snapshot, and {@link #getTasks()} hands out the snapshot itself in O(1).
+ * Active and completed tasks are additionally indexed on their own, so filtered views cost time
+ * proportional to their size rather than to the whole cache.
+ * <p>
+ * Every entry carries an {@link EntryStamp} with its load time, its expiry time according to the
+ * {@link CachePolicy} and a version that grows with every write, so expired entries can be found
+ * and refreshed one by one instead of reloading everything.
+ */
+public class TasksCache {
+
+    /**
+     * Metadata of one cached task, replaced on every write of that task.
+     */
+    public static final class EntryStamp {
+
+        private final long version;
+
+        private final long loadedAtMillis;
+
+        private final long expiresAtMillis;
+
+        EntryStamp(long version, long loadedAtMillis, long expiresAtMillis) {
+            this.version = version;
+            this.loadedAtMillis = loadedAtMillis;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        /**
+         * Returns a number that is larger for every write to the cache, so a changed version
+         * means the task was written again since this stamp was read.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public long getLoadedAtMillis() {
+            return loadedAtMillis;
+        }
+
+        /**
+         * Returns the {@link Clock#elapsedMillis()} time the task expires at, or
+         * {@link CachePolicy#NO_EXPIRY}.
+         */
+        public long getExpiresAtMillis() {
+            return expiresAtMillis;
+        }
+    }
+
+    /**
+     * Orders entries by expiry time, then by insertion sequence number.
+     */
+    private static final class ExpiryKey implements Comparable<ExpiryKey> {
+        final long expiresAtMillis;
+
+        final long sequence;
+
+        ExpiryKey(long expiresAtMillis, long sequence) {
+            this.expiresAtMillis = expiresAtMillis;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@NonNull ExpiryKey other) {
+            if (expiresAtMillis != other.expiresAtMillis) {
+                return expiresAtMillis < other.expiresAtMillis ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Immutable content of the cache. Replaced as a whole on every write.
+     */
+    private static final class Snapshot {
+        /**
+         * Insertion sequence number of every cached task, by task id.
+         */
+        final PersistentSortedMap<String, Long> sequences;
+
+        /**
+         * Cached tasks by insertion sequence number, which gives the insertion order.
+         */
+        final PersistentSortedMap<Long, Task> tasks;
+
+        /**
+         * Secondary indexes holding only the active or only the completed tasks, also keyed by
+         * insertion sequence number.
+         */
+        final PersistentSortedMap<Long, Task> activeTasks;
+
+        final PersistentSortedMap<Long, Task> completedTasks;
+
+        /**
+         * Stamp of every cached task, by insertion sequence number.
+         */
+        final PersistentSortedMap<Long, EntryStamp> stamps;
+
+        /**
+         * Ids of the tasks that can expire, soonest first.
+         */
+        final PersistentSortedMap<ExpiryKey, String> expiry;
+
+        final long nextSequence;
+
+        final long nextVersion;
+
+        /**
+         * True once the full task list was loaded, as opposed to single tasks being cached.
+         */
+        final boolean loaded;
+
+        Snapshot(PersistentSortedMap<String, Long> sequences, PersistentSortedMap<Long, Task> tasks,
+                 PersistentSortedMap<Long, Task> activeTasks,
+                 PersistentSortedMap<Long, Task> completedTasks,
+                 PersistentSortedMap<Long, EntryStamp> stamps,
+                 PersistentSortedMap<ExpiryKey, String> expiry, long nextSequence,
+                 long nextVersion, boolean loaded) {
+            this.sequences = sequences;
+            this.tasks = tasks;
+            this.activeTasks = activeTasks;
+            this.completedTasks = completedTasks;
+            this.stamps = stamps;
+            this.expiry = expiry;
+            this.nextSequence = nextSequence;
+            this.nextVersion = nextVersion;
+            this.loaded = loaded;
+        }
+
+        Snapshot withLoaded(boolean loaded) {
+            return new Snapshot(sequences, tasks, activeTasks, completedTasks, stamps, expiry,
+                    nextSequence, nextVersion, loaded);
+        }
+
+        /**
+         * Returns an empty snapshot that keeps counting sequences and versions from this one.
+         */
+        Snapshot cleared(boolean loaded) {
+            return new Snapshot(EMPTY.sequences, EMPTY.tasks, EMPTY.activeTasks,
+                    EMPTY.completedTasks, EMPTY.stamps, EMPTY.expiry, nextSequence, nextVersion,
+                    loaded);
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(PersistentSortedMap.<String, Long>empty(),
+            PersistentSortedMap.<Long, Task>empty(), PersistentSortedMap.<Long, Task>empty(),
+            PersistentSortedMap.<Long, Task>empty(), PersistentSortedMap.<Long, EntryStamp>empty(),
+            PersistentSortedMap.<ExpiryKey, String>empty(), 0, 0, false);
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    private final Clock clock;
+
+    private volatile CachePolicy policy = CachePolicy.NEVER_EXPIRE;
+
+    public TasksCache() {
+        this(Clock.SYSTEM);
+    }
+
+    public TasksCache(@NonNull Clock clock) {
+        this.clock = checkNotNull(clock);
+    }
+
+    /**
+     * Sets the policy used to stamp the tasks written from now on. Tasks already cached keep
+     * their expiry time.
+     */
+    public void setPolicy(@NonNull CachePolicy policy) {
+        this.policy = checkNotNull(policy);
+    }
+
+    @NonNull
+    public CachePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns true once the full task list has been put in the cache with
+     * {@link #replaceAll(Collection)}, even if it holds no tasks.
+     */
+    public boolean isLoaded() {
+        return snapshot.loaded;
+    }
+
+    @Nullable
+    public Task get(@NonNull String taskId) {
+        Snapshot current = snapshot;
+        Long sequence = current.sequences.get(taskId);
+        return sequence == null ? null : current.tasks.get(sequence);
+    }
+
+    public boolean isEmpty() {
+        return snapshot.tasks.isEmpty();
+    }
+
+    public int size() {
+        return snapshot.tasks.size();
+    }
+
+    /**
+     * Returns all cached tasks in insertion order, in O(1). The list is immutable and is not
+     * affected by later writes, so it can be iterated on any thread.
+     */
+    @NonNull
+    public List<Task> getTasks() {
+        return snapshot.tasks.values();
+    }
+
+    /**
+     * Returns the cached tasks matching {@code filtering} in insertion order, in O(1). Iterating
+     * the list costs time proportional to the number of matching tasks only.
+     */
+    @NonNull
+    public List<Task> getTasks(@NonNull TasksFilterType filtering) {
+        Snapshot current = snapshot;
+        switch (filtering) {
+            case ACTIVE_TASKS:
+                return current.activeTasks.values();
+            case COMPLETED_TASKS:
+                return current.completedTasks.values();
+            case ALL_TASKS:
+            default:
+                return current.tasks.values();
+        }
+    }
+
+    /**
+     * Returns the stamp of the cached task with {@code taskId}, or null if it isn't cached.
+     */
+    @Nullable
+    public EntryStamp getStamp(@NonNull String taskId) {
+        Snapshot current = snapshot;
+        Long sequence = current.sequences.get(taskId);
+        return sequence == null ? null : current.stamps.get(sequence);
+    }
+
+    /**
+     * Returns true if the task with {@code taskId} is cached but expired.
+     */
+    public boolean isExpired(@NonNull String taskId) {
+        EntryStamp stamp = getStamp(taskId);
+        return stamp != null && stamp.expiresAtMillis <= clock.elapsedMillis();
+    }
+
+    /**
+     * Returns true if the task with {@code taskId} expired longer ago than the policy's max
+     * staleness, so it shouldn't be served before it is loaded again.
+     */
+    public boolean isTooStale(@NonNull String taskId) {
+        EntryStamp stamp = getStamp(taskId);
+        return stamp != null && isTooStale(stamp.expiresAtMillis, clock.elapsedMillis());
+    }
+
+    /**
+     * Returns true if any cached task is too stale to be served, in O(log n).
+     */
+    public boolean hasTooStaleTasks() {
+        Snapshot current = snapshot;
+        if (current.expiry.isEmpty()) {
+            return false;
+        }
+        // The soonest expiring entry is also the stalest one.
+        String stalestId = current.expiry.valueAt(0);
+        EntryStamp stalest = current.stamps.get(current.sequences.get(stalestId));
+        return isTooStale(stalest.expiresAtMillis, clock.elapsedMillis());
+    }
+
+    /**
+     * Returns the ids of the expired tasks, the ones expired the longest first. Costs time
+     * proportional to the number of expired tasks only.
+     */
+    @NonNull
+    public List<String> getExpiredTaskIds() {
+        long now = clock.elapsedMillis();
+        Snapshot current = snapshot;
+        List<String> expired = new ArrayList<>();
+        for (String taskId : current.expiry.values()) {
+            EntryStamp stamp = current.stamps.get(current.sequences.get(taskId));
+            if (stamp.expiresAtMillis > now) {
+                break;
+            }
+            expired.add(taskId);
+        }
+        return expired;
+    }
+
+    public int getActiveCount() {
+        return snapshot.activeTasks.size();
+    }
+
+    public int getCompletedCount() {
+        return snapshot.completedTasks.size();
+    }
+
+    /**
+     * Stores {@code task}, keeping its position if it was cached already.
+     *
+     * @return the task previously cached under the same id, or null
+     */
+    @Nullable
+    public synchronized Task put(@NonNull Task task) {
+        checkNotNull(task);
+        Task previous = get(task.getId());
+        snapshot = plus(snapshot, task, clock.elapsedMillis());
+        return previous;
+    }
+
+    /**
+     * Stores {@code task} only if its cached entry still has {@code expectedVersion}, that is if
+     * nothing wrote it since its stamp was read.
+     *
+     * @return true if the task was stored
+     */
+    public synchronized boolean putIfUnchanged(@NonNull Task task, long expectedVersion) {
+        checkNotNull(task);
+        EntryStamp stamp = getStamp(task.getId());
+        if (stamp == null || stamp.version != expectedVersion) {
+            return false;
+        }
+        snapshot = plus(snapshot, task, clock.elapsedMillis());
+        return true;
+    }
+
+    public synchronized void putAll(@NonNull Collection<Task> tasks) {
+        long now = clock.elapsedMillis();
+        Snapshot next = snapshot;
+        for (Task task : tasks) {
+            next = plus(next, task, now);
+        }
+        snapshot = next;
+    }
+
+    /**
+     * Replaces the whole content with {@code tasks} and marks the cache as loaded.
+     */
+    public synchronized void replaceAll(@NonNull Collection<Task> tasks) {
+        long now = clock.elapsedMillis();
+        Snapshot next = snapshot.cleared(false);
+        for (Task task : tasks) {
+            next = plus(next, task, now);
+        }
+        snapshot = next.withLoaded(true);
+    }
+
+    @Nullable
+    public synchronized Task remove(@NonNull String taskId) {
+        Task removed = get(taskId);
+        if (removed != null) {
+            snapshot = minus(snapshot, taskId);
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the task with {@code taskId} only if its cached entry still has
+     * {@code expectedVersion}.
+     *
+     * @return true if the task was removed
+     */
+    public synchronized boolean removeIfUnchanged(@NonNull String taskId, long expectedVersion) {
+        EntryStamp stamp = getStamp(taskId);
+        if (stamp == null || stamp.version != expectedVersion) {
+            return false;
+        }
+        snapshot = minus(snapshot, taskId);
+        return true;
+    }
+
+    /**
+     * @return the ids that were actually cached and removed
+     */
+    @NonNull
+    public synchronized List<String> removeAll(@NonNull Collection<String> taskIds) {
+        Snapshot next = snapshot;
+        List<String> removed = new ArrayList<>();
+        for (String taskId : taskIds) {
+            if (next.sequences.containsKey(taskId)) {
+                next = minus(next, taskId);
+                removed.add(taskId);
+            }
+        }
+        snapshot = next;
+        return removed;
+    }
+
+    /**
+     * @return the ids of the completed tasks that were removed
+     */
+    @NonNull
+    public synchronized List<String> removeCompleted() {
+        List<String> removed = new ArrayList<>();
+        for (Task task : snapshot.completedTasks.values()) {
+            removed.add(task.getId());
+        }
+        return removeAll(removed);
+    }
+
+    /**
+     * Removes all tasks.
+     *
+     * @return the ids that were removed
+     */
+    @NonNull
+    public synchronized List<String> clear() {
+        List<String> removed = new ArrayList<>(snapshot.tasks.size());
+        for (Task task : snapshot.tasks.values()) {
+            removed.add(task.getId());
+        }
+        snapshot = snapshot.cleared(snapshot.loaded);
+        return removed;
+    }
+
+    private boolean isTooStale(long expiresAtMillis, long now) {
+        return expiresAtMillis != CachePolicy.NO_EXPIRY
+                && now - expiresAtMillis > policy.getMaxStalenessMillis();
+    }
+
+    private Snapshot plus(Snapshot current, Task task, long now) {
+        Long sequence = current.sequences.get(task.getId());
+        PersistentSortedMap<String, Long> sequences = current.sequences;
+        PersistentSortedMap<ExpiryKey, String> expiry = current.expiry;
+        long nextSequence = current.nextSequence;
+        if (sequence == null) {
+            sequence = nextSequence++;
+            sequences = sequences.plus(task.getId(), sequence);
+        } else {
+            EntryStamp previousStamp = current.stamps.get(sequence);
+            expiry = expiry.minus(new ExpiryKey(previousStamp.expiresAtMillis, sequence));
+        }
+
+        long ttl = policy.getTtlMillis(task);
+        long expiresAt = ttl >= CachePolicy.NO_EXPIRY - now ? CachePolicy.NO_EXPIRY : now + ttl;
+        if (expiresAt != CachePolicy.NO_EXPIRY) {
+            expiry = expiry.plus(new ExpiryKey(expiresAt, sequence), task.getId());
+        }
+        EntryStamp stamp = new EntryStamp(current.nextVersion, now, expiresAt);
+
+        PersistentSortedMap<Long, Task> activeTasks;
+        PersistentSortedMap<Long, Task> completedTasks;
+        if (task.isCompleted()) {
+            activeTasks = current.activeTasks.minus(sequence);
+            completedTasks = current.completedTasks.plus(sequence, task);
+        } else {
+            activeTasks = current.activeTasks.plus(sequence, task);
+            completedTasks = current.completedTasks.minus(sequence);
+        }
+        return new Snapshot(sequences, current.tasks.plus(sequence, task), activeTasks,
+                completedTasks, current.stamps.plus(sequence, stamp), expiry, nextSequence,
+                current.nextVersion + 1, current.loaded);
+    }
+
+    private static Snapshot minus(Snapshot current, String taskId) {
+        Long sequence = current.sequences.get(taskId);
+        if (sequence == null) {
+            return current;
+        }
+        EntryStamp stamp = current.stamps.get(sequence);
+        return new Snapshot(current.sequences.minus(taskId), current.tasks.minus(sequence),
+                current.activeTasks.minus(sequence), current.completedTasks.minus(sequence),
+                current.stamps.minus(sequence),
+                current.expiry.minus(new ExpiryKey(stamp.expiresAtMillis, sequence)),
+                current.nextSequence, current.nextVersion, current.loaded);
+    }
+}
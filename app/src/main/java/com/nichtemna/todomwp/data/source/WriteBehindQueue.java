@@ -0,0 +1,148 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.util.Scheduler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Collects task writes and applies them to the data sources in batches, so that a burst of
+ * single-task changes costs one batch per data source instead of one write each.
+ * <p>
+ * Only the last write of every task is kept: completing, activating and completing a task again
+ * results in a single save of the completed task. Pending writes are flushed once
+ * {@code maxPendingWrites} tasks are pending, {@code flushDelayMillis} after the first one was
+ * queued, or when {@link #flush()} is called.
+ */
+final class WriteBehindQueue {
+
+    /**
+     * Last pending write of a task: the task to save, or null to delete it.
+     */
+    private final Map<String, Task> pendingWrites = new LinkedHashMap<>();
+
+    private final List<TaskDataSource> targets;
+
+    private final int maxPendingWrites;
+
+    private final long flushDelayMillis;
+
+    private final Scheduler scheduler;
+
+    private boolean flushScheduled;
+
+    /**
+     * Incremented by every flush, so that a timer scheduled for an earlier batch doesn't flush a
+     * later one early.
+     */
+    private int flushCount;
+
+    private int collapsedCount;
+
+    private int flushedBatchCount;
+
+    /**
+     * @param targets data sources receiving every batch, in this order
+     */
+    WriteBehindQueue(@NonNull List<TaskDataSource> targets, int maxPendingWrites,
+                     long flushDelayMillis, @NonNull Scheduler scheduler) {
+        checkArgument(maxPendingWrites > 0, "maxPendingWrites must be positive");
+        checkArgument(flushDelayMillis >= 0, "flushDelayMillis must not be negative");
+        this.targets = new ArrayList<>(checkNotNull(targets));
+        this.maxPendingWrites = maxPendingWrites;
+        this.flushDelayMillis = flushDelayMillis;
+        this.scheduler = checkNotNull(scheduler);
+    }
+
+    synchronized void save(@NonNull Task task) {
+        enqueue(task.getId(), task);
+    }
+
+    synchronized void delete(@NonNull String taskId) {
+        enqueue(taskId, null);
+    }
+
+    /**
+     * Writes all pending changes now: one {@link TaskDataSource#deleteTasks} and one
+     * {@link TaskDataSource#saveTasks} per data source.
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+        flushCount++;
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+
+        List<Task> savedTasks = new ArrayList<>();
+        List<String> deletedTaskIds = new ArrayList<>();
+        for (Map.Entry<String, Task> write : pendingWrites.entrySet()) {
+            if (write.getValue() != null) {
+                savedTasks.add(write.getValue());
+            } else {
+                deletedTaskIds.add(write.getKey());
+            }
+        }
+        pendingWrites.clear();
+
+        // Every task has a single pending write, so deletes and saves never touch the same row
+        // and their relative order doesn't matter.
+        for (TaskDataSource target : targets) {
+            if (!deletedTaskIds.isEmpty()) {
+                target.deleteTasks(deletedTaskIds);
+            }
+            if (!savedTasks.isEmpty()) {
+                target.saveTasks(savedTasks);
+            }
+        }
+        flushedBatchCount++;
+    }
+
+    synchronized int getPendingCount() {
+        return pendingWrites.size();
+    }
+
+    /**
+     * Returns how many writes were replaced by a later write of the same task before being
+     * flushed.
+     */
+    synchronized int getCollapsedCount() {
+        return collapsedCount;
+    }
+
+    synchronized int getFlushedBatchCount() {
+        return flushedBatchCount;
+    }
+
+    private void enqueue(@NonNull String taskId, Task task) {
+        checkNotNull(taskId);
+        if (pendingWrites.containsKey(taskId)) {
+            collapsedCount++;
+        }
+        pendingWrites.put(taskId, task);
+
+        if (pendingWrites.size() >= maxPendingWrites) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            final int scheduledAfter = flushCount;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (WriteBehindQueue.this) {
+                        if (flushCount == scheduledAfter) {
+                            flush();
+                        }
+                    }
+                }
+            }, flushDelayMillis);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.nichtemna.todomwp.data.source.local;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+
+/**
+ * A single schema step applied by {@link TaskDBHelper#onUpgrade(SQLiteDatabase, int, int)}.
+ * <p>
+ * Each migration moves the database from {@link #startVersion} to {@link #endVersion}. It runs
+ * inside the transaction opened by {@link android.database.sqlite.SQLiteOpenHelper}, so it must
+ * not manage transactions itself.
+ */
+abstract class Migration {
+
+    final int startVersion;
+
+    final int endVersion;
+
+    Migration(int startVersion, int endVersion) {
+        this.startVersion = startVersion;
+        this.endVersion = endVersion;
+    }
+
+    abstract void migrate(@NonNull SQLiteDatabase db);
+}
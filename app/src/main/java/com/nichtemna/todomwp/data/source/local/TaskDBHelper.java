@@ -3,6 +3,12 @@ package com.nichtemna.todomwp.data.source.local;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.nichtemna.todomwp.data.source.local.TaskPersistenceContract.OutboxEntry;
+import com.nichtemna.todomwp.data.source.local.TaskPersistenceContract.SyncStateEntry;
+import com.nichtemna.todomwp.data.source.local.TaskPersistenceContract.TaskEntry;
 
 /**
  * Created by Lina Shyshova on 06.11.16.
@@ -10,7 +16,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 public class TaskDBHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 4;
 
     public static final String DATABASE_NAME = "Tasks.db";
 
@@ -21,25 +27,160 @@ public class TaskDBHelper extends SQLiteOpenHelper {
     private static final String COMMA_SEP = ",";
 
     private static final String SQL_CREATE_ENTRIES =
-            "CREATE TABLE " + TaskPersistenceContract.TaskEntry.TABLE_NAME + " (" +
-                    TaskPersistenceContract.TaskEntry._ID + TEXT_TYPE + " PRIMARY KEY," +
-                    TaskPersistenceContract.TaskEntry.COLUMN_NAME_ENTRY_ID + TEXT_TYPE + COMMA_SEP +
-                    TaskPersistenceContract.TaskEntry.COLUMN_NAME_TITLE + TEXT_TYPE + COMMA_SEP +
-                    TaskPersistenceContract.TaskEntry.COLUMN_NAME_DESCRIPTION + TEXT_TYPE + COMMA_SEP +
-                    TaskPersistenceContract.TaskEntry.COLUMN_NAME_COMPLETED + BOOLEAN_TYPE +
+            "CREATE TABLE " + TaskEntry.TABLE_NAME + " (" +
+                    TaskEntry._ID + " INTEGER PRIMARY KEY," +
+                    TaskEntry.COLUMN_NAME_ENTRY_ID + TEXT_TYPE + " NOT NULL" + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_TITLE + TEXT_TYPE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION + TEXT_TYPE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_COMPLETED + BOOLEAN_TYPE + " NOT NULL DEFAULT 0" +
+                    " )";
+
+    private static final String SQL_CREATE_ENTRY_ID_INDEX =
+            "CREATE UNIQUE INDEX " + TaskEntry.INDEX_ENTRY_ID + " ON " +
+                    TaskEntry.TABLE_NAME + " (" + TaskEntry.COLUMN_NAME_ENTRY_ID + ")";
+
+    private static final String SQL_CREATE_COMPLETED_INDEX =
+            "CREATE INDEX " + TaskEntry.INDEX_COMPLETED + " ON " +
+                    TaskEntry.TABLE_NAME + " (" + TaskEntry.COLUMN_NAME_COMPLETED + ")";
+
+    /**
+     * Row ids are never reused, so they keep giving the order in which writes were queued.
+     */
+    private static final String SQL_CREATE_OUTBOX =
+            "CREATE TABLE " + OutboxEntry.TABLE_NAME + " (" +
+                    OutboxEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    OutboxEntry.COLUMN_NAME_OPERATION + TEXT_TYPE + " NOT NULL" + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_ENTRY_ID + TEXT_TYPE + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_TITLE + TEXT_TYPE + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_DESCRIPTION + TEXT_TYPE + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_COMPLETED + BOOLEAN_TYPE + " NOT NULL DEFAULT 0" +
                     " )";
 
+    private static final String SQL_CREATE_OUTBOX_ENTRY_ID_INDEX =
+            "CREATE INDEX " + OutboxEntry.INDEX_ENTRY_ID + " ON " +
+                    OutboxEntry.TABLE_NAME + " (" + OutboxEntry.COLUMN_NAME_ENTRY_ID + ")";
+
+    private static final String SQL_CREATE_SYNC_STATE =
+            "CREATE TABLE " + SyncStateEntry.TABLE_NAME + " (" +
+                    SyncStateEntry.COLUMN_NAME_KEY + TEXT_TYPE + " PRIMARY KEY" + COMMA_SEP +
+                    SyncStateEntry.COLUMN_NAME_VALUE + TEXT_TYPE +
+                    " )";
+
+    /*
+     * Migrations spell out the schema of their target version instead of reusing the statements
+     * above, which always create the current schema: a later change must not change what an
+     * earlier step creates.
+     */
+
+    /**
+     * Version 1 had a nullable TEXT primary key that was never filled in and no index on
+     * {@link TaskEntry#COLUMN_NAME_ENTRY_ID}, so every lookup was a full table scan. Editing a
+     * task also inserted a second row with the same entry id; the last row written wins here.
+     */
+    @VisibleForTesting
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        void migrate(@NonNull SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE task RENAME TO task_v1");
+            db.execSQL("CREATE TABLE task (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "entryId TEXT NOT NULL," +
+                    "title TEXT," +
+                    "description TEXT," +
+                    "completed INTEGER NOT NULL DEFAULT 0 )");
+            db.execSQL("CREATE UNIQUE INDEX index_task_entryId ON task (entryId)");
+            db.execSQL("CREATE INDEX index_task_completed ON task (completed)");
+            db.execSQL("INSERT OR REPLACE INTO task (entryId,title,description,completed)" +
+                    " SELECT entryId,title,description,COALESCE(completed, 0) FROM task_v1" +
+                    " WHERE entryId IS NOT NULL ORDER BY rowid");
+            db.execSQL("DROP TABLE task_v1");
+        }
+    };
+
+    /**
+     * Version 3 adds the outbox of writes waiting for the server, see {@link TaskOutbox}.
+     */
+    @VisibleForTesting
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        void migrate(@NonNull SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE outbox (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "operation TEXT NOT NULL," +
+                    "entryId TEXT," +
+                    "title TEXT," +
+                    "description TEXT," +
+                    "completed INTEGER NOT NULL DEFAULT 0 )");
+            db.execSQL("CREATE INDEX index_outbox_entryId ON outbox (entryId)");
+        }
+    };
+
+    /**
+     * Version 4 adds the sync token of the last delta applied, see
+     * {@link com.nichtemna.todomwp.data.source.TaskSyncStore}.
+     */
+    @VisibleForTesting
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        void migrate(@NonNull SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE sync_state (key TEXT PRIMARY KEY,value TEXT )");
+        }
+    };
+
+    /**
+     * All known migrations, in ascending order. Append a new entry and bump
+     * {@link #DATABASE_VERSION} for every schema change.
+     */
+    private static final Migration[] MIGRATIONS = {
+            MIGRATION_1_2,
+            MIGRATION_2_3,
+            MIGRATION_3_4
+    };
+
     public TaskDBHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Lets reads run concurrently with a write instead of waiting for it to commit.
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL(SQL_CREATE_ENTRIES);
+        createTaskTable(db);
+        createOutbox(db);
+        db.execSQL(SQL_CREATE_SYNC_STATE);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        int version = oldVersion;
+        while (version < newVersion) {
+            Migration migration = findMigration(version);
+            if (migration == null) {
+                throw new IllegalStateException(
+                        "No migration from version " + version + " to " + newVersion);
+            }
+            migration.migrate(db);
+            version = migration.endVersion;
+        }
+    }
+
+    private static Migration findMigration(int startVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.startVersion == startVersion) {
+                return migration;
+            }
+        }
+        return null;
+    }
+
+    private static void createTaskTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_ENTRY_ID_INDEX);
+        db.execSQL(SQL_CREATE_COMPLETED_INDEX);
+    }
 
+    private static void createOutbox(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_OUTBOX);
+        db.execSQL(SQL_CREATE_OUTBOX_ENTRY_ID_INDEX);
     }
 }
@@ -4,149 +4,475 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.nichtemna.todomwp.data.Task;
 import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskDelta;
+import com.nichtemna.todomwp.data.source.TaskHashTree;
+import com.nichtemna.todomwp.data.source.TaskPage;
+import com.nichtemna.todomwp.data.source.TaskSyncStore;
+import com.nichtemna.todomwp.data.source.local.TaskPersistenceContract.SyncStateEntry;
 import com.nichtemna.todomwp.data.source.local.TaskPersistenceContract.TaskEntry;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.AppExecutors;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Created by Lina Shyshova on 06.11.16.
+ * <p>
+ * All database work runs on {@link AppExecutors#diskIO()}; callbacks are delivered on
+ * {@link AppExecutors#mainThread()}. The database connection is opened once and kept for the
+ * lifetime of the process, so the statements used by single-row writes are compiled only once.
  */
 
-public class TaskLocalDataSource implements TaskDataSource {
-    private static TaskLocalDataSource INSTANCE;
-    private TaskDBHelper dbHelper;
+public class TaskLocalDataSource implements TaskDataSource, TaskSyncStore {
 
-    private TaskLocalDataSource(@NonNull Context context) {
+    /**
+     * SQLite binds at most 999 arguments per statement, so longer id lists are split.
+     */
+    private static final int MAX_BOUND_IDS = 999;
+
+    private static volatile TaskLocalDataSource INSTANCE;
+    private final TaskDBHelper dbHelper;
+    private final AppExecutors appExecutors;
+
+    // Compiled lazily and only ever used from the disk IO thread.
+    private SQLiteStatement insertStatement;
+    private SQLiteStatement updateStatement;
+    private SQLiteStatement updateCompletedStatement;
+    private SQLiteStatement deleteByIdStatement;
+
+    private TaskOutbox outbox;
+
+    /**
+     * Hash tree of the stored tasks, built on first use and then kept up to date by every write.
+     * Only used from the disk IO thread.
+     */
+    private TaskHashTree hashTree;
+
+    private TaskLocalDataSource(@NonNull AppExecutors appExecutors, @NonNull Context context) {
         checkNotNull(context);
+        this.appExecutors = checkNotNull(appExecutors);
         dbHelper = new TaskDBHelper(context);
     }
 
-    public static TaskLocalDataSource getInstance(@NonNull Context context) {
+    public static TaskLocalDataSource getInstance(@NonNull AppExecutors appExecutors,
+                                                  @NonNull Context context) {
         if (INSTANCE == null) {
-            INSTANCE = new TaskLocalDataSource(context);
+            synchronized (TaskLocalDataSource.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new TaskLocalDataSource(appExecutors, context);
+                }
+            }
         }
         return INSTANCE;
     }
 
+    /**
+     * Returns the outbox of writes waiting for the server, stored in the same database.
+     */
+    public synchronized TaskOutbox getOutbox() {
+        if (outbox == null) {
+            outbox = new TaskOutbox(dbHelper, appExecutors);
+        }
+        return outbox;
+    }
+
+    @VisibleForTesting
+    static void clearInstance() {
+        INSTANCE = null;
+    }
+
     /**
      * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if the database doesn't exist
      * or the table is empty.
      */
     @Override
     public void getTasks(@NonNull LoadTasksCallback callback) {
-        List<Task> tasks = new ArrayList<>();
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-
-        String[] projection = {
-                TaskEntry.COLUMN_NAME_ENTRY_ID,
-                TaskEntry.COLUMN_NAME_TITLE,
-                TaskEntry.COLUMN_NAME_DESCRIPTION,
-                TaskEntry.COLUMN_NAME_COMPLETED
-        };
+        getTasks(TasksFilterType.ALL_TASKS, callback);
+    }
 
-        Cursor c = db.query(TaskEntry.TABLE_NAME, projection, null, null, null, null, null);
-        if (c != null && c.getCount() > 0) {
-            while (c.moveToNext()) {
-                String itemId = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_ENTRY_ID));
-                String title = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_TITLE));
-                String description =
-                        c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_DESCRIPTION));
-                boolean completed =
-                        c.getInt(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_COMPLETED)) == 1;
-                Task task = new Task(title, description, itemId, completed);
-                tasks.add(task);
+    /**
+     * Runs the filter as a {@code WHERE} clause served by the index on the completed column.
+     * <p>
+     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if no task matches.
+     */
+    @Override
+    public void getTasks(@NonNull final TasksFilterType filtering,
+                         @NonNull final LoadTasksCallback callback) {
+        checkNotNull(filtering);
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Task> tasks = new ArrayList<>();
+                SQLiteDatabase db = getDatabase();
+
+                String[] projection = {
+                        TaskEntry.COLUMN_NAME_ENTRY_ID,
+                        TaskEntry.COLUMN_NAME_TITLE,
+                        TaskEntry.COLUMN_NAME_DESCRIPTION,
+                        TaskEntry.COLUMN_NAME_COMPLETED
+                };
+
+                String selection = getFilterSelection(filtering);
+
+                Cursor c = db.query(TaskEntry.TABLE_NAME, projection, selection, null, null, null, null);
+                if (c != null && c.getCount() > 0) {
+                    while (c.moveToNext()) {
+                        tasks.add(readTask(c));
+                    }
+                }
+
+                if (c != null) {
+                    c.close();
+                }
+
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (tasks.isEmpty()) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTasksLoaded(tasks);
+                        }
+                    }
+                });
             }
-        }
-
-        if (c != null) {
-            c.close();
-        }
-
-        db.close();
-
-        if (tasks.isEmpty()) {
-            callback.onDataNotAvailable();
-        } else {
-            callback.onTasksLoaded(tasks);
-        }
+        });
     }
 
+    /**
+     * Posts every {@code chunkSize} rows to the main thread while the cursor is still being read,
+     * so the first chunk is shown without waiting for the end of the query.
+     * <p>
+     * Note: {@link StreamTasksCallback#onDataNotAvailable()} is fired if no task matches.
+     */
     @Override
-    public void getTask(@NonNull String taskId, @NonNull GetTaskCallback callback) {
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-
-        String[] projection = {
-                TaskEntry.COLUMN_NAME_ENTRY_ID,
-                TaskEntry.COLUMN_NAME_TITLE,
-                TaskEntry.COLUMN_NAME_DESCRIPTION,
-                TaskEntry.COLUMN_NAME_COMPLETED
-        };
-
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ?";
-        String[] selectionArgs = {taskId};
-
-        Cursor c = db.query(TaskEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+    public void streamTasks(@NonNull final TasksFilterType filtering, final int chunkSize,
+                            @NonNull final StreamTasksCallback callback) {
+        checkNotNull(filtering);
+        checkNotNull(callback);
+        checkArgument(chunkSize > 0, "chunkSize must be positive");
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+
+                String[] projection = {
+                        TaskEntry.COLUMN_NAME_ENTRY_ID,
+                        TaskEntry.COLUMN_NAME_TITLE,
+                        TaskEntry.COLUMN_NAME_DESCRIPTION,
+                        TaskEntry.COLUMN_NAME_COMPLETED
+                };
+
+                Cursor c = db.query(TaskEntry.TABLE_NAME, projection, getFilterSelection(filtering),
+                        null, null, null, null);
+                boolean empty = true;
+                if (c != null) {
+                    List<Task> chunk = new ArrayList<>(chunkSize);
+                    while (c.moveToNext()) {
+                        chunk.add(readTask(c));
+                        if (chunk.size() == chunkSize) {
+                            postChunk(chunk, callback);
+                            chunk = new ArrayList<>(chunkSize);
+                            empty = false;
+                        }
+                    }
+                    c.close();
+                    if (!chunk.isEmpty()) {
+                        postChunk(chunk, callback);
+                        empty = false;
+                    }
+                }
+
+                final boolean noData = empty;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (noData) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTasksStreamComplete();
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-        Task task = null;
-        if (c != null && c.getCount() > 0) {
-            c.moveToFirst();
-            String itemId = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_ENTRY_ID));
-            String title = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_TITLE));
-            String description =
-                    c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_DESCRIPTION));
-            boolean completed =
-                    c.getInt(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_COMPLETED)) == 1;
-            task = new Task(title, description, itemId, completed);
-        }
+    /**
+     * Pages with a keyset on the row id instead of {@code OFFSET}: every page is a range scan
+     * that starts right after the last row of the previous one, so deep pages cost the same as
+     * the first. The page key is that last row id.
+     * <p>
+     * Note: {@link LoadTaskPageCallback#onDataNotAvailable()} is fired if no task matches the
+     * first page.
+     */
+    @Override
+    public void getTaskPage(@NonNull final TasksFilterType filtering, final int pageSize,
+                            @Nullable final String pageKey,
+                            @NonNull final LoadTaskPageCallback callback) {
+        checkNotNull(filtering);
+        checkNotNull(callback);
+        checkArgument(pageSize > 0, "pageSize must be positive");
+        Long parsedKey = pageKey == null ? Long.valueOf(0) : Longs.tryParse(pageKey);
+        checkArgument(parsedKey != null, "Not a page key of the local data source: %s", pageKey);
+        final long afterRowId = parsedKey;
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Task> tasks = new ArrayList<>(pageSize);
+                SQLiteDatabase db = getDatabase();
+
+                String[] projection = {
+                        TaskEntry._ID,
+                        TaskEntry.COLUMN_NAME_ENTRY_ID,
+                        TaskEntry.COLUMN_NAME_TITLE,
+                        TaskEntry.COLUMN_NAME_DESCRIPTION,
+                        TaskEntry.COLUMN_NAME_COMPLETED
+                };
+
+                String selection = TaskEntry._ID + " > ?";
+                String filterSelection = getFilterSelection(filtering);
+                if (filterSelection != null) {
+                    selection = filterSelection + " AND " + selection;
+                }
+                String[] selectionArgs = {Long.toString(afterRowId)};
+
+                // One extra row tells whether there is a next page without a COUNT query.
+                Cursor c = db.query(TaskEntry.TABLE_NAME, projection, selection, selectionArgs,
+                        null, null, TaskEntry._ID, Integer.toString(pageSize + 1));
+                long lastRowId = afterRowId;
+                boolean hasMore = false;
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        if (tasks.size() == pageSize) {
+                            hasMore = true;
+                            break;
+                        }
+                        lastRowId = c.getLong(c.getColumnIndexOrThrow(TaskEntry._ID));
+                        tasks.add(readTask(c));
+                    }
+                    c.close();
+                }
+
+                final TaskPage page = new TaskPage(tasks, hasMore ? Long.toString(lastRowId) : null);
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (pageKey == null && page.getTasks().isEmpty()) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTaskPageLoaded(page);
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-        if (c != null) {
-            c.close();
-        }
+    @Override
+    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+
+                String[] projection = {
+                        TaskEntry.COLUMN_NAME_ENTRY_ID,
+                        TaskEntry.COLUMN_NAME_TITLE,
+                        TaskEntry.COLUMN_NAME_DESCRIPTION,
+                        TaskEntry.COLUMN_NAME_COMPLETED
+                };
+
+                String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?";
+                String[] selectionArgs = {taskId};
+
+                Cursor c = db.query(TaskEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+
+                Task task = null;
+                if (c != null && c.getCount() > 0) {
+                    c.moveToFirst();
+                    task = readTask(c);
+                }
+
+                if (c != null) {
+                    c.close();
+                }
+
+                final Task loadedTask = task;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadedTask != null) {
+                            callback.onTaskLoaded(loadedTask);
+                        } else {
+                            callback.onDataNotAvailable();
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-        db.close();
+    /**
+     * Reads all requested tasks with one {@code IN} query per {@link #MAX_BOUND_IDS} ids. The
+     * tasks of each query come in table order, but not the whole list once it takes several
+     * queries, so callers match the tasks by id.
+     */
+    @Override
+    public void getTasks(@NonNull Collection<String> taskIds,
+                         @NonNull final LoadTasksCallback callback) {
+        checkNotNull(callback);
+        final List<String> ids = new ArrayList<>(checkNotNull(taskIds));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Task> tasks = new ArrayList<>(ids.size());
+                for (List<String> chunk : Lists.partition(ids, MAX_BOUND_IDS)) {
+                    tasks.addAll(queryTasks(getIdSelection(chunk.size()),
+                            chunk.toArray(new String[chunk.size()])));
+                }
+
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (tasks.isEmpty()) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTasksLoaded(tasks);
+                        }
+                    }
+                });
+            }
+        });
+    }
 
-        if (task != null) {
-            callback.onTaskLoaded(task);
-        } else {
-            callback.onDataNotAvailable();
-        }
+    /**
+     * Counts with a single {@code GROUP BY} over the index on the completed column, no row is
+     * materialized.
+     * <p>
+     * Note: {@link GetTaskCountsCallback#onDataNotAvailable()} is fired if the table is empty.
+     */
+    @Override
+    public void getTaskCounts(@NonNull final GetTaskCountsCallback callback) {
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                int active = 0;
+                int completed = 0;
+                Cursor c = getDatabase().rawQuery("SELECT " + TaskEntry.COLUMN_NAME_COMPLETED +
+                        ", COUNT(*) FROM " + TaskEntry.TABLE_NAME +
+                        " GROUP BY " + TaskEntry.COLUMN_NAME_COMPLETED, null);
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        if (c.getInt(0) == 1) {
+                            completed = c.getInt(1);
+                        } else {
+                            active += c.getInt(1);
+                        }
+                    }
+                    c.close();
+                }
+
+                final int activeCount = active;
+                final int completedCount = completed;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (activeCount + completedCount == 0) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTaskCountsLoaded(activeCount, completedCount);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     @Override
-    public void saveTask(@NonNull Task task) {
+    public void saveTask(@NonNull final Task task) {
         checkNotNull(task);
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                upsertTask(task);
+            }
+        });
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(TaskEntry.COLUMN_NAME_ENTRY_ID, task.getId());
-        values.put(TaskEntry.COLUMN_NAME_TITLE, task.getTitle());
-        values.put(TaskEntry.COLUMN_NAME_DESCRIPTION, task.getDescription());
-        values.put(TaskEntry.COLUMN_NAME_COMPLETED, task.isCompleted());
+    /**
+     * Writes all {@code tasks} in a single transaction, reusing the compiled statements.
+     */
+    @Override
+    public void saveTasks(@NonNull Collection<Task> tasks) {
+        final List<Task> batch = new ArrayList<>(checkNotNull(tasks));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    for (Task task : batch) {
+                        upsertTask(task);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
 
-        db.insert(TaskEntry.TABLE_NAME, null, values);
-        db.close();
+    /**
+     * Clears the table and inserts all {@code tasks} in a single transaction, so readers never
+     * see a partially refreshed table.
+     */
+    @Override
+    public void replaceAllTasks(@NonNull Collection<Task> tasks) {
+        final List<Task> batch = new ArrayList<>(checkNotNull(tasks));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    deleteAll(db);
+                    for (Task task : batch) {
+                        insertTask(task);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
     }
 
     @Override
-    public void completeTask(@NonNull Task task) {
+    public void completeTask(@NonNull final Task task) {
         checkNotNull(task);
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(TaskEntry.COLUMN_NAME_COMPLETED, true);
-
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ? ";
-        String[] selectionArgs = {task.getId()};
-
-        db.update(TaskEntry.TABLE_NAME, values, selection, selectionArgs);
-        db.close();
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                updateCompleted(task.getId(), true);
+            }
+        });
     }
 
     @Override
@@ -156,18 +482,13 @@ public class TaskLocalDataSource implements TaskDataSource {
     }
 
     @Override
-    public void activateTask(@NonNull Task task) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(TaskEntry.COLUMN_NAME_COMPLETED, false);
-
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ?";
-        String[] selectionArgs = {task.getId()};
-
-        db.update(TaskEntry.TABLE_NAME, values, selection, selectionArgs);
-
-        db.close();
+    public void activateTask(@NonNull final Task task) {
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                updateCompleted(task.getId(), false);
+            }
+        });
     }
 
     @Override
@@ -176,15 +497,40 @@ public class TaskLocalDataSource implements TaskDataSource {
         // converting from a {@code taskId} to a {@link task} using its cached data.
     }
 
+    /**
+     * Updates all tasks with one {@code UPDATE ... WHERE id IN (...)} statement, in a single
+     * transaction.
+     */
     @Override
-    public void clearCompletedTasks() {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        String selection = TaskEntry.COLUMN_NAME_COMPLETED + " LIKE ?";
-        String[] selectionArgs = {"1"};
+    public void completeTasks(@NonNull Collection<String> taskIds) {
+        updateCompleted(taskIds, true);
+    }
 
-        db.delete(TaskEntry.TABLE_NAME, selection, selectionArgs);
+    /**
+     * Updates all tasks with one {@code UPDATE ... WHERE id IN (...)} statement, in a single
+     * transaction.
+     */
+    @Override
+    public void activateTasks(@NonNull Collection<String> taskIds) {
+        updateCompleted(taskIds, false);
+    }
 
-        db.close();
+    @Override
+    public void clearCompletedTasks() {
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                String selection = TaskEntry.COLUMN_NAME_COMPLETED + " = 1";
+
+                if (hashTree != null) {
+                    for (Task task : queryTasks(selection, null)) {
+                        hashTree.remove(task.getId());
+                    }
+                }
+                db.delete(TaskEntry.TABLE_NAME, selection, null);
+            }
+        });
     }
 
     @Override
@@ -195,22 +541,391 @@ public class TaskLocalDataSource implements TaskDataSource {
 
     @Override
     public void deleteAllTasks() {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                deleteAll(getDatabase());
+            }
+        });
+    }
 
-        db.delete(TaskEntry.TABLE_NAME, null, null);
+    @Override
+    public void deleteTask(@NonNull final String taskId) {
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteStatement statement = getDeleteByIdStatement();
+                statement.bindString(1, taskId);
+                statement.executeUpdateDelete();
+                if (hashTree != null) {
+                    hashTree.remove(taskId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes all {@code taskIds} with one {@code DELETE ... WHERE id IN (...)} statement, in a
+     * single transaction.
+     */
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        final List<String> batch = new ArrayList<>(checkNotNull(taskIds));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    deleteByIds(db, batch);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
 
-        db.close();
+    @Override
+    public void getSyncToken(@NonNull final GetSyncTokenCallback callback) {
+        checkNotNull(callback);
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                String token = null;
+                Cursor c = getDatabase().query(SyncStateEntry.TABLE_NAME,
+                        new String[]{SyncStateEntry.COLUMN_NAME_VALUE},
+                        SyncStateEntry.COLUMN_NAME_KEY + " = ?",
+                        new String[]{SyncStateEntry.KEY_SYNC_TOKEN}, null, null, null);
+                if (c != null) {
+                    if (c.moveToFirst()) {
+                        token = c.getString(0);
+                    }
+                    c.close();
+                }
+
+                final String syncToken = token;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSyncTokenLoaded(syncToken);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Writes the changed tasks, deletes the deleted ones and stores the new token in a single
+     * transaction.
+     */
+    @Override
+    public void applyDelta(@NonNull final TaskDelta delta) {
+        checkNotNull(delta);
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                db.beginTransaction();
+                try {
+                    if (delta.isFullSync()) {
+                        deleteAll(db);
+                        for (Task task : delta.getChangedTasks()) {
+                            insertTask(task);
+                        }
+                    } else {
+                        for (Task task : delta.getChangedTasks()) {
+                            upsertTask(task);
+                        }
+                        deleteByIds(db, delta.getDeletedTaskIds());
+                    }
+                    ContentValues values = new ContentValues();
+                    values.put(SyncStateEntry.COLUMN_NAME_KEY, SyncStateEntry.KEY_SYNC_TOKEN);
+                    values.put(SyncStateEntry.COLUMN_NAME_VALUE, delta.getSyncToken());
+                    db.insertWithOnConflict(SyncStateEntry.TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void getHashes(final int level, @NonNull List<Integer> nodeIndexes,
+                          @NonNull final GetHashesCallback callback) {
+        checkNotNull(callback);
+        final List<Integer> indexes = new ArrayList<>(checkNotNull(nodeIndexes));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                TaskHashTree tree = getHashTree();
+                final long[] hashes = new long[indexes.size()];
+                for (int i = 0; i < hashes.length; i++) {
+                    hashes[i] = tree.getHash(level, indexes.get(i));
+                }
+
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onHashesLoaded(hashes);
+                    }
+                });
+            }
+        });
     }
 
     @Override
-    public void deleteTask(@NonNull String taskId) {
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
+    public void getBucketDigests(@NonNull List<Integer> bucketIndexes,
+                                 @NonNull final GetBucketDigestsCallback callback) {
+        checkNotNull(callback);
+        final List<Integer> indexes = new ArrayList<>(checkNotNull(bucketIndexes));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                TaskHashTree tree = getHashTree();
+                final Map<String, Long> digests = new HashMap<>();
+                for (int index : indexes) {
+                    digests.putAll(tree.getBucketDigests(index));
+                }
+
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBucketDigestsLoaded(digests);
+                    }
+                });
+            }
+        });
+    }
 
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ?";
-        String[] selectionArgs = {taskId};
+    /**
+     * Returns the hash tree of the stored tasks, reading them all the first time.
+     */
+    private TaskHashTree getHashTree() {
+        if (hashTree == null) {
+            TaskHashTree tree = new TaskHashTree();
+            for (Task task : queryTasks(null, null)) {
+                tree.put(task);
+            }
+            hashTree = tree;
+        }
+        return hashTree;
+    }
 
-        db.delete(TaskEntry.TABLE_NAME, selection, selectionArgs);
+    @NonNull
+    private List<Task> queryTasks(@Nullable String selection, @Nullable String[] selectionArgs) {
+        String[] projection = {
+                TaskEntry.COLUMN_NAME_ENTRY_ID,
+                TaskEntry.COLUMN_NAME_TITLE,
+                TaskEntry.COLUMN_NAME_DESCRIPTION,
+                TaskEntry.COLUMN_NAME_COMPLETED
+        };
+        List<Task> tasks = new ArrayList<>();
+        Cursor c = getDatabase().query(TaskEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, null);
+        if (c == null) {
+            return tasks;
+        }
+        while (c.moveToNext()) {
+            tasks.add(readTask(c));
+        }
+        c.close();
+        return tasks;
+    }
+
+    private void deleteAll(@NonNull SQLiteDatabase db) {
+        db.delete(TaskEntry.TABLE_NAME, null, null);
+        if (hashTree != null) {
+            hashTree.clear();
+        }
+    }
 
-        db.close();
+    private void deleteByIds(@NonNull SQLiteDatabase db, @NonNull List<String> taskIds) {
+        for (List<String> chunk : Lists.partition(taskIds, MAX_BOUND_IDS)) {
+            db.delete(TaskEntry.TABLE_NAME, getIdSelection(chunk.size()),
+                    chunk.toArray(new String[chunk.size()]));
+        }
+        if (hashTree != null) {
+            for (String taskId : taskIds) {
+                hashTree.remove(taskId);
+            }
+        }
+    }
+
+    private void upsertTask(@NonNull Task task) {
+        // Update in place first so an edited task keeps its position in the list.
+        SQLiteStatement update = getUpdateStatement();
+        bindNullableString(update, 1, task.getTitle());
+        bindNullableString(update, 2, task.getDescription());
+        update.bindLong(3, task.isCompleted() ? 1 : 0);
+        update.bindString(4, task.getId());
+        if (update.executeUpdateDelete() == 0) {
+            insertTask(task);
+        } else if (hashTree != null) {
+            hashTree.put(task);
+        }
+    }
+
+    private void insertTask(@NonNull Task task) {
+        SQLiteStatement insert = getInsertStatement();
+        insert.bindString(1, task.getId());
+        bindNullableString(insert, 2, task.getTitle());
+        bindNullableString(insert, 3, task.getDescription());
+        insert.bindLong(4, task.isCompleted() ? 1 : 0);
+        insert.executeInsert();
+        if (hashTree != null) {
+            hashTree.put(task);
+        }
+    }
+
+    private void updateCompleted(@NonNull String taskId, boolean completed) {
+        SQLiteStatement statement = getUpdateCompletedStatement();
+        statement.bindLong(1, completed ? 1 : 0);
+        statement.bindString(2, taskId);
+        statement.executeUpdateDelete();
+        if (hashTree != null) {
+            for (Task task : queryTasks(getIdSelection(1), new String[]{taskId})) {
+                hashTree.put(task);
+            }
+        }
+    }
+
+    private void updateCompleted(@NonNull Collection<String> taskIds, final boolean completed) {
+        final List<String> batch = new ArrayList<>(checkNotNull(taskIds));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = getDatabase();
+                ContentValues values = new ContentValues();
+                values.put(TaskEntry.COLUMN_NAME_COMPLETED, completed ? 1 : 0);
+                db.beginTransaction();
+                try {
+                    for (List<String> chunk : Lists.partition(batch, MAX_BOUND_IDS)) {
+                        String[] selectionArgs = chunk.toArray(new String[chunk.size()]);
+                        db.update(TaskEntry.TABLE_NAME, values, getIdSelection(chunk.size()),
+                                selectionArgs);
+                        if (hashTree != null) {
+                            for (Task task : queryTasks(getIdSelection(chunk.size()),
+                                    selectionArgs)) {
+                                hashTree.put(task);
+                            }
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    private void postChunk(final List<Task> chunk, final StreamTasksCallback callback) {
+        appExecutors.mainThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onTasksChunkLoaded(chunk);
+            }
+        });
+    }
+
+    /**
+     * Reads the task at the current position of {@code c}, which must project the entry id,
+     * title, description and completed columns.
+     */
+    @NonNull
+    private static Task readTask(@NonNull Cursor c) {
+        String itemId = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_ENTRY_ID));
+        String title = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_TITLE));
+        String description = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_DESCRIPTION));
+        boolean completed = c.getInt(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_COMPLETED)) == 1;
+        return new Task(title, description, itemId, completed);
+    }
+
+    /**
+     * Returns the {@code WHERE} clause selecting the tasks of {@code filtering}, or null for all.
+     */
+    @Nullable
+    private static String getFilterSelection(@NonNull TasksFilterType filtering) {
+        switch (filtering) {
+            case ACTIVE_TASKS:
+                return TaskEntry.COLUMN_NAME_COMPLETED + " = 0";
+            case COMPLETED_TASKS:
+                return TaskEntry.COLUMN_NAME_COMPLETED + " = 1";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns a {@code WHERE} clause selecting the tasks whose id is one of {@code count} bound
+     * arguments.
+     */
+    private static String getIdSelection(int count) {
+        StringBuilder selection = new StringBuilder(TaskEntry.COLUMN_NAME_ENTRY_ID).append(" IN (?");
+        for (int i = 1; i < count; i++) {
+            selection.append(",?");
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * Returns the shared connection. {@link TaskDBHelper} keeps it open once created, so it must
+     * not be closed by callers.
+     */
+    private SQLiteDatabase getDatabase() {
+        return dbHelper.getWritableDatabase();
+    }
+
+    private SQLiteStatement getInsertStatement() {
+        if (insertStatement == null) {
+            insertStatement = getDatabase().compileStatement(
+                    "INSERT INTO " + TaskEntry.TABLE_NAME + " (" +
+                            TaskEntry.COLUMN_NAME_ENTRY_ID + "," +
+                            TaskEntry.COLUMN_NAME_TITLE + "," +
+                            TaskEntry.COLUMN_NAME_DESCRIPTION + "," +
+                            TaskEntry.COLUMN_NAME_COMPLETED + ") VALUES (?,?,?,?)");
+        }
+        return insertStatement;
+    }
+
+    private SQLiteStatement getUpdateStatement() {
+        if (updateStatement == null) {
+            updateStatement = getDatabase().compileStatement(
+                    "UPDATE " + TaskEntry.TABLE_NAME + " SET " +
+                            TaskEntry.COLUMN_NAME_TITLE + " = ?," +
+                            TaskEntry.COLUMN_NAME_DESCRIPTION + " = ?," +
+                            TaskEntry.COLUMN_NAME_COMPLETED + " = ?" +
+                            " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?");
+        }
+        return updateStatement;
+    }
+
+    private SQLiteStatement getUpdateCompletedStatement() {
+        if (updateCompletedStatement == null) {
+            updateCompletedStatement = getDatabase().compileStatement(
+                    "UPDATE " + TaskEntry.TABLE_NAME +
+                            " SET " + TaskEntry.COLUMN_NAME_COMPLETED + " = ?" +
+                            " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?");
+        }
+        return updateCompletedStatement;
+    }
+
+    private SQLiteStatement getDeleteByIdStatement() {
+        if (deleteByIdStatement == null) {
+            deleteByIdStatement = getDatabase().compileStatement(
+                    "DELETE FROM " + TaskEntry.TABLE_NAME +
+                            " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?");
+        }
+        return deleteByIdStatement;
+    }
+
+    private static void bindNullableString(SQLiteStatement statement, int index, @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
     }
 }
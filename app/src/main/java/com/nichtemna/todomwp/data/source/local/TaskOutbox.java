@@ -0,0 +1,220 @@
+package com.nichtemna.todomwp.data.source.local;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.local.TaskPersistenceContract.OutboxEntry;
+import com.nichtemna.todomwp.util.AppExecutors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Writes waiting to be sent to the server, stored in the tasks database so that they survive the
+ * process. Obtained from {@link TaskLocalDataSource#getOutbox()}.
+ * <p>
+ * Appending a write drops the queued writes it supersedes: a save or a delete of a task replaces
+ * every earlier write of that task, a completion or activation replaces the earlier ones since
+ * the last bulk delete, and deleting all tasks replaces everything. Entries already handed out by
+ * {@link #loadBatch(int, LoadBatchCallback)} may be dropped as well; that only means the server
+ * receives a write that a later entry overrides anyway.
+ * <p>
+ * Like {@link TaskLocalDataSource}, all database work runs on {@link AppExecutors#diskIO()} and
+ * callbacks are delivered on {@link AppExecutors#mainThread()}.
+ */
+public class TaskOutbox {
+
+    public interface LoadBatchCallback {
+
+        void onBatchLoaded(@NonNull Batch batch);
+    }
+
+    /**
+     * The oldest queued writes, in order.
+     */
+    public static final class Batch {
+
+        private final List<TaskMutation> mutations;
+
+        private final long lastEntryId;
+
+        public Batch(@NonNull List<TaskMutation> mutations, long lastEntryId) {
+            this.mutations = Collections.unmodifiableList(mutations);
+            this.lastEntryId = lastEntryId;
+        }
+
+        @NonNull
+        public List<TaskMutation> getMutations() {
+            return mutations;
+        }
+
+        /**
+         * Returns the entry id to pass to {@link #removeUpTo(long)} once the batch was applied.
+         */
+        public long getLastEntryId() {
+            return lastEntryId;
+        }
+
+        public boolean isEmpty() {
+            return mutations.isEmpty();
+        }
+    }
+
+    private static final String BULK_ENTRY_SELECTION =
+            "SELECT IFNULL(MAX(" + OutboxEntry._ID + "), 0) FROM " + OutboxEntry.TABLE_NAME +
+                    " WHERE " + OutboxEntry.COLUMN_NAME_ENTRY_ID + " IS NULL";
+
+    private static final String TASK_ENTRIES_SELECTION =
+            OutboxEntry.COLUMN_NAME_ENTRY_ID + " = ?";
+
+    private static final String STATE_ENTRIES_SELECTION =
+            OutboxEntry.COLUMN_NAME_ENTRY_ID + " = ? AND " +
+                    OutboxEntry.COLUMN_NAME_OPERATION + " IN ('" + TaskMutation.Type.COMPLETE +
+                    "', '" + TaskMutation.Type.ACTIVATE + "') AND " +
+                    OutboxEntry._ID + " > (" + BULK_ENTRY_SELECTION + ")";
+
+    private final TaskDBHelper dbHelper;
+
+    private final AppExecutors appExecutors;
+
+    TaskOutbox(@NonNull TaskDBHelper dbHelper, @NonNull AppExecutors appExecutors) {
+        this.dbHelper = checkNotNull(dbHelper);
+        this.appExecutors = checkNotNull(appExecutors);
+    }
+
+    /**
+     * Queues {@code mutations} after every write already queued, in a single transaction.
+     */
+    public void append(@NonNull List<TaskMutation> mutations) {
+        final List<TaskMutation> batch = new ArrayList<>(checkNotNull(mutations));
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (TaskMutation mutation : batch) {
+                        dropSupersededEntries(db, mutation);
+                        db.insert(OutboxEntry.TABLE_NAME, null, toContentValues(mutation));
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads at most {@code maxSize} of the oldest queued writes. The batch is empty if nothing is
+     * queued.
+     */
+    public void loadBatch(final int maxSize, @NonNull final LoadBatchCallback callback) {
+        checkArgument(maxSize > 0, "maxSize must be positive");
+        checkNotNull(callback);
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                List<TaskMutation> mutations = new ArrayList<>();
+                long lastEntryId = 0;
+                Cursor c = dbHelper.getWritableDatabase().query(OutboxEntry.TABLE_NAME, null,
+                        null, null, null, null, OutboxEntry._ID, Integer.toString(maxSize));
+                if (c != null) {
+                    while (c.moveToNext()) {
+                        lastEntryId = c.getLong(c.getColumnIndexOrThrow(OutboxEntry._ID));
+                        mutations.add(toMutation(c));
+                    }
+                    c.close();
+                }
+
+                final Batch batch = new Batch(mutations, lastEntryId);
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBatchLoaded(batch);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Removes every entry up to and including {@code lastEntryId}, once they were applied.
+     */
+    public void removeUpTo(final long lastEntryId) {
+        appExecutors.diskIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.getWritableDatabase().delete(OutboxEntry.TABLE_NAME,
+                        OutboxEntry._ID + " <= ?", new String[]{Long.toString(lastEntryId)});
+            }
+        });
+    }
+
+    private static void dropSupersededEntries(SQLiteDatabase db, TaskMutation mutation) {
+        switch (mutation.getType()) {
+            case SAVE:
+            case DELETE:
+                db.delete(OutboxEntry.TABLE_NAME, TASK_ENTRIES_SELECTION,
+                        new String[]{mutation.getTaskId()});
+                break;
+            case COMPLETE:
+            case ACTIVATE:
+                // Across a bulk delete the earlier state decides whether the task still exists.
+                db.delete(OutboxEntry.TABLE_NAME, STATE_ENTRIES_SELECTION,
+                        new String[]{mutation.getTaskId()});
+                break;
+            case DELETE_ALL:
+                db.delete(OutboxEntry.TABLE_NAME, null, null);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static ContentValues toContentValues(TaskMutation mutation) {
+        ContentValues values = new ContentValues();
+        values.put(OutboxEntry.COLUMN_NAME_OPERATION, mutation.getType().name());
+        values.put(OutboxEntry.COLUMN_NAME_ENTRY_ID, mutation.getTaskId());
+        Task task = mutation.getTask();
+        if (task != null) {
+            values.put(OutboxEntry.COLUMN_NAME_TITLE, task.getTitle());
+            values.put(OutboxEntry.COLUMN_NAME_DESCRIPTION, task.getDescription());
+            values.put(OutboxEntry.COLUMN_NAME_COMPLETED, task.isCompleted() ? 1 : 0);
+        }
+        return values;
+    }
+
+    private static TaskMutation toMutation(Cursor c) {
+        TaskMutation.Type type = TaskMutation.Type.valueOf(
+                c.getString(c.getColumnIndexOrThrow(OutboxEntry.COLUMN_NAME_OPERATION)));
+        String taskId = c.getString(c.getColumnIndexOrThrow(OutboxEntry.COLUMN_NAME_ENTRY_ID));
+        switch (type) {
+            case SAVE:
+                String title = c.getString(c.getColumnIndexOrThrow(OutboxEntry.COLUMN_NAME_TITLE));
+                String description =
+                        c.getString(c.getColumnIndexOrThrow(OutboxEntry.COLUMN_NAME_DESCRIPTION));
+                boolean completed =
+                        c.getInt(c.getColumnIndexOrThrow(OutboxEntry.COLUMN_NAME_COMPLETED)) == 1;
+                return TaskMutation.save(new Task(title, description, taskId, completed));
+            case DELETE:
+                return TaskMutation.delete(taskId);
+            case COMPLETE:
+                return TaskMutation.complete(taskId);
+            case ACTIVATE:
+                return TaskMutation.activate(taskId);
+            case CLEAR_COMPLETED:
+                return TaskMutation.clearCompleted();
+            default:
+                return TaskMutation.deleteAll();
+        }
+    }
+}
@@ -17,5 +17,26 @@ public final class TaskPersistenceContract {
         public static final String COLUMN_NAME_TITLE = "title";
         public static final String COLUMN_NAME_DESCRIPTION = "description";
         public static final String COLUMN_NAME_COMPLETED = "completed";
+        public static final String INDEX_ENTRY_ID = "index_task_entryId";
+        public static final String INDEX_COMPLETED = "index_task_completed";
+    }
+
+    /* Writes waiting to be sent to the server, in the order of their row id */
+    public static abstract class OutboxEntry implements BaseColumns {
+        public static final String TABLE_NAME = "outbox";
+        public static final String COLUMN_NAME_OPERATION = "operation";
+        public static final String COLUMN_NAME_ENTRY_ID = "entryId";
+        public static final String COLUMN_NAME_TITLE = "title";
+        public static final String COLUMN_NAME_DESCRIPTION = "description";
+        public static final String COLUMN_NAME_COMPLETED = "completed";
+        public static final String INDEX_ENTRY_ID = "index_outbox_entryId";
+    }
+
+    /* Key-value state of the sync with the server */
+    public static abstract class SyncStateEntry {
+        public static final String TABLE_NAME = "sync_state";
+        public static final String COLUMN_NAME_KEY = "key";
+        public static final String COLUMN_NAME_VALUE = "value";
+        public static final String KEY_SYNC_TOKEN = "syncToken";
     }
 }
@@ -0,0 +1,578 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.TaskMutationTarget;
+import com.nichtemna.todomwp.data.source.TaskPage;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.AppExecutors;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Implementation of the data source that talks JSON to a task server over HTTP.
+ * <p>
+ * Connections are kept alive and reused by {@link HttpURLConnection}'s pool, which is why every
+ * response is read to the end and its stream closed rather than the connection disconnected.
+ * Responses are requested gzipped and larger request bodies are sent gzipped. Multi-get and all
+ * writes use batched endpoints, so each of them is a single round trip.
+ * <p>
+ * Reads run on {@link AppExecutors#networkIO()} and writes on
+ * {@link AppExecutors#networkWrites()}, so that they reach the server in the order they were
+ * issued. Results are delivered on {@link AppExecutors#mainThread()}.
+ */
+public class HttpTasksDataSource implements TaskDataSource, TaskMutationTarget {
+
+    static final String PATH_TASKS = "tasks";
+    static final String PATH_TASK_PAGE = "tasks/page";
+    static final String PATH_TASK_BATCH = "tasks/batch";
+    static final String PATH_TASK_COUNTS = "tasks/counts";
+    static final String PATH_MUTATIONS = "mutations";
+
+    static final String PARAM_FILTER = "filter";
+    static final String PARAM_PAGE_SIZE = "size";
+    static final String PARAM_PAGE_KEY = "after";
+
+    static final String GZIP = "gzip";
+
+    /**
+     * Bodies smaller than this aren't worth compressing.
+     */
+    static final int MIN_GZIP_BYTES = 1024;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final int READ_TIMEOUT_MILLIS = 15000;
+
+    private final URL baseUrl;
+
+    private final AppExecutors appExecutors;
+
+    /**
+     * @param baseUrl the server's root, ending with a slash
+     */
+    public HttpTasksDataSource(@NonNull URL baseUrl, @NonNull AppExecutors appExecutors) {
+        this.baseUrl = checkNotNull(baseUrl);
+        this.appExecutors = checkNotNull(appExecutors);
+        checkArgument(baseUrl.getPath().endsWith("/"), "baseUrl must end with a slash");
+    }
+
+    @Override
+    public void getTasks(@NonNull LoadTasksCallback callback) {
+        getTasks(TasksFilterType.ALL_TASKS, callback);
+    }
+
+    /**
+     * Filters on the server side, so only the matching tasks are sent back.
+     */
+    @Override
+    public void getTasks(@NonNull final TasksFilterType filtering,
+                         @NonNull final LoadTasksCallback callback) {
+        appExecutors.networkIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Task> tasks;
+                try {
+                    tasks = TaskJson.decodeTasks(
+                            getExisting(PATH_TASKS + "?" + PARAM_FILTER + "=" + filtering));
+                } catch (IOException e) {
+                    tasks = null;
+                }
+                final List<Task> loadedTasks = tasks;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadedTasks == null) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTasksLoaded(loadedTasks);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Parses the response while it is still being read and hands it over in chunks of
+     * {@code chunkSize} tasks, each delivered as its own message on the main thread as soon as it
+     * is parsed. If the connection breaks off, {@link StreamTasksCallback#onDataNotAvailable()}
+     * follows the chunks delivered so far.
+     */
+    @Override
+    public void streamTasks(@NonNull final TasksFilterType filtering, final int chunkSize,
+                            @NonNull final StreamTasksCallback callback) {
+        checkArgument(chunkSize > 0, "chunkSize must be positive");
+        appExecutors.networkIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean complete;
+                try {
+                    InputStream in = open("GET", PATH_TASKS + "?" + PARAM_FILTER + "=" + filtering, null);
+                    complete = in != null;
+                    if (complete) {
+                        try {
+                            Reader json = new BufferedReader(new InputStreamReader(in, Charsets.UTF_8));
+                            TaskJson.decodeTasks(json, chunkSize, new TaskJson.TaskChunkCallback() {
+                                @Override
+                                public void onTasksChunkDecoded(@NonNull List<Task> tasks) {
+                                    postChunk(tasks, callback);
+                                }
+                            });
+                        } finally {
+                            in.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    complete = false;
+                }
+                final boolean streamComplete = complete;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (streamComplete) {
+                            callback.onTasksStreamComplete();
+                        } else {
+                            callback.onDataNotAvailable();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void postChunk(final List<Task> chunk, final StreamTasksCallback callback) {
+        appExecutors.mainThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onTasksChunkLoaded(chunk);
+            }
+        });
+    }
+
+    /**
+     * The page key is the id of the last task of the previous page.
+     */
+    @Override
+    public void getTaskPage(@NonNull final TasksFilterType filtering, final int pageSize,
+                            @Nullable final String pageKey,
+                            @NonNull final LoadTaskPageCallback callback) {
+        checkArgument(pageSize > 0, "pageSize must be positive");
+        appExecutors.networkIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                TaskPage page;
+                try {
+                    String query = PARAM_FILTER + "=" + filtering + "&" + PARAM_PAGE_SIZE + "=" + pageSize;
+                    if (pageKey != null) {
+                        query += "&" + PARAM_PAGE_KEY + "=" + encode(pageKey);
+                    }
+                    page = TaskJson.decodePage(getExisting(PATH_TASK_PAGE + "?" + query));
+                } catch (IOException e) {
+                    page = null;
+                }
+                final TaskPage loadedPage = page;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadedPage == null) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTaskPageLoaded(loadedPage);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reports {@link GetTaskCallback#onTaskLoaded(Task)} with null if the server doesn't have the
+     * task, and {@link GetTaskCallback#onDataNotAvailable()} if it couldn't be asked.
+     */
+    @Override
+    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
+        appExecutors.networkIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                Task task;
+                boolean answered;
+                try {
+                    String response = get(PATH_TASKS + "/" + encode(taskId));
+                    task = response == null ? null : TaskJson.decodeTask(response);
+                    answered = true;
+                } catch (IOException e) {
+                    task = null;
+                    answered = false;
+                }
+                final Task loadedTask = task;
+                final boolean serverAnswered = answered;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (serverAnswered) {
+                            callback.onTaskLoaded(loadedTask);
+                        } else {
+                            callback.onDataNotAvailable();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends all ids in one request; the server answers with the tasks it has.
+     */
+    @Override
+    public void getTasks(@NonNull Collection<String> taskIds,
+                         @NonNull final LoadTasksCallback callback) {
+        final String body = TaskJson.encodeIds(taskIds);
+        appExecutors.networkIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Task> tasks;
+                try {
+                    tasks = TaskJson.decodeTasks(post(PATH_TASK_BATCH, body));
+                } catch (IOException e) {
+                    tasks = Collections.emptyList();
+                }
+                final List<Task> loadedTasks = tasks;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadedTasks.isEmpty()) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTasksLoaded(loadedTasks);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void getTaskCounts(@NonNull final GetTaskCountsCallback callback) {
+        appExecutors.networkIO().execute(new Runnable() {
+            @Override
+            public void run() {
+                int[] counts;
+                try {
+                    counts = TaskJson.decodeCounts(getExisting(PATH_TASK_COUNTS));
+                } catch (IOException e) {
+                    counts = null;
+                }
+                final int[] loadedCounts = counts;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadedCounts == null) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onTaskCountsLoaded(loadedCounts[0], loadedCounts[1]);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void saveTask(@NonNull Task task) {
+        send(Collections.singletonList(TaskMutation.save(task)));
+    }
+
+    @Override
+    public void saveTasks(@NonNull Collection<Task> tasks) {
+        List<TaskMutation> mutations = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            mutations.add(TaskMutation.save(task));
+        }
+        send(mutations);
+    }
+
+    @Override
+    public void replaceAllTasks(@NonNull Collection<Task> tasks) {
+        List<TaskMutation> mutations = new ArrayList<>(tasks.size() + 1);
+        mutations.add(TaskMutation.deleteAll());
+        for (Task task : tasks) {
+            mutations.add(TaskMutation.save(task));
+        }
+        send(mutations);
+    }
+
+    @Override
+    public void completeTask(@NonNull Task task) {
+        completeTask(task.getId());
+    }
+
+    @Override
+    public void completeTask(@NonNull String taskId) {
+        send(Collections.singletonList(TaskMutation.complete(taskId)));
+    }
+
+    @Override
+    public void activateTask(@NonNull Task task) {
+        activateTask(task.getId());
+    }
+
+    @Override
+    public void activateTask(@NonNull String taskId) {
+        send(Collections.singletonList(TaskMutation.activate(taskId)));
+    }
+
+    @Override
+    public void completeTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.complete(taskId));
+        }
+        send(mutations);
+    }
+
+    @Override
+    public void activateTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.activate(taskId));
+        }
+        send(mutations);
+    }
+
+    @Override
+    public void clearCompletedTasks() {
+        send(Collections.singletonList(TaskMutation.clearCompleted()));
+    }
+
+    @Override
+    public void refreshTasks() {
+        // Not required because the {@link TasksRepository} handles the logic of refreshing the
+        // tasks from all the available data sources.
+    }
+
+    @Override
+    public void deleteAllTasks() {
+        send(Collections.singletonList(TaskMutation.deleteAll()));
+    }
+
+    @Override
+    public void deleteTask(@NonNull String taskId) {
+        send(Collections.singletonList(TaskMutation.delete(taskId)));
+    }
+
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.delete(taskId));
+        }
+        send(mutations);
+    }
+
+    /**
+     * Posts the whole batch to the mutations endpoint; the server answers with the positions of
+     * the mutations it rejected.
+     */
+    @Override
+    public void applyMutations(@NonNull List<TaskMutation> mutations,
+                               @NonNull final ApplyMutationsCallback callback) {
+        final List<TaskMutation> batch = new ArrayList<>(mutations);
+        final String body = TaskJson.encodeMutations(batch);
+        appExecutors.networkWrites().execute(new Runnable() {
+            @Override
+            public void run() {
+                List<TaskMutation> rejected;
+                try {
+                    rejected = new ArrayList<>();
+                    for (int index : TaskJson.decodeRejected(post(PATH_MUTATIONS, body))) {
+                        if (index < 0 || index >= batch.size()) {
+                            throw new IOException("No mutation at " + index);
+                        }
+                        rejected.add(batch.get(index));
+                    }
+                } catch (IOException e) {
+                    rejected = null;
+                }
+                final List<TaskMutation> rejectedMutations = rejected;
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (rejectedMutations == null) {
+                            callback.onMutationsFailed();
+                        } else {
+                            callback.onMutationsApplied(rejectedMutations);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Fire and forget like the other remote writes; use
+     * {@link #applyMutations(List, ApplyMutationsCallback)} to learn the outcome.
+     */
+    private void send(@NonNull List<TaskMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        final String body = TaskJson.encodeMutations(mutations);
+        appExecutors.networkWrites().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    post(PATH_MUTATIONS, body);
+                } catch (IOException e) {
+                    // Lost, the next refresh will show the server's state.
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private String get(@NonNull String path) throws IOException {
+        return execute("GET", path, null);
+    }
+
+    /**
+     * Like {@link #get(String)}, for endpoints that always exist: a 404 is an error.
+     */
+    @NonNull
+    private String getExisting(@NonNull String path) throws IOException {
+        String response = get(path);
+        if (response == null) {
+            throw new IOException("No such endpoint " + path);
+        }
+        return response;
+    }
+
+    @NonNull
+    private String post(@NonNull String path, @NonNull String body) throws IOException {
+        String response = execute("POST", path, body);
+        if (response == null) {
+            throw new IOException("No such endpoint " + path);
+        }
+        return response;
+    }
+
+    /**
+     * Returns the response body, or null if the server answered 404.
+     *
+     * @throws IOException if the server can't be reached or answered with another error
+     */
+    @Nullable
+    private String execute(@NonNull String method, @NonNull String path, @Nullable String body)
+            throws IOException {
+        InputStream in = open(method, path, body);
+        return in == null ? null : readFully(in, false);
+    }
+
+    /**
+     * Sends a request and returns its decompressed response body, which the caller must read to
+     * the end and close, or null if the server answered 404.
+     *
+     * @throws IOException if the server can't be reached or answered with another error
+     */
+    @Nullable
+    private InputStream open(@NonNull String method, @NonNull String path, @Nullable String body)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl, path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Accept", "application/json");
+        // Asked for explicitly, so the response is decoded below the same way on every platform.
+        connection.setRequestProperty("Accept-Encoding", GZIP);
+        if (body != null) {
+            byte[] bytes = body.getBytes(Charsets.UTF_8);
+            if (bytes.length >= MIN_GZIP_BYTES) {
+                bytes = gzip(bytes);
+                connection.setRequestProperty("Content-Encoding", GZIP);
+            }
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(bytes.length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        }
+        int status = connection.getResponseCode();
+        boolean gzipped = GZIP.equalsIgnoreCase(connection.getContentEncoding());
+        if (status >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            InputStream in = connection.getErrorStream();
+            // Drained even on errors, so that the connection goes back to the pool.
+            if (in != null) {
+                readFully(in, gzipped);
+            }
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw new IOException(method + " " + path + " failed with " + status);
+        }
+        InputStream in = connection.getInputStream();
+        return gzipped ? new GZIPInputStream(in) : in;
+    }
+
+    static byte[] gzip(@NonNull byte[] bytes) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4);
+        GZIPOutputStream out = new GZIPOutputStream(buffer);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Reads {@code in} to the end and closes it.
+     */
+    static String readFully(@NonNull InputStream in, boolean gzipped) throws IOException {
+        InputStream source = in;
+        try {
+            if (gzipped) {
+                source = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = source.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            return new String(buffer.toByteArray(), Charsets.UTF_8);
+        } finally {
+            source.close();
+        }
+    }
+
+    private static String encode(@NonNull String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+}
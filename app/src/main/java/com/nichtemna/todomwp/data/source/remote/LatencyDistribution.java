@@ -0,0 +1,84 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import android.support.annotation.NonNull;
+
+import java.util.Random;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Round trip times of a simulated network, see {@link NetworkProfile}.
+ */
+public abstract class LatencyDistribution {
+
+    /**
+     * z-score of the 99th percentile of the standard normal distribution.
+     */
+    private static final double Z_99 = 2.326;
+
+    /**
+     * Returns the latency of one request in milliseconds, never negative.
+     */
+    public abstract long sampleMillis(@NonNull Random random);
+
+    /**
+     * Every request takes exactly {@code millis}.
+     */
+    @NonNull
+    public static LatencyDistribution fixed(final long millis) {
+        checkArgument(millis >= 0, "millis must not be negative");
+        return new LatencyDistribution() {
+            @Override
+            public long sampleMillis(@NonNull Random random) {
+                return millis;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed(" + millis + ")";
+            }
+        };
+    }
+
+    /**
+     * Latencies spread symmetrically around {@code meanMillis}; samples below zero count as zero.
+     */
+    @NonNull
+    public static LatencyDistribution normal(final long meanMillis, final long stdDevMillis) {
+        checkArgument(meanMillis >= 0, "meanMillis must not be negative");
+        checkArgument(stdDevMillis >= 0, "stdDevMillis must not be negative");
+        return new LatencyDistribution() {
+            @Override
+            public long sampleMillis(@NonNull Random random) {
+                return Math.max(0, Math.round(meanMillis + random.nextGaussian() * stdDevMillis));
+            }
+
+            @Override
+            public String toString() {
+                return "normal(" + meanMillis + ", " + stdDevMillis + ")";
+            }
+        };
+    }
+
+    /**
+     * Log-normal latencies: most requests take about {@code medianMillis}, one in a hundred takes
+     * {@code p99Millis} or longer.
+     */
+    @NonNull
+    public static LatencyDistribution longTail(final long medianMillis, final long p99Millis) {
+        checkArgument(medianMillis > 0, "medianMillis must be positive");
+        checkArgument(p99Millis >= medianMillis, "p99Millis must not be below medianMillis");
+        final double sigma = Math.log((double) p99Millis / medianMillis) / Z_99;
+        return new LatencyDistribution() {
+            @Override
+            public long sampleMillis(@NonNull Random random) {
+                return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+
+            @Override
+            public String toString() {
+                return "longTail(" + medianMillis + ", " + p99Millis + ")";
+            }
+        };
+    }
+}
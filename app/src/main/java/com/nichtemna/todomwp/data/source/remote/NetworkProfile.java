@@ -0,0 +1,123 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import android.support.annotation.NonNull;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The network {@link TasksRemoteDataSource} simulates.
+ * <p>
+ * Every request waits for a free connection if {@link #getMaxConcurrentRequests()} are already
+ * in flight. It then fails after one round trip with probability {@link #getErrorRate()}, hangs
+ * until {@link #getTimeoutMillis()} with probability {@link #getTimeoutRate()}, and otherwise
+ * takes one round trip plus the time to move its request and response over a link of
+ * {@link #getBytesPerSecond()} shared by all requests.
+ */
+public final class NetworkProfile {
+
+    public static final long UNLIMITED_BANDWIDTH = Long.MAX_VALUE;
+
+    public static final int UNLIMITED_CONCURRENCY = Integer.MAX_VALUE;
+
+    /**
+     * A slow but perfectly reliable server.
+     */
+    public static final NetworkProfile DEFAULT = new NetworkProfile(
+            LatencyDistribution.fixed(5000), UNLIMITED_BANDWIDTH, 0, 0, 0, UNLIMITED_CONCURRENCY);
+
+    public static final NetworkProfile WIFI = new NetworkProfile(
+            LatencyDistribution.normal(40, 10), 2500000, 0.001, 0, 10000, 6);
+
+    public static final NetworkProfile CELLULAR = new NetworkProfile(
+            LatencyDistribution.longTail(300, 2000), 100000, 0.01, 0.005, 10000, 4);
+
+    public static final NetworkProfile FLAKY = new NetworkProfile(
+            LatencyDistribution.longTail(800, 8000), 20000, 0.1, 0.05, 10000, 2);
+
+    private final LatencyDistribution latency;
+
+    private final long bytesPerSecond;
+
+    private final double errorRate;
+
+    private final double timeoutRate;
+
+    private final long timeoutMillis;
+
+    private final int maxConcurrentRequests;
+
+    public NetworkProfile(@NonNull LatencyDistribution latency, long bytesPerSecond,
+                          double errorRate, double timeoutRate, long timeoutMillis,
+                          int maxConcurrentRequests) {
+        checkArgument(bytesPerSecond > 0, "bytesPerSecond must be positive");
+        checkArgument(errorRate >= 0 && timeoutRate >= 0 && errorRate + timeoutRate <= 1,
+                "errorRate and timeoutRate must be probabilities that add up to at most 1");
+        checkArgument(timeoutMillis >= 0, "timeoutMillis must not be negative");
+        checkArgument(maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+        this.latency = checkNotNull(latency);
+        this.bytesPerSecond = bytesPerSecond;
+        this.errorRate = errorRate;
+        this.timeoutRate = timeoutRate;
+        this.timeoutMillis = timeoutMillis;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    @NonNull
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the bandwidth of the link, or {@link #UNLIMITED_BANDWIDTH}.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns the share of requests the server answers with an error.
+     */
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    /**
+     * Returns the share of requests that never get an answer.
+     */
+    public double getTimeoutRate() {
+        return timeoutRate;
+    }
+
+    /**
+     * Returns how long the client waits for an answer before it gives up.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Returns how many requests may be in flight at once, or {@link #UNLIMITED_CONCURRENCY}.
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Returns how long it takes to move {@code bytes} over the link.
+     */
+    long getTransferMillis(int bytes) {
+        return bytesPerSecond == UNLIMITED_BANDWIDTH ? 0 : bytes * 1000L / bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkProfile{latency=" + latency
+                + ", bytesPerSecond=" + bytesPerSecond
+                + ", errorRate=" + errorRate
+                + ", timeoutRate=" + timeoutRate
+                + ", timeoutMillis=" + timeoutMillis
+                + ", maxConcurrentRequests=" + maxConcurrentRequests
+                + '}';
+    }
+}
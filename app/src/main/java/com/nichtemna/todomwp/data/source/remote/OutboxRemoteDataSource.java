@@ -0,0 +1,540 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.TaskMutationTarget;
+import com.nichtemna.todomwp.data.source.TaskSyncSource;
+import com.nichtemna.todomwp.data.source.TaskWriteListener;
+import com.nichtemna.todomwp.data.source.local.TaskOutbox;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Remote data source that doesn't lose writes while the server is unavailable: every write is
+ * stored in a {@link TaskOutbox} first, then replayed to the server oldest first, in batches of
+ * at most {@link #BATCH_SIZE} writes. Writes left over by a previous process are replayed as soon
+ * as this is created.
+ * <p>
+ * Only one batch is in flight at a time, and it is removed from the outbox only once the server
+ * acknowledged it, so the server is never sent more than it keeps up with. A failed batch is sent
+ * again after a delay that doubles with every consecutive failure.
+ * <p>
+ * The server's answer to every write is reported to the {@link TaskWriteListener}, if any.
+ * Rejected writes are removed from the outbox like applied ones, as sending them again won't
+ * help.
+ * <p>
+ * Reads wait until the outbox is empty, so the server never answers with tasks older than the
+ * local edits. While the server can't be reached they fail with {@code onDataNotAvailable} and
+ * the local data is left untouched.
+ */
+public class OutboxRemoteDataSource implements TaskDataSource {
+
+    @VisibleForTesting
+    static final int BATCH_SIZE = 50;
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    private static OutboxRemoteDataSource INSTANCE;
+
+    /**
+     * Waits for the outbox to be empty.
+     */
+    private interface DrainCallback {
+
+        void onDrained();
+
+        void onDrainFailed();
+    }
+
+    private final TaskDataSource remoteDataSource;
+
+    private final TaskMutationTarget mutationTarget;
+
+    private final TaskOutbox outbox;
+
+    private final ScheduledExecutorService scheduler;
+
+    @Nullable
+    private volatile TaskWriteListener writeListener;
+
+    // All fields below are guarded by this.
+
+    private boolean replaying;
+
+    /**
+     * Set when writes were appended while a batch was being replayed.
+     */
+    private boolean replayRequested;
+
+    /**
+     * True once the outbox was found empty and nothing was appended since.
+     */
+    private boolean drained;
+
+    private int failedAttempts;
+
+    private ScheduledFuture<?> scheduledRetry;
+
+    private final List<DrainCallback> drainCallbacks = new ArrayList<>();
+
+    public static OutboxRemoteDataSource getInstance(@NonNull TaskDataSource remoteDataSource,
+                                                     @NonNull TaskMutationTarget mutationTarget,
+                                                     @NonNull TaskOutbox outbox) {
+        if (INSTANCE == null) {
+            INSTANCE = new OutboxRemoteDataSource(remoteDataSource, mutationTarget, outbox,
+                    Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                            .setNameFormat("task-outbox-replay")
+                            .setDaemon(true)
+                            .build()));
+        }
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    OutboxRemoteDataSource(@NonNull TaskDataSource remoteDataSource,
+                           @NonNull TaskMutationTarget mutationTarget,
+                           @NonNull TaskOutbox outbox,
+                           @NonNull ScheduledExecutorService scheduler) {
+        this.remoteDataSource = checkNotNull(remoteDataSource);
+        this.mutationTarget = checkNotNull(mutationTarget);
+        this.outbox = checkNotNull(outbox);
+        this.scheduler = checkNotNull(scheduler);
+        replay();
+    }
+
+    public void setWriteListener(@Nullable TaskWriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    @Override
+    public void getTasks(@NonNull final LoadTasksCallback callback) {
+        whenDrained(new DrainCallback() {
+            @Override
+            public void onDrained() {
+                remoteDataSource.getTasks(callback);
+            }
+
+            @Override
+            public void onDrainFailed() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getTasks(@NonNull final TasksFilterType filtering,
+                         @NonNull final LoadTasksCallback callback) {
+        whenDrained(new DrainCallback() {
+            @Override
+            public void onDrained() {
+                remoteDataSource.getTasks(filtering, callback);
+            }
+
+            @Override
+            public void onDrainFailed() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getTaskPage(@NonNull final TasksFilterType filtering, final int pageSize,
+                            @Nullable final String pageKey,
+                            @NonNull final LoadTaskPageCallback callback) {
+        whenDrained(new DrainCallback() {
+            @Override
+            public void onDrained() {
+                remoteDataSource.getTaskPage(filtering, pageSize, pageKey, callback);
+            }
+
+            @Override
+            public void onDrainFailed() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void streamTasks(@NonNull final TasksFilterType filtering, final int chunkSize,
+                            @NonNull final StreamTasksCallback callback) {
+        whenDrained(new DrainCallback() {
+            @Override
+            public void onDrained() {
+                remoteDataSource.streamTasks(filtering, chunkSize, callback);
+            }
+
+            @Override
+            public void onDrainFailed() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
+        whenDrained(new DrainCallback() {
+            @Override
+            public void onDrained() {
+                remoteDataSource.getTask(taskId, callback);
+            }
+
+            @Override
+            public void onDrainFailed() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getTasks(@NonNull final Collection<String> taskIds,
+                         @NonNull final LoadTasksCallback callback) {
+        whenDrained(new DrainCallback() {
+            @Override
+            public void onDrained() {
+                remoteDataSource.getTasks(taskIds, callback);
+            }
+
+            @Override
+            public void onDrainFailed() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getTaskCounts(@NonNull final GetTaskCountsCallback callback) {
+        whenDrained(new DrainCallback() {
+            @Override
+            public void onDrained() {
+                remoteDataSource.getTaskCounts(callback);
+            }
+
+            @Override
+            public void onDrainFailed() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * Returns {@code syncSource} with its requests held back until the outbox is empty, like the
+     * reads of this data source.
+     */
+    @NonNull
+    public TaskSyncSource afterPendingWrites(@NonNull final TaskSyncSource syncSource) {
+        checkNotNull(syncSource);
+        return new TaskSyncSource() {
+            @Override
+            public void getChangesSince(@Nullable final String syncToken,
+                                        @NonNull final GetChangesCallback callback) {
+                whenDrained(new DrainCallback() {
+                    @Override
+                    public void onDrained() {
+                        syncSource.getChangesSince(syncToken, callback);
+                    }
+
+                    @Override
+                    public void onDrainFailed() {
+                        callback.onDataNotAvailable();
+                    }
+                });
+            }
+
+            @Override
+            public void getCurrentSyncToken(@NonNull final GetCurrentSyncTokenCallback callback) {
+                whenDrained(new DrainCallback() {
+                    @Override
+                    public void onDrained() {
+                        syncSource.getCurrentSyncToken(callback);
+                    }
+
+                    @Override
+                    public void onDrainFailed() {
+                        callback.onDataNotAvailable();
+                    }
+                });
+            }
+
+            @Override
+            public void getHashes(final int level, @NonNull final List<Integer> nodeIndexes,
+                                  @NonNull final GetHashesCallback callback) {
+                whenDrained(new DrainCallback() {
+                    @Override
+                    public void onDrained() {
+                        syncSource.getHashes(level, nodeIndexes, callback);
+                    }
+
+                    @Override
+                    public void onDrainFailed() {
+                        callback.onDataNotAvailable();
+                    }
+                });
+            }
+
+            @Override
+            public void getBucketDigests(@NonNull final List<Integer> bucketIndexes,
+                                         @NonNull final GetBucketDigestsCallback callback) {
+                whenDrained(new DrainCallback() {
+                    @Override
+                    public void onDrained() {
+                        syncSource.getBucketDigests(bucketIndexes, callback);
+                    }
+
+                    @Override
+                    public void onDrainFailed() {
+                        callback.onDataNotAvailable();
+                    }
+                });
+            }
+        };
+    }
+
+    @Override
+    public void saveTask(@NonNull Task task) {
+        enqueue(Collections.singletonList(TaskMutation.save(task)));
+    }
+
+    @Override
+    public void saveTasks(@NonNull Collection<Task> tasks) {
+        List<TaskMutation> mutations = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            mutations.add(TaskMutation.save(task));
+        }
+        enqueue(mutations);
+    }
+
+    @Override
+    public void replaceAllTasks(@NonNull Collection<Task> tasks) {
+        List<TaskMutation> mutations = new ArrayList<>(tasks.size() + 1);
+        mutations.add(TaskMutation.deleteAll());
+        for (Task task : tasks) {
+            mutations.add(TaskMutation.save(task));
+        }
+        enqueue(mutations);
+    }
+
+    @Override
+    public void completeTask(@NonNull Task task) {
+        completeTask(task.getId());
+    }
+
+    @Override
+    public void completeTask(@NonNull String taskId) {
+        enqueue(Collections.singletonList(TaskMutation.complete(taskId)));
+    }
+
+    @Override
+    public void activateTask(@NonNull Task task) {
+        activateTask(task.getId());
+    }
+
+    @Override
+    public void activateTask(@NonNull String taskId) {
+        enqueue(Collections.singletonList(TaskMutation.activate(taskId)));
+    }
+
+    @Override
+    public void completeTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.complete(taskId));
+        }
+        enqueue(mutations);
+    }
+
+    @Override
+    public void activateTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.activate(taskId));
+        }
+        enqueue(mutations);
+    }
+
+    @Override
+    public void clearCompletedTasks() {
+        enqueue(Collections.singletonList(TaskMutation.clearCompleted()));
+    }
+
+    @Override
+    public void refreshTasks() {
+        remoteDataSource.refreshTasks();
+    }
+
+    @Override
+    public void deleteAllTasks() {
+        enqueue(Collections.singletonList(TaskMutation.deleteAll()));
+    }
+
+    @Override
+    public void deleteTask(@NonNull String taskId) {
+        enqueue(Collections.singletonList(TaskMutation.delete(taskId)));
+    }
+
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.delete(taskId));
+        }
+        enqueue(mutations);
+    }
+
+    private void enqueue(List<TaskMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            outbox.append(mutations);
+            drained = false;
+            // While backing off, the retry picks the new writes up as well.
+            if (scheduledRetry != null) {
+                return;
+            }
+        }
+        replay();
+    }
+
+    /**
+     * Calls {@code callback} once the outbox is empty. A pending retry is started right away,
+     * since the caller can't proceed without the server.
+     */
+    private void whenDrained(@NonNull DrainCallback callback) {
+        checkNotNull(callback);
+        boolean isDrained;
+        synchronized (this) {
+            isDrained = drained;
+            if (!isDrained) {
+                drainCallbacks.add(callback);
+                if (scheduledRetry != null) {
+                    scheduledRetry.cancel(false);
+                    scheduledRetry = null;
+                }
+            }
+        }
+        if (isDrained) {
+            callback.onDrained();
+        } else {
+            replay();
+        }
+    }
+
+    /**
+     * Sends the oldest batch of the outbox, unless one is already in flight.
+     */
+    private void replay() {
+        synchronized (this) {
+            if (replaying) {
+                replayRequested = true;
+                return;
+            }
+            replaying = true;
+            replayRequested = false;
+        }
+        outbox.loadBatch(BATCH_SIZE, new TaskOutbox.LoadBatchCallback() {
+            @Override
+            public void onBatchLoaded(@NonNull final TaskOutbox.Batch batch) {
+                if (batch.isEmpty()) {
+                    onOutboxEmpty();
+                    return;
+                }
+                mutationTarget.applyMutations(batch.getMutations(),
+                        new TaskMutationTarget.ApplyMutationsCallback() {
+                            @Override
+                            public void onMutationsApplied(@NonNull List<TaskMutation> rejected) {
+                                outbox.removeUpTo(batch.getLastEntryId());
+                                synchronized (OutboxRemoteDataSource.this) {
+                                    replaying = false;
+                                    failedAttempts = 0;
+                                }
+                                notifyWriteListener(batch.getMutations(), rejected);
+                                replay();
+                            }
+
+                            @Override
+                            public void onMutationsFailed() {
+                                onReplayFailed();
+                            }
+                        });
+            }
+        });
+    }
+
+    private void notifyWriteListener(List<TaskMutation> mutations, List<TaskMutation> rejected) {
+        TaskWriteListener listener = writeListener;
+        if (listener == null) {
+            return;
+        }
+        List<TaskMutation> confirmed = new ArrayList<>(mutations);
+        confirmed.removeAll(rejected);
+        if (!confirmed.isEmpty()) {
+            listener.onWritesConfirmed(confirmed);
+        }
+        if (!rejected.isEmpty()) {
+            listener.onWritesRejected(rejected);
+        }
+    }
+
+    private void onOutboxEmpty() {
+        List<DrainCallback> callbacks;
+        synchronized (this) {
+            replaying = false;
+            if (replayRequested) {
+                callbacks = null;
+            } else {
+                drained = true;
+                callbacks = new ArrayList<>(drainCallbacks);
+                drainCallbacks.clear();
+            }
+        }
+        if (callbacks == null) {
+            replay();
+            return;
+        }
+        for (DrainCallback callback : callbacks) {
+            callback.onDrained();
+        }
+    }
+
+    private void onReplayFailed() {
+        List<DrainCallback> callbacks;
+        synchronized (this) {
+            replaying = false;
+            failedAttempts++;
+            long delayMillis = Math.min(MAX_RETRY_DELAY_MILLIS,
+                    MIN_RETRY_DELAY_MILLIS << Math.min(failedAttempts - 1, 16));
+            scheduledRetry = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (OutboxRemoteDataSource.this) {
+                        scheduledRetry = null;
+                    }
+                    replay();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            callbacks = new ArrayList<>(drainCallbacks);
+            drainCallbacks.clear();
+        }
+        for (DrainCallback callback : callbacks) {
+            callback.onDrainFailed();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.TaskPage;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * JSON wire format of {@link HttpTasksDataSource}, on top of {@code org.json}. Malformed
+ * documents are reported as {@link IOException}s, like any other failed request.
+ */
+final class TaskJson {
+
+    private static final String ID = "id";
+    private static final String TITLE = "title";
+    private static final String DESCRIPTION = "description";
+    private static final String COMPLETED = "completed";
+    private static final String TYPE = "type";
+    private static final String TASK = "task";
+    private static final String TASKS = "tasks";
+    private static final String NEXT_PAGE_KEY = "next";
+    private static final String ACTIVE_COUNT = "active";
+    private static final String COMPLETED_COUNT = "completed";
+    private static final String REJECTED = "rejected";
+
+    interface TaskChunkCallback {
+
+        void onTasksChunkDecoded(@NonNull List<Task> tasks);
+    }
+
+    private TaskJson() {
+    }
+
+    @NonNull
+    static String encodeTask(@NonNull Task task) {
+        try {
+            return toJson(task).toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @NonNull
+    static Task decodeTask(@NonNull String json) throws IOException {
+        try {
+            return toTask(new JSONObject(json));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @NonNull
+    static String encodeTasks(@NonNull Collection<Task> tasks) {
+        try {
+            return toJson(tasks).toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @NonNull
+    static List<Task> decodeTasks(@NonNull String json) throws IOException {
+        try {
+            return toTasks(new JSONArray(json));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a JSON array of tasks from {@code json} as it arrives, handing the tasks to
+     * {@code callback} in chunks of {@code chunkSize} as soon as each chunk is parsed. Some chunks
+     * may have been handed over when a malformed or truncated document throws.
+     * <p>
+     * The {@link JSONTokener} of Android only reads strings, so the array is split into its
+     * elements here and each element is parsed on its own.
+     */
+    static void decodeTasks(@NonNull Reader json, int chunkSize,
+                            @NonNull TaskChunkCallback callback) throws IOException {
+        ArrayElements elements = new ArrayElements(json);
+        List<Task> chunk = new ArrayList<>(chunkSize);
+        String element;
+        while ((element = elements.next()) != null) {
+            try {
+                chunk.add(toTask(new JSONObject(element)));
+            } catch (JSONException e) {
+                throw new IOException(e.getMessage());
+            }
+            if (chunk.size() == chunkSize) {
+                callback.onTasksChunkDecoded(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            callback.onTasksChunkDecoded(chunk);
+        }
+    }
+
+    @NonNull
+    static String encodeIds(@NonNull Collection<String> taskIds) {
+        return new JSONArray(taskIds).toString();
+    }
+
+    @NonNull
+    static List<String> decodeIds(@NonNull String json) throws IOException {
+        try {
+            JSONArray ids = new JSONArray(json);
+            List<String> taskIds = new ArrayList<>(ids.length());
+            for (int i = 0; i < ids.length(); i++) {
+                taskIds.add(ids.getString(i));
+            }
+            return taskIds;
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @NonNull
+    static String encodePage(@NonNull TaskPage page) {
+        try {
+            return new JSONObject()
+                    .put(TASKS, toJson(page.getTasks()))
+                    .put(NEXT_PAGE_KEY, page.getNextPageKey())
+                    .toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @NonNull
+    static TaskPage decodePage(@NonNull String json) throws IOException {
+        try {
+            JSONObject page = new JSONObject(json);
+            return new TaskPage(toTasks(page.getJSONArray(TASKS)),
+                    getNullableString(page, NEXT_PAGE_KEY));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @NonNull
+    static String encodeCounts(int activeCount, int completedCount) {
+        try {
+            return new JSONObject()
+                    .put(ACTIVE_COUNT, activeCount)
+                    .put(COMPLETED_COUNT, completedCount)
+                    .toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the active count followed by the completed count.
+     */
+    @NonNull
+    static int[] decodeCounts(@NonNull String json) throws IOException {
+        try {
+            JSONObject counts = new JSONObject(json);
+            return new int[]{counts.getInt(ACTIVE_COUNT), counts.getInt(COMPLETED_COUNT)};
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @NonNull
+    static String encodeMutations(@NonNull List<TaskMutation> mutations) {
+        try {
+            JSONArray json = new JSONArray();
+            for (TaskMutation mutation : mutations) {
+                JSONObject mutationJson = new JSONObject().put(TYPE, mutation.getType().name());
+                if (mutation.getTask() != null) {
+                    mutationJson.put(TASK, toJson(mutation.getTask()));
+                } else if (mutation.getTaskId() != null) {
+                    mutationJson.put(ID, mutation.getTaskId());
+                }
+                json.put(mutationJson);
+            }
+            return json.toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @NonNull
+    static List<TaskMutation> decodeMutations(@NonNull String json) throws IOException {
+        try {
+            JSONArray array = new JSONArray(json);
+            List<TaskMutation> mutations = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                mutations.add(toMutation(array.getJSONObject(i)));
+            }
+            return mutations;
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes the positions of the rejected mutations within their batch.
+     */
+    @NonNull
+    static String encodeRejected(@NonNull List<Integer> rejectedIndexes) {
+        try {
+            return new JSONObject().put(REJECTED, new JSONArray(rejectedIndexes)).toString();
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    @NonNull
+    static List<Integer> decodeRejected(@NonNull String json) throws IOException {
+        try {
+            JSONArray array = new JSONObject(json).getJSONArray(REJECTED);
+            List<Integer> rejectedIndexes = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                rejectedIndexes.add(array.getInt(i));
+            }
+            return rejectedIndexes;
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static JSONArray toJson(Collection<Task> tasks) throws JSONException {
+        JSONArray json = new JSONArray();
+        for (Task task : tasks) {
+            json.put(toJson(task));
+        }
+        return json;
+    }
+
+    /**
+     * A null title or description leaves the key out, which {@link #toTask} reads back as null.
+     */
+    private static JSONObject toJson(Task task) throws JSONException {
+        return new JSONObject()
+                .put(ID, task.getId())
+                .put(TITLE, task.getTitle())
+                .put(DESCRIPTION, task.getDescription())
+                .put(COMPLETED, task.isCompleted());
+    }
+
+    private static Task toTask(JSONObject json) throws JSONException {
+        return new Task(getNullableString(json, TITLE), getNullableString(json, DESCRIPTION),
+                json.getString(ID), json.optBoolean(COMPLETED));
+    }
+
+    private static List<Task> toTasks(JSONArray json) throws JSONException {
+        List<Task> tasks = new ArrayList<>(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            tasks.add(toTask(json.getJSONObject(i)));
+        }
+        return tasks;
+    }
+
+    private static TaskMutation toMutation(JSONObject json) throws JSONException, IOException {
+        TaskMutation.Type type;
+        try {
+            type = TaskMutation.Type.valueOf(json.getString(TYPE));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown mutation type " + json.opt(TYPE));
+        }
+        switch (type) {
+            case SAVE:
+                return TaskMutation.save(toTask(json.getJSONObject(TASK)));
+            case DELETE:
+                return TaskMutation.delete(json.getString(ID));
+            case COMPLETE:
+                return TaskMutation.complete(json.getString(ID));
+            case ACTIVATE:
+                return TaskMutation.activate(json.getString(ID));
+            case CLEAR_COMPLETED:
+                return TaskMutation.clearCompleted();
+            case DELETE_ALL:
+                return TaskMutation.deleteAll();
+            default:
+                throw new IOException("Unknown mutation type " + type);
+        }
+    }
+
+    @Nullable
+    private static String getNullableString(JSONObject json, String name) throws JSONException {
+        return json.isNull(name) ? null : json.getString(name);
+    }
+
+    /**
+     * Splits a top-level JSON array into the text of its elements as the characters arrive,
+     * tracking only nesting and strings; the elements themselves are left to {@code org.json}.
+     */
+    private static final class ArrayElements {
+
+        private final Reader in;
+
+        private boolean started;
+
+        private boolean ended;
+
+        ArrayElements(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Returns the text of the next element, or null after the last one.
+         */
+        @Nullable
+        String next() throws IOException {
+            if (ended) {
+                return null;
+            }
+            boolean first = !started;
+            if (!started) {
+                if (readNonWhitespace() != '[') {
+                    throw new IOException("Expected an array");
+                }
+                started = true;
+            }
+            StringBuilder element = new StringBuilder();
+            int depth = 0;
+            boolean inString = false;
+            boolean escaped = false;
+            while (true) {
+                int c = in.read();
+                if (c == -1) {
+                    throw new IOException("Unexpected end of input");
+                }
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (depth == 0) {
+                        if (c != ']') {
+                            throw new IOException("Unexpected '}'");
+                        }
+                        ended = true;
+                        if (readNonWhitespace() != -1) {
+                            throw new IOException("Trailing characters");
+                        }
+                        return first && element.toString().trim().isEmpty()
+                                ? null : element.toString();
+                    }
+                    depth--;
+                } else if (c == ',' && depth == 0) {
+                    return element.toString();
+                }
+                element.append((char) c);
+            }
+        }
+
+        private int readNonWhitespace() throws IOException {
+            int c;
+            do {
+                c = in.read();
+            } while (c != -1 && Character.isWhitespace(c));
+            return c;
+        }
+    }
+}
@@ -1,87 +1,417 @@
 package com.nichtemna.todomwp.data.source.remote;
 
-import android.os.Handler;
 import android.support.annotation.NonNull;
-import android.support.test.espresso.core.deps.guava.collect.Lists;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nichtemna.todomwp.data.Task;
 import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskDelta;
+import com.nichtemna.todomwp.data.source.TaskHashTree;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.TaskMutationTarget;
+import com.nichtemna.todomwp.data.source.TaskPage;
+import com.nichtemna.todomwp.data.source.TaskSyncSource;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.AppExecutors;
+import com.nichtemna.todomwp.util.Clock;
+import com.nichtemna.todomwp.util.Scheduler;
 
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Implementation of the data source that adds a latency simulating network.
+ * Implementation of the data source that simulates a server behind the network described by a
+ * {@link NetworkProfile}.
+ * <p>
+ * Requests are timed by the given {@link Clock} and {@link Scheduler}, so that tests and
+ * benchmarks can run them in virtual time. Request and response sizes are those of the JSON
+ * {@link HttpTasksDataSource} would send. Results are delivered on
+ * {@link AppExecutors#mainThread()}.
+ * <p>
+ * Every change gets the next version number, and a sync token is the version of the last change
+ * the client has seen. Changes are indexed by version, so a delta costs in proportion to its
+ * size. Only the latest {@link #MAX_TOMBSTONES} deletions are remembered; older tokens get a
+ * full sync. A {@link TaskHashTree} of the tasks is kept up to date along with the change log.
  */
-public class TasksRemoteDataSource implements TaskDataSource {
+public class TasksRemoteDataSource implements TaskDataSource, TaskMutationTarget, TaskSyncSource {
 
     private static TasksRemoteDataSource INSTANCE;
 
-    private final static int SERVICE_LATENCY_IN_MILLIS = 5000;
+    /**
+     * Headers and framing of a request or response, on top of its body.
+     */
+    private static final int HTTP_OVERHEAD_BYTES = 300;
 
-    private final static Map<String, Task> TASK_SERVICE_DATA;
+    private static final int MAX_TOMBSTONES = 1000;
 
-    static {
-        TASK_SERVICE_DATA = new LinkedHashMap<>(2);
-        addTask("Build tower in Pisa", "Ground looks good, no foundation work required.");
-        addTask("Finish bridge in Tacoma", "Found awesome girders at half the cost!");
-    }
+    /**
+     * Guarded by itself, like the change log below.
+     */
+    private final Map<String, Task> taskServiceData = new LinkedHashMap<>();
+
+    /**
+     * Tells tokens of this server apart from those of an earlier one, whose versions mean
+     * something else.
+     */
+    private final String syncEpoch = UUID.randomUUID().toString();
+
+    private long lastVersion;
+
+    /**
+     * Tokens older than this may miss deletions that were forgotten.
+     */
+    private long oldestSyncableVersion;
+
+    /**
+     * Version of the last change of every task, existing or deleted.
+     */
+    private final Map<String, Long> versionsById = new HashMap<>();
+
+    /**
+     * Ids of the existing tasks and of the deleted ones, by the version of their last change.
+     */
+    private final TreeMap<Long, String> savedTaskIds = new TreeMap<>();
+
+    private final TreeMap<Long, String> deletedTaskIds = new TreeMap<>();
+
+    private final TaskHashTree hashTree = new TaskHashTree();
+
+    private final AppExecutors appExecutors;
+
+    private final Clock clock;
+
+    private final Scheduler scheduler;
+
+    /**
+     * Guarded by itself.
+     */
+    private final Random random;
+
+    private volatile NetworkProfile networkProfile;
+
+    /**
+     * Requests waiting for a connection. Guards the fields below as well.
+     */
+    private final Queue<Request> waitingRequests = new ArrayDeque<>();
+
+    private int requestsInFlight;
+
+    /**
+     * When the link has moved all bytes sent so far.
+     */
+    private long linkFreeAtMillis;
+
+    /**
+     * Fire-and-forget writes not sent yet; one is in flight at a time so that they reach the
+     * server in the order they were issued. Guards {@link #writeInFlight} as well.
+     */
+    private final Queue<List<TaskMutation>> waitingWrites = new ArrayDeque<>();
 
-    public static TasksRemoteDataSource getInstance() {
+    private boolean writeInFlight;
+
+    public static TasksRemoteDataSource getInstance(@NonNull AppExecutors appExecutors) {
         if (INSTANCE == null) {
-            INSTANCE = new TasksRemoteDataSource();
+            INSTANCE = new TasksRemoteDataSource(appExecutors, NetworkProfile.DEFAULT, Clock.SYSTEM,
+                    Scheduler.from(Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder()
+                                    .setNameFormat("tasks-remote-%d")
+                                    .setDaemon(true)
+                                    .build())),
+                    new Random());
         }
         return INSTANCE;
     }
 
-    private TasksRemoteDataSource() {
+    @VisibleForTesting
+    public TasksRemoteDataSource(@NonNull AppExecutors appExecutors,
+                                 @NonNull NetworkProfile networkProfile, @NonNull Clock clock,
+                                 @NonNull Scheduler scheduler, @NonNull Random random) {
+        this.appExecutors = checkNotNull(appExecutors);
+        this.networkProfile = checkNotNull(networkProfile);
+        this.clock = checkNotNull(clock);
+        this.scheduler = checkNotNull(scheduler);
+        this.random = checkNotNull(random);
+        addTask("Build tower in Pisa", "Ground looks good, no foundation work required.");
+        addTask("Finish bridge in Tacoma", "Found awesome girders at half the cost!");
+    }
+
+    private void addTask(String title, String description) {
+        put(new Task(title, description));
     }
 
-    private static void addTask(String title, String description) {
-        Task task = new Task(title, description);
-        TASK_SERVICE_DATA.put(task.getId(), task);
+    /**
+     * Applies to requests sent from now on.
+     */
+    public void setNetworkProfile(@NonNull NetworkProfile networkProfile) {
+        this.networkProfile = checkNotNull(networkProfile);
+    }
+
+    /**
+     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired for the requests the
+     * {@link NetworkProfile} fails.
+     */
+    @Override
+    public void getTasks(@NonNull LoadTasksCallback callback) {
+        getTasks(TasksFilterType.ALL_TASKS, callback);
     }
 
     /**
-     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is never fired. In a real remote data
-     * source implementation, this would be fired if the server can't be contacted or the server
-     * returns an error.
+     * Filters on the server side, so only the matching tasks are sent back.
      */
     @Override
-    public void getTasks(@NonNull final LoadTasksCallback callback) {
-        // Simulate network by delaying the execution.
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
+    public void getTasks(@NonNull final TasksFilterType filtering,
+                         @NonNull final LoadTasksCallback callback) {
+        send(new Request() {
+            private List<Task> tasks;
+
             @Override
-            public void run() {
-                callback.onTasksLoaded(Lists.newArrayList(TASK_SERVICE_DATA.values()));
+            String respond() {
+                tasks = filter(filtering);
+                return TaskJson.encodeTasks(tasks);
+            }
+
+            @Override
+            void onResponse() {
+                callback.onTasksLoaded(tasks);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
             }
-        }, SERVICE_LATENCY_IN_MILLIS);
+        });
     }
 
+    /**
+     * Sends the response in chunks of {@code chunkSize} tasks, each delivered as its own message
+     * on the main thread as soon as its bytes have crossed the link.
+     */
     @Override
-    public void getTask(@NonNull String taskId, @NonNull final GetTaskCallback callback) {
-        final Task task = TASK_SERVICE_DATA.get(taskId);
+    public void streamTasks(@NonNull final TasksFilterType filtering, final int chunkSize,
+                            @NonNull final StreamTasksCallback callback) {
+        checkArgument(chunkSize > 0, "chunkSize must be positive");
+        send(new Request() {
+            private final List<List<Task>> chunks = new ArrayList<>();
 
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
             @Override
-            public void run() {
+            String respond() {
+                throw new AssertionError("Sent in parts");
+            }
+
+            @Override
+            List<String> respondInParts() {
+                List<Task> tasks = filter(filtering);
+                List<String> parts = new ArrayList<>();
+                for (int from = 0; from < tasks.size(); from += chunkSize) {
+                    List<Task> chunk = tasks.subList(from, Math.min(from + chunkSize, tasks.size()));
+                    chunks.add(chunk);
+                    parts.add(TaskJson.encodeTasks(chunk));
+                }
+                return parts.isEmpty() ? Collections.singletonList("[]") : parts;
+            }
+
+            @Override
+            void onPartReceived(int index) {
+                if (index < chunks.size()) {
+                    callback.onTasksChunkLoaded(chunks.get(index));
+                }
+            }
+
+            @Override
+            void onResponse() {
+                callback.onTasksStreamComplete();
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * The page key is the id of the last task of the previous page. If that task was deleted in
+     * the meantime the server can't tell where the page ended, and returns an empty last page.
+     */
+    @Override
+    public void getTaskPage(@NonNull final TasksFilterType filtering, final int pageSize,
+                            @Nullable final String pageKey,
+                            @NonNull final LoadTaskPageCallback callback) {
+        checkArgument(pageSize > 0, "pageSize must be positive");
+        send(new Request() {
+            private TaskPage page;
+
+            @Override
+            String respond() {
+                List<Task> tasks = new ArrayList<>(pageSize);
+                boolean hasMore = false;
+                boolean started = pageKey == null;
+                for (Task task : taskServiceData.values()) {
+                    if (!started) {
+                        started = task.getId().equals(pageKey);
+                        continue;
+                    }
+                    if (filtering != TasksFilterType.ALL_TASKS
+                            && (filtering == TasksFilterType.COMPLETED_TASKS) != task.isCompleted()) {
+                        continue;
+                    }
+                    if (tasks.size() == pageSize) {
+                        hasMore = true;
+                        break;
+                    }
+                    tasks.add(task);
+                }
+                page = new TaskPage(tasks, hasMore ? tasks.get(tasks.size() - 1).getId() : null);
+                return TaskJson.encodePage(page);
+            }
+
+            @Override
+            void onResponse() {
+                callback.onTaskPageLoaded(page);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
+        send(new Request() {
+            private Task task;
+
+            @Override
+            String respond() {
+                task = taskServiceData.get(taskId);
+                return task == null ? "null" : TaskJson.encodeTask(task);
+            }
+
+            @Override
+            void onResponse() {
                 callback.onTaskLoaded(task);
             }
-        }, SERVICE_LATENCY_IN_MILLIS);
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * Sends all ids in one request; the server answers with the tasks it has.
+     */
+    @Override
+    public void getTasks(@NonNull Collection<String> taskIds,
+                         @NonNull final LoadTasksCallback callback) {
+        final List<String> ids = new ArrayList<>(taskIds);
+        send(new Request(TaskJson.encodeIds(ids)) {
+            private final List<Task> tasks = new ArrayList<>(ids.size());
+
+            @Override
+            String respond() {
+                for (String taskId : ids) {
+                    Task task = taskServiceData.get(taskId);
+                    if (task != null) {
+                        tasks.add(task);
+                    }
+                }
+                return TaskJson.encodeTasks(tasks);
+            }
+
+            @Override
+            void onResponse() {
+                if (tasks.isEmpty()) {
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTasksLoaded(tasks);
+                }
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getTaskCounts(@NonNull final GetTaskCountsCallback callback) {
+        send(new Request() {
+            private int activeCount;
+            private int completedCount;
+
+            @Override
+            String respond() {
+                for (Task task : taskServiceData.values()) {
+                    if (task.isCompleted()) {
+                        completedCount++;
+                    } else {
+                        activeCount++;
+                    }
+                }
+                return TaskJson.encodeCounts(activeCount, completedCount);
+            }
+
+            @Override
+            void onResponse() {
+                callback.onTaskCountsLoaded(activeCount, completedCount);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
     }
 
     @Override
     public void saveTask(@NonNull Task task) {
-        TASK_SERVICE_DATA.put(task.getId(), task);
+        sendWrites(Collections.singletonList(TaskMutation.save(task)));
+    }
+
+    @Override
+    public void saveTasks(@NonNull Collection<Task> tasks) {
+        List<TaskMutation> mutations = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            mutations.add(TaskMutation.save(task));
+        }
+        sendWrites(mutations);
+    }
+
+    @Override
+    public void replaceAllTasks(@NonNull Collection<Task> tasks) {
+        List<TaskMutation> mutations = new ArrayList<>(tasks.size() + 1);
+        mutations.add(TaskMutation.deleteAll());
+        for (Task task : tasks) {
+            mutations.add(TaskMutation.save(task));
+        }
+        sendWrites(mutations);
     }
 
     @Override
     public void completeTask(@NonNull Task task) {
-        Task completedTask = new Task(task.getId(), task.getTitle(), task.getDescription(), true);
-        TASK_SERVICE_DATA.put(task.getId(), completedTask);
+        sendWrites(Collections.singletonList(TaskMutation.save(
+                new Task(task.getTitle(), task.getDescription(), task.getId(), true))));
     }
 
     @Override
@@ -92,8 +422,8 @@ public class TasksRemoteDataSource implements TaskDataSource {
 
     @Override
     public void activateTask(@NonNull Task task) {
-        Task activeTask = new Task(task.getId(), task.getTitle(), task.getDescription());
-        TASK_SERVICE_DATA.put(task.getId(), activeTask);
+        sendWrites(Collections.singletonList(TaskMutation.save(
+                new Task(task.getTitle(), task.getDescription(), task.getId(), false))));
     }
 
     @Override
@@ -102,15 +432,33 @@ public class TasksRemoteDataSource implements TaskDataSource {
         // converting from a {@code taskId} to a {@link task} using its cached data.
     }
 
+    /**
+     * Sends all ids in one request, tasks the server doesn't have are ignored.
+     */
     @Override
-    public void clearCompletedTasks() {
-        Iterator<Map.Entry<String, Task>> it = TASK_SERVICE_DATA.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Task> entry = it.next();
-            if (entry.getValue().isCompleted()) {
-                it.remove();
-            }
+    public void completeTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.complete(taskId));
+        }
+        sendWrites(mutations);
+    }
+
+    /**
+     * Sends all ids in one request, tasks the server doesn't have are ignored.
+     */
+    @Override
+    public void activateTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.activate(taskId));
         }
+        sendWrites(mutations);
+    }
+
+    @Override
+    public void clearCompletedTasks() {
+        sendWrites(Collections.singletonList(TaskMutation.clearCompleted()));
     }
 
     @Override
@@ -121,11 +469,479 @@ public class TasksRemoteDataSource implements TaskDataSource {
 
     @Override
     public void deleteAllTasks() {
-        TASK_SERVICE_DATA.clear();
+        sendWrites(Collections.singletonList(TaskMutation.deleteAll()));
     }
 
     @Override
     public void deleteTask(@NonNull String taskId) {
-        TASK_SERVICE_DATA.remove(taskId);
+        sendWrites(Collections.singletonList(TaskMutation.delete(taskId)));
+    }
+
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        List<TaskMutation> mutations = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mutations.add(TaskMutation.delete(taskId));
+        }
+        sendWrites(mutations);
+    }
+
+    @Override
+    public void getChangesSince(@Nullable final String syncToken,
+                                @NonNull final GetChangesCallback callback) {
+        send(new Request() {
+            private TaskDelta delta;
+
+            @Override
+            String respond() {
+                delta = getDelta(syncToken);
+                return TaskJson.encodeTasks(delta.getChangedTasks())
+                        + TaskJson.encodeIds(delta.getDeletedTaskIds()) + delta.getSyncToken();
+            }
+
+            @Override
+            void onResponse() {
+                callback.onChangesLoaded(delta);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getCurrentSyncToken(@NonNull final GetCurrentSyncTokenCallback callback) {
+        send(new Request() {
+            private String syncToken;
+
+            @Override
+            String respond() {
+                syncToken = syncEpoch + ":" + lastVersion;
+                return syncToken;
+            }
+
+            @Override
+            void onResponse() {
+                callback.onCurrentSyncTokenLoaded(syncToken);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getHashes(final int level, @NonNull List<Integer> nodeIndexes,
+                          @NonNull final GetHashesCallback callback) {
+        final List<Integer> indexes = new ArrayList<>(nodeIndexes);
+        send(new Request(indexes.toString()) {
+            private final long[] hashes = new long[indexes.size()];
+
+            @Override
+            String respond() {
+                for (int i = 0; i < hashes.length; i++) {
+                    hashes[i] = hashTree.getHash(level, indexes.get(i));
+                }
+                return Arrays.toString(hashes);
+            }
+
+            @Override
+            void onResponse() {
+                callback.onHashesLoaded(hashes);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    @Override
+    public void getBucketDigests(@NonNull List<Integer> bucketIndexes,
+                                 @NonNull final GetBucketDigestsCallback callback) {
+        final List<Integer> indexes = new ArrayList<>(bucketIndexes);
+        send(new Request(indexes.toString()) {
+            private final Map<String, Long> digests = new HashMap<>();
+
+            @Override
+            String respond() {
+                for (int index : indexes) {
+                    digests.putAll(hashTree.getBucketDigests(index));
+                }
+                return digests.toString();
+            }
+
+            @Override
+            void onResponse() {
+                callback.onBucketDigestsLoaded(digests);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    /**
+     * Applies the whole batch under one lock, as a single request. The server validates
+     * saves like the add/edit screen does and rejects empty tasks.
+     */
+    @Override
+    public void applyMutations(@NonNull List<TaskMutation> mutations,
+                               @NonNull final ApplyMutationsCallback callback) {
+        final List<TaskMutation> batch = new ArrayList<>(mutations);
+        send(new Request(TaskJson.encodeMutations(batch)) {
+            private final List<TaskMutation> rejected = new ArrayList<>();
+
+            @Override
+            String respond() {
+                List<Integer> rejectedIndexes = new ArrayList<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    TaskMutation mutation = batch.get(i);
+                    if (mutation.getType() == TaskMutation.Type.SAVE
+                            && mutation.getTask().isEmpty()) {
+                        rejected.add(mutation);
+                        rejectedIndexes.add(i);
+                    } else {
+                        apply(mutation);
+                    }
+                }
+                return TaskJson.encodeRejected(rejectedIndexes);
+            }
+
+            @Override
+            void onResponse() {
+                callback.onMutationsApplied(rejected);
+            }
+
+            @Override
+            void onFailure() {
+                callback.onMutationsFailed();
+            }
+        });
+    }
+
+    /**
+     * Fire and forget: writes of failed requests are lost, like they would be on a real network.
+     * Writes are sent one after the other, so two writes to the same task can't be reordered by
+     * their latencies.
+     */
+    private void sendWrites(@NonNull List<TaskMutation> mutations) {
+        synchronized (waitingWrites) {
+            waitingWrites.add(mutations);
+            if (writeInFlight) {
+                return;
+            }
+            writeInFlight = true;
+        }
+        sendNextWrite();
+    }
+
+    private void sendNextWrite() {
+        final List<TaskMutation> mutations;
+        synchronized (waitingWrites) {
+            mutations = waitingWrites.poll();
+            if (mutations == null) {
+                writeInFlight = false;
+                return;
+            }
+        }
+        send(new Request(TaskJson.encodeMutations(mutations)) {
+            @Override
+            String respond() {
+                for (TaskMutation mutation : mutations) {
+                    apply(mutation);
+                }
+                return "{}";
+            }
+
+            @Override
+            void onResponse() {
+                sendNextWrite();
+            }
+
+            @Override
+            void onFailure() {
+                sendNextWrite();
+            }
+        });
+    }
+
+    private List<Task> filter(TasksFilterType filtering) {
+        List<Task> tasks = new ArrayList<>();
+        for (Task task : taskServiceData.values()) {
+            if (filtering == TasksFilterType.ALL_TASKS
+                    || (filtering == TasksFilterType.COMPLETED_TASKS) == task.isCompleted()) {
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    private void apply(TaskMutation mutation) {
+        String taskId = mutation.getTaskId();
+        switch (mutation.getType()) {
+            case SAVE:
+                put(mutation.getTask());
+                break;
+            case DELETE:
+                remove(taskId);
+                break;
+            case COMPLETE:
+            case ACTIVATE:
+                Task task = taskServiceData.get(taskId);
+                if (task != null) {
+                    put(new Task(task.getTitle(), task.getDescription(), taskId,
+                            mutation.getType() == TaskMutation.Type.COMPLETE));
+                }
+                break;
+            case CLEAR_COMPLETED:
+                for (Task completedTask : filter(TasksFilterType.COMPLETED_TASKS)) {
+                    remove(completedTask.getId());
+                }
+                break;
+            case DELETE_ALL:
+                for (String id : new ArrayList<>(taskServiceData.keySet())) {
+                    remove(id);
+                }
+                break;
+        }
+    }
+
+    private void put(Task task) {
+        Task previous = taskServiceData.put(task.getId(), task);
+        if (!task.equals(previous)) {
+            recordChange(task.getId(), savedTaskIds);
+            hashTree.put(task);
+        }
+    }
+
+    private void remove(String taskId) {
+        if (taskServiceData.remove(taskId) == null) {
+            return;
+        }
+        recordChange(taskId, deletedTaskIds);
+        hashTree.remove(taskId);
+        while (deletedTaskIds.size() > MAX_TOMBSTONES) {
+            Map.Entry<Long, String> oldest = deletedTaskIds.pollFirstEntry();
+            versionsById.remove(oldest.getValue());
+            oldestSyncableVersion = oldest.getKey();
+        }
+    }
+
+    /**
+     * Moves {@code taskId} to the next version, in {@code index}.
+     */
+    private void recordChange(String taskId, TreeMap<Long, String> index) {
+        Long previousVersion = versionsById.put(taskId, ++lastVersion);
+        if (previousVersion != null) {
+            savedTaskIds.remove(previousVersion);
+            deletedTaskIds.remove(previousVersion);
+        }
+        index.put(lastVersion, taskId);
+    }
+
+    private TaskDelta getDelta(@Nullable String syncToken) {
+        String newToken = syncEpoch + ":" + lastVersion;
+        long since = parseSyncToken(syncToken);
+        if (since < oldestSyncableVersion || since > lastVersion) {
+            return new TaskDelta(new ArrayList<>(taskServiceData.values()),
+                    Collections.<String>emptyList(), newToken, true);
+        }
+        List<Task> changedTasks = new ArrayList<>();
+        for (String taskId : savedTaskIds.tailMap(since, false).values()) {
+            changedTasks.add(taskServiceData.get(taskId));
+        }
+        List<String> deletedIds = new ArrayList<>(deletedTaskIds.tailMap(since, false).values());
+        return new TaskDelta(changedTasks, deletedIds, newToken, false);
+    }
+
+    /**
+     * Returns the version {@code syncToken} stands for, or -1 if it isn't one of this server.
+     */
+    private long parseSyncToken(@Nullable String syncToken) {
+        if (syncToken == null || !syncToken.startsWith(syncEpoch + ":")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(syncToken.substring(syncEpoch.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends {@code request} as soon as the profile allows another request in flight.
+     */
+    private void send(@NonNull Request request) {
+        synchronized (waitingRequests) {
+            if (requestsInFlight >= networkProfile.getMaxConcurrentRequests()) {
+                waitingRequests.add(request);
+                return;
+            }
+            requestsInFlight++;
+        }
+        start(request);
+    }
+
+    private void start(@NonNull final Request request) {
+        final NetworkProfile profile = networkProfile;
+        double outcome;
+        long latencyMillis;
+        synchronized (random) {
+            outcome = random.nextDouble();
+            latencyMillis = profile.getLatency().sampleMillis(random);
+        }
+        if (outcome < profile.getErrorRate()) {
+            scheduler.schedule(finish(request, false), latencyMillis);
+            return;
+        }
+        if (outcome < profile.getErrorRate() + profile.getTimeoutRate()) {
+            scheduler.schedule(finish(request, false), profile.getTimeoutMillis());
+            return;
+        }
+        long uploadMillis = reserveLink(profile, request.body.length() + HTTP_OVERHEAD_BYTES);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<String> parts;
+                synchronized (taskServiceData) {
+                    parts = request.respondInParts();
+                }
+                // All parts are queued on the link now, each arrives once its own bytes crossed.
+                long[] arrivalMillis = new long[parts.size()];
+                for (int i = 0; i < arrivalMillis.length; i++) {
+                    arrivalMillis[i] = reserveLink(profile,
+                            parts.get(i).length() + (i == 0 ? HTTP_OVERHEAD_BYTES : 0));
+                }
+                receivePart(request, 0, arrivalMillis);
+            }
+        }, uploadMillis + latencyMillis);
+    }
+
+    /**
+     * Schedules the arrival of part {@code index} of the response to {@code request}, and from
+     * there the following ones; the last part completes the request.
+     *
+     * @param arrivalMillis when each part will have arrived, from the time the first is scheduled
+     */
+    private void receivePart(@NonNull final Request request, final int index,
+                             @NonNull final long[] arrivalMillis) {
+        long delayMillis = arrivalMillis[index] - (index == 0 ? 0 : arrivalMillis[index - 1]);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        request.onPartReceived(index);
+                    }
+                });
+                if (index == arrivalMillis.length - 1) {
+                    finish(request, true).run();
+                } else {
+                    receivePart(request, index + 1, arrivalMillis);
+                }
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Returns how long until {@code bytes} more have crossed the link, queued behind the bytes of
+     * the other requests.
+     */
+    private long reserveLink(@NonNull NetworkProfile profile, int bytes) {
+        long transferMillis = profile.getTransferMillis(bytes);
+        synchronized (waitingRequests) {
+            long now = clock.elapsedMillis();
+            linkFreeAtMillis = Math.max(now, linkFreeAtMillis) + transferMillis;
+            return linkFreeAtMillis - now;
+        }
+    }
+
+    /**
+     * Returns the task that hands the connection of {@code request} to the next waiting request
+     * and delivers the outcome.
+     */
+    private Runnable finish(@NonNull final Request request, final boolean succeeded) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                Request next;
+                synchronized (waitingRequests) {
+                    next = waitingRequests.poll();
+                    if (next == null) {
+                        requestsInFlight--;
+                    }
+                }
+                if (next != null) {
+                    start(next);
+                }
+                appExecutors.mainThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (succeeded) {
+                            request.onResponse();
+                        } else {
+                            request.onFailure();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * One request to the simulated server.
+     */
+    private abstract static class Request {
+
+        final String body;
+
+        Request() {
+            this("");
+        }
+
+        Request(@NonNull String body) {
+            this.body = body;
+        }
+
+        /**
+         * Runs on the server with the service data locked, and returns the response body.
+         */
+        abstract String respond();
+
+        /**
+         * Runs on the server instead of {@link #respond()} for a response sent in parts, each of
+         * which arrives on its own, and returns the body of every part.
+         */
+        List<String> respondInParts() {
+            return Collections.singletonList(respond());
+        }
+
+        /**
+         * Runs on the main thread once part {@code index} of the response arrived, the last one
+         * right before {@link #onResponse()}.
+         */
+        void onPartReceived(int index) {
+        }
+
+        /**
+         * Runs on the main thread once the response arrived.
+         */
+        void onResponse() {
+        }
+
+        /**
+         * Runs on the main thread if the request failed or timed out.
+         */
+        void onFailure() {
+        }
     }
 }
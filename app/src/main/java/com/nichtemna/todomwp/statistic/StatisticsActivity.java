@@ -26,6 +26,7 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 
+import com.nichtemna.todomwp.Injection;
 import com.nichtemna.todomwp.R;
 import com.nichtemna.todomwp.tasks.TasksActivity;
 import com.nichtemna.todomwp.util.ActivityUtils;
@@ -18,13 +18,10 @@ package com.nichtemna.todomwp.statistic;
 
 import android.support.annotation.NonNull;
 
-import com.nichtemna.todomwp.data.Task;
 import com.nichtemna.todomwp.data.source.TaskDataSource;
 import com.nichtemna.todomwp.data.source.TaskRepository;
 import com.nichtemna.todomwp.util.EspressoIdlingResource;
 
-import java.util.List;
-
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -57,12 +54,9 @@ public class StatisticsPresenter implements StatisticsContract.Presenter {
         // that the app is busy until the response is handled.
         EspressoIdlingResource.increment(); // App is busy until further notice
 
-        mTasksRepository.getTasks(new TaskDataSource.LoadTasksCallback() {
+        mTasksRepository.getTaskCounts(new TaskDataSource.GetTaskCountsCallback() {
             @Override
-            public void onTasksLoaded(List<Task> tasks) {
-                int activeTasks = 0;
-                int completedTasks = 0;
-
+            public void onTaskCountsLoaded(int activeTasks, int completedTasks) {
                 // This callback may be called twice, once for the cache and once for loading
                 // the data from the server API, so we check before decrementing, otherwise
                 // it throws "Counter has been corrupted!" exception.
@@ -70,14 +64,6 @@ public class StatisticsPresenter implements StatisticsContract.Presenter {
                     EspressoIdlingResource.decrement(); // Set app as idle.
                 }
 
-                // We calculate number of active and completed tasks
-                for (Task task : tasks) {
-                    if (task.isCompleted()) {
-                        completedTasks += 1;
-                    } else {
-                        activeTasks += 1;
-                    }
-                }
                 // The view may not be able to handle UI updates anymore
                 if (!mStatisticsView.isActive()) {
                     return;
@@ -5,6 +5,7 @@ import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 
+import com.nichtemna.todomwp.Injection;
 import com.nichtemna.todomwp.R;
 import com.nichtemna.todomwp.util.ActivityUtils;
 
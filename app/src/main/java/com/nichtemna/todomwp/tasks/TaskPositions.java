@@ -0,0 +1,64 @@
+package com.nichtemna.todomwp.tasks;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Positions of the rows of a task list by task id, so that a change to one task finds its row
+ * without scanning the list.
+ * <p>
+ * Updating a row in place keeps every position valid. An insert or a removal only invalidates the
+ * rows after it, and they are indexed again by the next lookup that needs them.
+ */
+final class TaskPositions {
+
+    private final Map<String, Integer> positions = new HashMap<>();
+
+    /**
+     * The positions of the first rows, up to this one excluded, are up to date.
+     */
+    private int indexedCount;
+
+    /**
+     * Forgets all positions, for a list that was replaced.
+     */
+    void reset() {
+        positions.clear();
+        indexedCount = 0;
+    }
+
+    void onInserted(int position) {
+        indexedCount = Math.min(indexedCount, position);
+    }
+
+    void onRemoved(@NonNull String taskId, int position) {
+        positions.remove(taskId);
+        indexedCount = Math.min(indexedCount, position);
+    }
+
+    /**
+     * Returns the row of {@code taskId} in {@code tasks}, or -1 if it isn't in the list.
+     */
+    int indexOf(@NonNull List<Task> tasks, @NonNull String taskId) {
+        Integer position = positions.get(taskId);
+        if (position != null && position < indexedCount) {
+            return position;
+        }
+        if (indexedCount < tasks.size()) {
+            // Iterate instead of indexing, the list may be a tree-backed repository snapshot.
+            ListIterator<Task> iterator = tasks.listIterator(indexedCount);
+            while (iterator.hasNext()) {
+                positions.put(iterator.next().getId(), iterator.previousIndex());
+            }
+            indexedCount = tasks.size();
+            position = positions.get(taskId);
+        }
+        return position != null && position < indexedCount ? position : -1;
+    }
+}
@@ -12,6 +12,7 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 
+import com.nichtemna.todomwp.Injection;
 import com.nichtemna.todomwp.R;
 import com.nichtemna.todomwp.statistic.StatisticsActivity;
 import com.nichtemna.todomwp.util.ActivityUtils;
@@ -53,7 +54,8 @@ public class TasksActivity extends AppCompatActivity {
             ActivityUtils.addFragmentToActivity(getSupportFragmentManager(), tasksFragment, R.id.contentFrame);
         }
 
-        tasksPresenter = new TasksPresenter();
+        tasksPresenter = new TasksPresenter(
+                Injection.provideTasksRepository(getApplicationContext()), tasksFragment);
 
         if (savedInstanceState != null) {
             TasksFilterType currentFiltering = (TasksFilterType) savedInstanceState.getSerializable(CURRENT_FILTERING_KEY);
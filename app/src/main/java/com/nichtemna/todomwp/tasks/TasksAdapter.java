@@ -1,28 +1,43 @@
 package com.nichtemna.todomwp.tasks;
 
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.CheckBox;
 import android.widget.TextView;
 
 import com.nichtemna.todomwp.R;
 import com.nichtemna.todomwp.data.Task;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * Created by shyslin on 11/7/16.
+ * <p>
+ * Single-task changes notify only the affected row, so that toggling a task rebinds one row
+ * instead of the whole list.
  */
 
-public class TasksAdapter extends BaseAdapter {
+public class TasksAdapter extends RecyclerView.Adapter<TasksAdapter.TaskViewHolder> {
 
     private List<Task> mTasks;
+
+    // False while mTasks may be shared with the presenter and must be copied before a change.
+    private boolean mOwnsTasks;
     private TaskItemListener mItemListener;
 
+    // Rows of mTasks by task id, used to find the row whose selection changed.
+    private final TaskPositions mPositions = new TaskPositions();
+
+    // Ids of the tasks selected in multi-select mode, in selection order.
+    private final Set<String> mSelectedTaskIds = new LinkedHashSet<>();
+
     public TasksAdapter(List<Task> tasks, TaskItemListener itemListener) {
         setList(tasks);
         mItemListener = itemListener;
@@ -33,51 +48,104 @@ public class TasksAdapter extends BaseAdapter {
         notifyDataSetChanged();
     }
 
+    public void appendTasks(List<Task> tasks) {
+        int start = mTasks.size();
+        mutableTasks().addAll(tasks);
+        notifyItemRangeInserted(start, tasks.size());
+    }
+
+    public void insertTask(int position, Task task) {
+        mutableTasks().add(position, task);
+        mPositions.onInserted(position);
+        notifyItemInserted(position);
+    }
+
+    public void updateTask(int position, Task task) {
+        mutableTasks().set(position, task);
+        notifyItemChanged(position);
+    }
+
+    public void removeTask(int position) {
+        Task removedTask = mutableTasks().remove(position);
+        mPositions.onRemoved(removedTask.getId(), position);
+        mSelectedTaskIds.remove(removedTask.getId());
+        notifyItemRemoved(position);
+    }
+
+    public void toggleSelection(Task task) {
+        if (!mSelectedTaskIds.remove(task.getId())) {
+            mSelectedTaskIds.add(task.getId());
+        }
+        notifyTaskChanged(task.getId());
+    }
+
+    public void clearSelection() {
+        List<String> selectedTaskIds = new ArrayList<>(mSelectedTaskIds);
+        mSelectedTaskIds.clear();
+        for (String taskId : selectedTaskIds) {
+            notifyTaskChanged(taskId);
+        }
+    }
+
+    public Set<String> getSelectedTaskIds() {
+        return new LinkedHashSet<>(mSelectedTaskIds);
+    }
+
+    private void notifyTaskChanged(String taskId) {
+        int position = mPositions.indexOf(mTasks, taskId);
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
+    }
+
     private void setList(List<Task> tasks) {
         mTasks = checkNotNull(tasks);
+        mOwnsTasks = false;
+        mPositions.reset();
+    }
+
+    private List<Task> mutableTasks() {
+        if (!mOwnsTasks) {
+            mTasks = new ArrayList<>(mTasks);
+            mOwnsTasks = true;
+        }
+        return mTasks;
     }
 
     @Override
-    public int getCount() {
+    public int getItemCount() {
         return mTasks.size();
     }
 
-    @Override
     public Task getItem(int i) {
         return mTasks.get(i);
     }
 
     @Override
-    public long getItemId(int i) {
-        return i;
+    public TaskViewHolder onCreateViewHolder(ViewGroup viewGroup, int viewType) {
+        LayoutInflater inflater = LayoutInflater.from(viewGroup.getContext());
+        return new TaskViewHolder(inflater.inflate(R.layout.task_item, viewGroup, false));
     }
 
     @Override
-    public View getView(int i, View view, ViewGroup viewGroup) {
-        View rowView = view;
-        if (rowView == null) {
-            LayoutInflater inflater = LayoutInflater.from(viewGroup.getContext());
-            rowView = inflater.inflate(R.layout.task_item, viewGroup, false);
-        }
-
+    public void onBindViewHolder(TaskViewHolder holder, int i) {
+        View rowView = holder.itemView;
         final Task task = getItem(i);
 
-        TextView titleTV = (TextView) rowView.findViewById(R.id.title);
-        titleTV.setText(task.getTitleForList());
-
-        CheckBox completeCB = (CheckBox) rowView.findViewById(R.id.complete);
+        holder.titleTV.setText(task.getTitleForList());
 
         // Active/completed task UI
-        completeCB.setChecked(task.isCompleted());
+        holder.completeCB.setChecked(task.isCompleted());
+        rowView.setActivated(mSelectedTaskIds.contains(task.getId()));
         if (task.isCompleted()) {
-            rowView.setBackgroundDrawable(viewGroup.getContext()
+            rowView.setBackgroundDrawable(rowView.getContext()
                     .getResources().getDrawable(R.drawable.list_completed_touch_feedback));
         } else {
-            rowView.setBackgroundDrawable(viewGroup.getContext()
+            rowView.setBackgroundDrawable(rowView.getContext()
                     .getResources().getDrawable(R.drawable.touch_feedback));
         }
 
-        completeCB.setOnClickListener(new View.OnClickListener() {
+        holder.completeCB.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 if (!task.isCompleted()) {
@@ -95,6 +163,25 @@ public class TasksAdapter extends BaseAdapter {
             }
         });
 
-        return rowView;
+        rowView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                mItemListener.onTaskLongClick(task);
+                return true;
+            }
+        });
+    }
+
+    static class TaskViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView titleTV;
+
+        final CheckBox completeCB;
+
+        TaskViewHolder(View rowView) {
+            super(rowView);
+            titleTV = (TextView) rowView.findViewById(R.id.title);
+            completeCB = (CheckBox) rowView.findViewById(R.id.complete);
+        }
     }
-}
\ No newline at end of file
+}
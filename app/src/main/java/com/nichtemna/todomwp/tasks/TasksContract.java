@@ -6,6 +6,7 @@ import com.nichtemna.todomwp.BasePresenter;
 import com.nichtemna.todomwp.BaseView;
 import com.nichtemna.todomwp.data.Task;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -20,6 +21,14 @@ public interface TasksContract {
 
         void showTasks(List<Task> tasks);
 
+        void showMoreTasks(List<Task> tasks);
+
+        void showTaskInserted(int position, Task task);
+
+        void showTaskUpdated(int position, Task task);
+
+        void showTaskRemoved(int position);
+
         void showAddTask();
 
         void showTaskDetailUi(String taskId);
@@ -28,6 +37,14 @@ public interface TasksContract {
 
         void showTaskMarkedActive();
 
+        void showTasksMarkedComplete(int count);
+
+        void showTasksMarkedActive(int count);
+
+        void showTasksDeleted(int count);
+
+        void showWritesRejected(int count);
+
         void showCompletedTasksCleared();
 
         void showLoadingTasksError();
@@ -53,10 +70,14 @@ public interface TasksContract {
 
     interface Presenter extends BasePresenter {
 
+        void stop();
+
         void result(int requestCode, int resultCode);
 
         void loadTasks(boolean forceUpdate);
 
+        void loadMoreTasks();
+
         void addNewTask();
 
         void openTaskDetails(@NonNull Task requestedTask);
@@ -65,6 +86,12 @@ public interface TasksContract {
 
         void activateTask(@NonNull Task activeTask);
 
+        void completeTasks(@NonNull Collection<String> taskIds);
+
+        void activateTasks(@NonNull Collection<String> taskIds);
+
+        void deleteTasks(@NonNull Collection<String> taskIds);
+
         void clearCompletedTasks();
 
         void setFiltering(TasksFilterType requestType);
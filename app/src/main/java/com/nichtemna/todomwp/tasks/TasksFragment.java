@@ -9,7 +9,11 @@ import android.support.design.widget.Snackbar;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.widget.SwipeRefreshLayout;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.view.ActionMode;
+import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.PopupMenu;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -18,7 +22,6 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import com.nichtemna.todomwp.R;
@@ -28,6 +31,7 @@ import com.nichtemna.todomwp.taskdetail.TaskDetailActivity;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -36,6 +40,11 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class TasksFragment extends Fragment implements TasksContract.View {
 
+    /**
+     * The next page is requested once the last visible row is this close to the end of the list.
+     */
+    private static final int LOAD_MORE_THRESHOLD = 10;
+
     private TasksContract.Presenter presenter;
 
     private TasksAdapter listAdapter;
@@ -52,6 +61,11 @@ public class TasksFragment extends Fragment implements TasksContract.View {
 
     private TextView filteringLabelView;
 
+    /**
+     * Shown while tasks are being selected for a bulk action, null otherwise.
+     */
+    private ActionMode selectionMode;
+
     public TasksFragment() {
     }
 
@@ -71,6 +85,12 @@ public class TasksFragment extends Fragment implements TasksContract.View {
         presenter.start();
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        presenter.stop();
+    }
+
     @Override
     public void setPresenter(@NonNull TasksContract.Presenter presenter) {
         this.presenter = checkNotNull(presenter);
@@ -87,8 +107,20 @@ public class TasksFragment extends Fragment implements TasksContract.View {
         View root = inflater.inflate(R.layout.fragment_tasks, container, false);
 
         // Set up tasks view
-        ListView listView = (ListView) root.findViewById(R.id.tasks_list);
+        RecyclerView listView = (RecyclerView) root.findViewById(R.id.tasks_list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
+        listView.setLayoutManager(layoutManager);
         listView.setAdapter(listAdapter);
+        listView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = layoutManager.getItemCount();
+                if (totalItemCount > 0 && layoutManager.findLastVisibleItemPosition() + 1
+                        >= totalItemCount - LOAD_MORE_THRESHOLD) {
+                    presenter.loadMoreTasks();
+                }
+            }
+        });
         filteringLabelView = (TextView) root.findViewById(R.id.filteringLabel);
         tasksView = (LinearLayout) root.findViewById(R.id.tasksLL);
 
@@ -190,7 +222,20 @@ public class TasksFragment extends Fragment implements TasksContract.View {
     TaskItemListener itemListener = new TaskItemListener() {
         @Override
         public void onTaskClick(Task clickedTask) {
-            presenter.openTaskDetails(clickedTask);
+            if (selectionMode != null) {
+                toggleSelection(clickedTask);
+            } else {
+                presenter.openTaskDetails(clickedTask);
+            }
+        }
+
+        @Override
+        public void onTaskLongClick(Task clickedTask) {
+            if (selectionMode == null) {
+                selectionMode = ((AppCompatActivity) getActivity())
+                        .startSupportActionMode(selectionModeCallback);
+            }
+            toggleSelection(clickedTask);
         }
 
         @Override
@@ -204,6 +249,55 @@ public class TasksFragment extends Fragment implements TasksContract.View {
         }
     };
 
+    private final ActionMode.Callback selectionModeCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.tasks_selection_menu, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            Set<String> selectedTaskIds = listAdapter.getSelectedTaskIds();
+            switch (item.getItemId()) {
+                case R.id.menu_complete_selected:
+                    presenter.completeTasks(selectedTaskIds);
+                    break;
+                case R.id.menu_activate_selected:
+                    presenter.activateTasks(selectedTaskIds);
+                    break;
+                case R.id.menu_delete_selected:
+                    presenter.deleteTasks(selectedTaskIds);
+                    break;
+                default:
+                    return false;
+            }
+            mode.finish();
+            return true;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            selectionMode = null;
+            listAdapter.clearSelection();
+        }
+    };
+
+    private void toggleSelection(Task task) {
+        listAdapter.toggleSelection(task);
+        int selectedCount = listAdapter.getSelectedTaskIds().size();
+        if (selectedCount == 0) {
+            selectionMode.finish();
+        } else {
+            selectionMode.setTitle(getString(R.string.tasks_selected, selectedCount));
+        }
+    }
+
     @Override
     public void setLoadingIndicator(final boolean active) {
         if (getView() == null) {
@@ -229,6 +323,29 @@ public class TasksFragment extends Fragment implements TasksContract.View {
         noTasksView.setVisibility(View.GONE);
     }
 
+    @Override
+    public void showMoreTasks(List<Task> tasks) {
+        listAdapter.appendTasks(tasks);
+    }
+
+    @Override
+    public void showTaskInserted(int position, Task task) {
+        listAdapter.insertTask(position, task);
+
+        tasksView.setVisibility(View.VISIBLE);
+        noTasksView.setVisibility(View.GONE);
+    }
+
+    @Override
+    public void showTaskUpdated(int position, Task task) {
+        listAdapter.updateTask(position, task);
+    }
+
+    @Override
+    public void showTaskRemoved(int position) {
+        listAdapter.removeTask(position);
+    }
+
     @Override
     public void showAddTask() {
         Intent intent = new Intent(getContext(), AddEditTaskActivity.class);
@@ -254,6 +371,26 @@ public class TasksFragment extends Fragment implements TasksContract.View {
         showMessage(getString(R.string.task_marked_active));
     }
 
+    @Override
+    public void showTasksMarkedComplete(int count) {
+        showMessage(getResources().getQuantityString(R.plurals.tasks_marked_complete, count, count));
+    }
+
+    @Override
+    public void showTasksMarkedActive(int count) {
+        showMessage(getResources().getQuantityString(R.plurals.tasks_marked_active, count, count));
+    }
+
+    @Override
+    public void showTasksDeleted(int count) {
+        showMessage(getResources().getQuantityString(R.plurals.tasks_deleted, count, count));
+    }
+
+    @Override
+    public void showWritesRejected(int count) {
+        showMessage(getResources().getQuantityString(R.plurals.writes_rejected, count, count));
+    }
+
     @Override
     public void showCompletedTasksCleared() {
         showMessage(getString(R.string.completed_tasks_cleared));
@@ -313,7 +450,7 @@ public class TasksFragment extends Fragment implements TasksContract.View {
 
     @Override
     public boolean isActive() {
-        return false;
+        return isAdded();
     }
 
     private void showNoTasksViews(String mainText, int iconRes, boolean showAddView) {
@@ -5,11 +5,14 @@ import android.support.annotation.NonNull;
 
 import com.nichtemna.todomwp.addedittask.AddEditTaskActivity;
 import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskChange;
 import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskPage;
 import com.nichtemna.todomwp.data.source.TaskRepository;
 import com.nichtemna.todomwp.util.EspressoIdlingResource;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import static android.support.test.espresso.core.deps.guava.base.Preconditions.checkNotNull;
@@ -18,7 +21,12 @@ import static android.support.test.espresso.core.deps.guava.base.Preconditions.c
  * Created by Lina Shyshova on 06.11.16.
  */
 
-public class TasksPresenter implements TasksContract.Presenter {
+public class TasksPresenter implements TasksContract.Presenter, TaskRepository.TasksObserver {
+
+    /**
+     * Number of tasks requested per page or streamed chunk, a few screens of the list.
+     */
+    private static final int PAGE_SIZE = 50;
 
     private final TaskRepository taskRepository;
 
@@ -28,6 +36,40 @@ public class TasksPresenter implements TasksContract.Presenter {
 
     private boolean firstLoad;
 
+    /**
+     * The filtered tasks currently shown by the view, in display order. Single-task changes from
+     * the repository are applied to this list instead of reloading everything.
+     */
+    private List<Task> shownTasks = new ArrayList<>();
+
+    /**
+     * False while {@link #shownTasks} may be a list shared with the repository, which must be
+     * copied before it is changed.
+     */
+    private boolean ownsShownTasks = true;
+
+    /**
+     * Rows of {@link #shownTasks} by task id, so that a change finds its row in constant time.
+     */
+    private final TaskPositions shownPositions = new TaskPositions();
+
+    /**
+     * Key of the page following {@link #shownTasks}, or null if all matching tasks are shown.
+     */
+    private String nextPageKey;
+
+    private boolean loadingMoreTasks;
+
+    /**
+     * True while chunks of the current list are still arriving.
+     */
+    private boolean streamingTasks;
+
+    /**
+     * Incremented by every full load, so that pages requested for an older list are dropped.
+     */
+    private int loadGeneration;
+
     public TasksPresenter(@NonNull TaskRepository taskRepository, @NonNull TasksContract.View tasksView) {
         this.taskRepository = checkNotNull(taskRepository, "tasksRepository cannot be null");
         this.tasksView = checkNotNull(tasksView, "tasksView cannot be null!");
@@ -37,9 +79,15 @@ public class TasksPresenter implements TasksContract.Presenter {
 
     @Override
     public void start() {
+        taskRepository.addTasksObserver(this);
         loadTasks(false);
     }
 
+    @Override
+    public void stop() {
+        taskRepository.removeTasksObserver(this);
+    }
+
     @Override
     public void result(int requestCode, int resultCode) {
         if (AddEditTaskActivity.REQUEST_ADD_TASK == requestCode && Activity.RESULT_OK == resultCode) {
@@ -71,11 +119,20 @@ public class TasksPresenter implements TasksContract.Presenter {
         // that the app is busy until the response is handled.
         EspressoIdlingResource.increment(); // App is busy until further notice
 
-        taskRepository.getTasks(new TaskDataSource.LoadTasksCallback() {
-            @Override
-            public void onTasksLoaded(List<Task> tasks) {
-                List<Task> tasksToShow = new ArrayList<>();
+        final int generation = ++loadGeneration;
+        nextPageKey = null;
+        loadingMoreTasks = false;
+        streamingTasks = false;
 
+        if (forceUpdate) {
+            // The whole list has to come from the server, show it chunk by chunk as it arrives.
+            streamTasks(generation, showLoadingUI);
+            return;
+        }
+
+        taskRepository.getTaskPage(currentFiltering, PAGE_SIZE, null, new TaskDataSource.LoadTaskPageCallback() {
+            @Override
+            public void onTaskPageLoaded(TaskPage page) {
                 // This callback may be called twice, once for the cache and once for loading
                 // the data from the server API, so we check before decrementing, otherwise
                 // it throws "Counter has been corrupted!" exception.
@@ -83,40 +140,150 @@ public class TasksPresenter implements TasksContract.Presenter {
                     EspressoIdlingResource.decrement();
                 }
 
-                // We filter the tasks based on the requestType
-                for (Task task : tasks) {
-                    switch (currentFiltering) {
-                        case ACTIVE_TASKS:
-                            if (task.isActive()) {
-                                tasksToShow.add(task);
-                            }
-                            break;
-                        case COMPLETED_TASKS:
-                            if (task.isCompleted()) {
-                                tasksToShow.add(task);
-                            }
-                            break;
-                        case ALL_TASKS:
-                            tasksToShow.add(task);
-                            break;
-                        default:
-                            tasksToShow.add(task);
+                if (generation != loadGeneration || !tasksView.isActive()) {
+                    return;
+                }
+
+                if (showLoadingUI) {
+                    tasksView.setLoadingIndicator(false);
+                }
+
+                // The repository already filtered the tasks based on the requestType
+                nextPageKey = page.getNextPageKey();
+                processTasks(page.getTasks());
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                if (generation != loadGeneration || !tasksView.isActive()) {
+                    return;
+                }
+
+                tasksView.showLoadingTasksError();
+            }
+        });
+    }
+
+    private void streamTasks(final int generation, final boolean showLoadingUI) {
+        streamingTasks = true;
+        // Keep the known tasks on screen while the server is asked, instead of an empty list.
+        taskRepository.streamTasks(currentFiltering, PAGE_SIZE, TaskRepository.RefreshMode.STALE_WHILE_REVALIDATE,
+                new TaskRepository.RevalidatingStreamTasksCallback() {
+            private boolean firstChunk = true;
+
+            @Override
+            public void onStaleTasksLoaded(List<Task> tasks) {
+                if (generation != loadGeneration || !tasksView.isActive()) {
+                    return;
+                }
+
+                // The loading indicator stays on until the fresh tasks arrive.
+                processTasks(tasks);
+            }
+
+            @Override
+            public void onTasksChunkLoaded(List<Task> tasks) {
+                if (generation != loadGeneration || !tasksView.isActive()) {
+                    return;
+                }
+
+                if (firstChunk) {
+                    firstChunk = false;
+                    if (!EspressoIdlingResource.getIdlingResource().isIdleNow()) {
+                        EspressoIdlingResource.decrement();
+                    }
+                    if (showLoadingUI) {
+                        tasksView.setLoadingIndicator(false);
                     }
+                    processTasks(tasks);
+                } else {
+                    mutableShownTasks().addAll(tasks);
+                    tasksView.showMoreTasks(tasks);
                 }
+            }
 
-                if (!tasksView.isActive()) {
+            @Override
+            public void onTasksStreamComplete() {
+                if (generation != loadGeneration) {
                     return;
                 }
+                streamingTasks = false;
 
+                if (!tasksView.isActive() || !firstChunk) {
+                    return;
+                }
+
+                // Nothing matched the filter.
+                if (!EspressoIdlingResource.getIdlingResource().isIdleNow()) {
+                    EspressoIdlingResource.decrement();
+                }
                 if (showLoadingUI) {
                     tasksView.setLoadingIndicator(false);
                 }
+                processTasks(new ArrayList<Task>(0));
+            }
 
-                processTasks(tasksToShow);
+            @Override
+            public void onDataNotAvailable() {
+                if (generation != loadGeneration) {
+                    return;
+                }
+                streamingTasks = false;
+
+                if (!tasksView.isActive()) {
+                    return;
+                }
+
+                tasksView.showLoadingTasksError();
+            }
+        });
+    }
+
+    /**
+     * Appends the next page of tasks to the shown list, if there is one and it isn't already
+     * being loaded.
+     */
+    @Override
+    public void loadMoreTasks() {
+        if (nextPageKey == null || loadingMoreTasks) {
+            return;
+        }
+        loadingMoreTasks = true;
+        final int generation = loadGeneration;
+
+        EspressoIdlingResource.increment(); // App is busy until further notice
+
+        taskRepository.getTaskPage(currentFiltering, PAGE_SIZE, nextPageKey, new TaskDataSource.LoadTaskPageCallback() {
+            @Override
+            public void onTaskPageLoaded(TaskPage page) {
+                if (!EspressoIdlingResource.getIdlingResource().isIdleNow()) {
+                    EspressoIdlingResource.decrement();
+                }
+
+                if (generation != loadGeneration) {
+                    return;
+                }
+                loadingMoreTasks = false;
+
+                if (!tasksView.isActive()) {
+                    return;
+                }
+
+                nextPageKey = page.getNextPageKey();
+                List<Task> tasks = page.getTasks();
+                if (!tasks.isEmpty()) {
+                    mutableShownTasks().addAll(tasks);
+                    tasksView.showMoreTasks(tasks);
+                }
             }
 
             @Override
             public void onDataNotAvailable() {
+                if (generation != loadGeneration) {
+                    return;
+                }
+                loadingMoreTasks = false;
+
                 if (!tasksView.isActive()) {
                     return;
                 }
@@ -126,7 +293,107 @@ public class TasksPresenter implements TasksContract.Presenter {
         });
     }
 
+    @Override
+    public void onWritesRejected(int count) {
+        if (tasksView.isActive()) {
+            tasksView.showWritesRejected(count);
+        }
+    }
+
+    @Override
+    public void onTasksChanged(@NonNull List<TaskChange> changes) {
+        if (!tasksView.isActive()) {
+            return;
+        }
+
+        boolean wasEmpty = shownTasks.isEmpty();
+        for (TaskChange change : changes) {
+            if (!applyChange(change)) {
+                // The change can't be placed in the current list, fall back to a full reload.
+                loadTasks(false, false);
+                return;
+            }
+        }
+
+        if (shownTasks.isEmpty()) {
+            processEmptyTasks();
+        } else if (wasEmpty) {
+            showFilteringLabel();
+        }
+    }
+
+    /**
+     * Applies a single repository change to {@link #shownTasks} and forwards it to the view.
+     *
+     * @return false if the change could not be applied incrementally
+     */
+    private boolean applyChange(TaskChange change) {
+        int position = shownPositions.indexOf(shownTasks, change.getTaskId());
+        Task task = change.getTask();
+        boolean visible = task != null && matchesFiltering(task);
+
+        switch (change.getType()) {
+            case INSERTED:
+                // The repository appends new tasks, so they go last in every filtered view: while
+                // pages or chunks are left, the task will come with the last one.
+                if (visible && nextPageKey == null && !streamingTasks) {
+                    mutableShownTasks().add(task);
+                    shownPositions.onInserted(shownTasks.size() - 1);
+                    tasksView.showTaskInserted(shownTasks.size() - 1, task);
+                }
+                return true;
+            case UPDATED:
+                if (position >= 0 && visible) {
+                    mutableShownTasks().set(position, task);
+                    tasksView.showTaskUpdated(position, task);
+                } else if (position >= 0) {
+                    removeShownTask(position);
+                } else if (visible) {
+                    // The task entered the filter; its position depends on the repository order.
+                    return false;
+                }
+                return true;
+            case REMOVED:
+                if (position >= 0) {
+                    removeShownTask(position);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private List<Task> mutableShownTasks() {
+        if (!ownsShownTasks) {
+            shownTasks = new ArrayList<>(shownTasks);
+            ownsShownTasks = true;
+        }
+        return shownTasks;
+    }
+
+    private void removeShownTask(int position) {
+        Task removedTask = mutableShownTasks().remove(position);
+        shownPositions.onRemoved(removedTask.getId(), position);
+        tasksView.showTaskRemoved(position);
+    }
+
+    private boolean matchesFiltering(Task task) {
+        switch (currentFiltering) {
+            case ACTIVE_TASKS:
+                return task.isActive();
+            case COMPLETED_TASKS:
+                return task.isCompleted();
+            case ALL_TASKS:
+            default:
+                return true;
+        }
+    }
+
     private void processTasks(List<Task> tasks) {
+        shownTasks = tasks;
+        ownsShownTasks = false;
+        shownPositions.reset();
+
         if (tasks.isEmpty()) {
             processEmptyTasks();
         } else {
@@ -179,7 +446,6 @@ public class TasksPresenter implements TasksContract.Presenter {
         checkNotNull(completedTask, "completedTask cannot be null!");
         taskRepository.completeTask(completedTask);
         tasksView.showTaskMarkedComplete();
-        loadTasks(false, false);
     }
 
     @Override
@@ -187,14 +453,33 @@ public class TasksPresenter implements TasksContract.Presenter {
         checkNotNull(activeTask, "activeTask cannot be null!");
         taskRepository.activateTask(activeTask);
         tasksView.showTaskMarkedActive();
-        loadTasks(false, false);
+    }
+
+    @Override
+    public void completeTasks(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds, "taskIds cannot be null!");
+        taskRepository.completeTasks(taskIds);
+        tasksView.showTasksMarkedComplete(taskIds.size());
+    }
+
+    @Override
+    public void activateTasks(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds, "taskIds cannot be null!");
+        taskRepository.activateTasks(taskIds);
+        tasksView.showTasksMarkedActive(taskIds.size());
+    }
+
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds, "taskIds cannot be null!");
+        taskRepository.deleteTasks(taskIds);
+        tasksView.showTasksDeleted(taskIds.size());
     }
 
     @Override
     public void clearCompletedTasks() {
         taskRepository.clearCompletedTasks();
         tasksView.showCompletedTasksCleared();
-        loadTasks(false, false);
     }
 
     /**
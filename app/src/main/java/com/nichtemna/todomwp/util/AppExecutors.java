@@ -0,0 +1,73 @@
+package com.nichtemna.todomwp.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Global executor pools for the whole application.
+ * <p>
+ * Grouping tasks like this avoids the effects of task starvation (e.g. disk reads don't wait
+ * behind webservice requests). Disk IO runs on a single thread so that writes to the local
+ * database are applied in the order they were issued. Network writes get their own single thread
+ * for the same reason, while network reads share a pool.
+ */
+public class AppExecutors {
+
+    private static final int THREAD_COUNT = 3;
+
+    private final Executor diskIO;
+
+    private final Executor networkIO;
+
+    private final Executor networkWrites;
+
+    private final Executor mainThread;
+
+    @VisibleForTesting
+    public AppExecutors(@NonNull Executor diskIO, @NonNull Executor networkIO,
+                        @NonNull Executor networkWrites, @NonNull Executor mainThread) {
+        this.diskIO = diskIO;
+        this.networkIO = networkIO;
+        this.networkWrites = networkWrites;
+        this.mainThread = mainThread;
+    }
+
+    public AppExecutors() {
+        this(Executors.newSingleThreadExecutor(), Executors.newFixedThreadPool(THREAD_COUNT),
+                Executors.newSingleThreadExecutor(), new MainThreadExecutor());
+    }
+
+    public Executor diskIO() {
+        return diskIO;
+    }
+
+    public Executor networkIO() {
+        return networkIO;
+    }
+
+    /**
+     * Runs requests that change the server one at a time, in the order they were issued, so that
+     * e.g. completing then activating a task can't reach the server the other way round.
+     */
+    public Executor networkWrites() {
+        return networkWrites;
+    }
+
+    public Executor mainThread() {
+        return mainThread;
+    }
+
+    private static class MainThreadExecutor implements Executor {
+        private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mainThreadHandler.post(command);
+        }
+    }
+}
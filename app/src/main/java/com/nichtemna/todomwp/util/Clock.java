@@ -0,0 +1,25 @@
+package com.nichtemna.todomwp.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of the current time, so that time-dependent code can be driven by a fake in tests.
+ */
+public interface Clock {
+
+    /**
+     * Monotonic clock backed by {@link System#nanoTime()}, unaffected by changes of the wall
+     * clock.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    /**
+     * Returns milliseconds elapsed since an arbitrary fixed origin. Never goes backwards.
+     */
+    long elapsedMillis();
+}
@@ -0,0 +1,31 @@
+package com.nichtemna.todomwp.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks after a delay, so that time-dependent code can be driven in virtual time by tests.
+ * Pair it with a {@link Clock} that measures the same time.
+ */
+public abstract class Scheduler {
+
+    /**
+     * Runs {@code task} once {@code delayMillis} have passed.
+     */
+    public abstract void schedule(@NonNull Runnable task, long delayMillis);
+
+    /**
+     * Returns a scheduler that runs its tasks on {@code executor}, in {@link Clock#SYSTEM} time.
+     */
+    @NonNull
+    public static Scheduler from(@NonNull final ScheduledExecutorService executor) {
+        return new Scheduler() {
+            @Override
+            public void schedule(@NonNull Runnable task, long delayMillis) {
+                executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+}
@@ -0,0 +1,127 @@
+package com.nichtemna.todomwp.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of {@link HashTreeDiff} over two in-memory {@link TaskHashTree}s.
+ */
+public class HashTreeDiffTest {
+
+    private static final int TASK_COUNT = 10000;
+
+    private TreeSource local;
+
+    private TreeSource remote;
+
+    @Before
+    public void setUp() {
+        local = new TreeSource();
+        remote = new TreeSource();
+        for (int i = 0; i < TASK_COUNT; i++) {
+            Task task = new Task("Title " + i, "Description " + i, "id" + i, i % 3 == 0);
+            local.tree.put(task);
+            remote.tree.put(task);
+        }
+    }
+
+    @Test
+    public void equalTrees_stopAtTheRoot() {
+        Result result = diff();
+
+        assertTrue(result.changedTaskIds.isEmpty());
+        assertTrue(result.removedTaskIds.isEmpty());
+        assertEquals(1, remote.hashesSent);
+        assertEquals(0, remote.digestsSent);
+    }
+
+    @Test
+    public void findsEditedAddedAndRemovedTasks_transferringOnlyTheirBuckets() {
+        remote.tree.put(new Task("Edited", "Description 1", "id1", false));
+        remote.tree.put(new Task("New", "", "new", false));
+        remote.tree.remove("id2");
+        local.tree.remove("id3");
+
+        Result result = diff();
+
+        assertEquals(new HashSet<>(Arrays.asList("id1", "new", "id3")),
+                result.changedTaskIds);
+        assertEquals(Collections.singleton("id2"), result.removedTaskIds);
+        // The root, then the children of at most four differing nodes per level.
+        assertTrue(remote.hashesSent <= 1 + 4 * TaskHashTree.FANOUT * TaskHashTree.DEPTH);
+        assertTrue(remote.digestsSent < TASK_COUNT / 100);
+    }
+
+    private Result diff() {
+        Result result = new Result();
+        new HashTreeDiff(local, remote, result).start();
+        assertTrue(result.found);
+        return result;
+    }
+
+    private static class Result implements HashTreeDiff.Callback {
+
+        boolean found;
+        Set<String> changedTaskIds;
+        Set<String> removedTaskIds;
+
+        @Override
+        public void onDiffFound(@NonNull Set<String> changedTaskIds,
+                                @NonNull Set<String> removedTaskIds) {
+            found = true;
+            this.changedTaskIds = changedTaskIds;
+            this.removedTaskIds = removedTaskIds;
+        }
+
+        @Override
+        public void onDataNotAvailable() {
+        }
+    }
+
+    /**
+     * Answers synchronously and counts what it sent.
+     */
+    private static class TreeSource implements TaskHashTreeSource {
+
+        final TaskHashTree tree = new TaskHashTree();
+        int hashesSent;
+        int digestsSent;
+
+        @Override
+        public void getHashes(int level, @NonNull List<Integer> nodeIndexes,
+                              @NonNull GetHashesCallback callback) {
+            long[] hashes = new long[nodeIndexes.size()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = tree.getHash(level, nodeIndexes.get(i));
+            }
+            hashesSent += hashes.length;
+            callback.onHashesLoaded(hashes);
+        }
+
+        @Override
+        public void getBucketDigests(@NonNull List<Integer> bucketIndexes,
+                                     @NonNull GetBucketDigestsCallback callback) {
+            Map<String, Long> digests = new HashMap<>();
+            for (int index : bucketIndexes) {
+                digests.putAll(tree.getBucketDigests(index));
+            }
+            digestsSent += digests.size();
+            callback.onBucketDigestsLoaded(digests);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.nichtemna.todomwp.data.source;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for {@link InFlightLoads}.
+ */
+public class InFlightLoadsTest {
+
+    private InFlightLoads<String, String> loads;
+
+    @Before
+    public void setUp() {
+        loads = new InFlightLoads<>();
+    }
+
+    @Test
+    public void join_onlyFirstCallerStartsTheLoad() {
+        InFlightLoads.Load<String> load = loads.join("tasks", "first");
+        assertNotNull(load);
+        assertNull(loads.join("tasks", "second"));
+        assertNotNull(loads.join("other", "third"));
+
+        assertEquals(Arrays.asList("first", "second"), loads.complete("tasks", load));
+        assertEquals(2, loads.getStartedCount());
+        assertEquals(1, loads.getDeduplicatedCount());
+    }
+
+    @Test
+    public void complete_letsTheNextCallerStartANewLoad() {
+        loads.complete("tasks", loads.join("tasks", "first"));
+
+        assertNotNull(loads.join("tasks", "second"));
+        assertEquals(0, loads.getDeduplicatedCount());
+    }
+
+    @Test
+    public void startOver_keepsLaterCallersOutOfTheLoadsInFlight() {
+        InFlightLoads.Load<String> outdated = loads.join("tasks", "first");
+        loads.startOver();
+        InFlightLoads.Load<String> current = loads.join("tasks", "second");
+        assertNull(loads.join("tasks", "third"));
+
+        assertEquals(Collections.singletonList("first"), loads.complete("tasks", outdated));
+        assertNull(loads.join("tasks", "fourth"));
+        assertEquals(Arrays.asList("second", "third", "fourth"), loads.complete("tasks", current));
+        assertEquals(2, loads.getStartedCount());
+    }
+}
@@ -0,0 +1,83 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.util.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link KnownTaskIds}.
+ */
+public class KnownTaskIdsTest {
+
+    private long now;
+
+    private KnownTaskIds knownTaskIds;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        knownTaskIds = new KnownTaskIds(new Clock() {
+            @Override
+            public long elapsedMillis() {
+                return now;
+            }
+        });
+    }
+
+    @Test
+    public void nothingIsRuledOut_beforeAFullList() {
+        assertFalse(knownTaskIds.isCertainlyMissing("1"));
+    }
+
+    @Test
+    public void fullList_rulesOutUnknownIdsButNeverKnownOnes() {
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            tasks.add(new Task("T", "", "id" + i, false));
+        }
+        knownTaskIds.reset(tasks);
+        knownTaskIds.add("new");
+
+        for (Task task : tasks) {
+            assertFalse(knownTaskIds.isCertainlyMissing(task.getId()));
+        }
+        assertFalse(knownTaskIds.isCertainlyMissing("new"));
+
+        int ruledOut = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (knownTaskIds.isCertainlyMissing("unknown" + i)) {
+                ruledOut++;
+            }
+        }
+        assertTrue("ruled out " + ruledOut, ruledOut > 950);
+
+        knownTaskIds.invalidate();
+        assertFalse(knownTaskIds.isCertainlyMissing("unknown0"));
+    }
+
+    @Test
+    public void missingIds_expireAndAreForgottenOnWrite() {
+        knownTaskIds.reset(Arrays.asList(new Task("T", "", "1", false)));
+        knownTaskIds.markMissing("1");
+        knownTaskIds.markMissing("2");
+        assertTrue(knownTaskIds.isCertainlyMissing("1"));
+
+        knownTaskIds.add("1");
+        assertFalse(knownTaskIds.isCertainlyMissing("1"));
+
+        knownTaskIds.invalidate();
+        assertTrue(knownTaskIds.isCertainlyMissing("2"));
+        now += TimeUnit.MINUTES.toMillis(6);
+        assertFalse(knownTaskIds.isCertainlyMissing("2"));
+    }
+}
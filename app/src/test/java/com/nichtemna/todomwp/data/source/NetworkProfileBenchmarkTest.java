@@ -0,0 +1,126 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.remote.NetworkProfile;
+import com.nichtemna.todomwp.data.source.remote.TasksRemoteDataSource;
+import com.nichtemna.todomwp.util.SingleExecutors;
+import com.nichtemna.todomwp.util.VirtualTimeScheduler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Sweeps the {@link NetworkProfile} presets in virtual time and compares the latency percentiles
+ * of refreshing the task list through {@link TaskRepository}.
+ */
+public class NetworkProfileBenchmarkTest {
+
+    private static final int REQUEST_COUNT = 500;
+
+    private static final long REQUEST_INTERVAL_MILLIS = 1000;
+
+    @After
+    public void tearDown() {
+        TaskRepository.destroyInstance();
+    }
+
+    @Test
+    public void slowerProfiles_haveSlowerRefreshes() {
+        LatencyReport wifi = run(NetworkProfile.WIFI, REQUEST_INTERVAL_MILLIS);
+        LatencyReport cellular = run(NetworkProfile.CELLULAR, REQUEST_INTERVAL_MILLIS);
+        LatencyReport flaky = run(NetworkProfile.FLAKY, REQUEST_INTERVAL_MILLIS);
+
+        assertTrue(wifi + " vs " + cellular, wifi.percentile(50) < cellular.percentile(50));
+        assertTrue(cellular + " vs " + flaky, cellular.percentile(50) < flaky.percentile(50));
+        assertTrue(cellular + " vs " + flaky, cellular.percentile(99) < flaky.percentile(99));
+        assertTrue(wifi + " vs " + flaky, wifi.failures < flaky.failures);
+    }
+
+    @Test
+    public void defaultProfile_takesTheFixedLatency() {
+        // Spaced beyond the latency, so that each refresh has the network to itself.
+        LatencyReport report = run(NetworkProfile.DEFAULT, 6000);
+
+        assertEquals(REQUEST_COUNT, report.latencies.size());
+        assertEquals(5000, report.percentile(1));
+        assertEquals(5000, report.percentile(100));
+        assertEquals(0, report.failures);
+    }
+
+    /**
+     * Refreshes the task list every {@code intervalMillis} and records how long each refresh took
+     * to answer.
+     */
+    private static LatencyReport run(NetworkProfile profile, long intervalMillis) {
+        TaskRepository.destroyInstance();
+        final VirtualTimeScheduler scheduler = new VirtualTimeScheduler();
+        TasksRemoteDataSource remote = new TasksRemoteDataSource(new SingleExecutors(), profile,
+                scheduler, scheduler, new Random(42));
+        final TaskRepository repository = TaskRepository.getInstance(remote,
+                mock(TaskDataSource.class), scheduler, scheduler);
+        final LatencyReport report = new LatencyReport(profile);
+
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    final long startMillis = scheduler.elapsedMillis();
+                    repository.refreshTasks();
+                    repository.getTasks(new TaskDataSource.LoadTasksCallback() {
+                        @Override
+                        public void onTasksLoaded(List<Task> tasks) {
+                            report.latencies.add(scheduler.elapsedMillis() - startMillis);
+                        }
+
+                        @Override
+                        public void onDataNotAvailable() {
+                            report.failures++;
+                        }
+                    });
+                }
+            }, i * intervalMillis);
+        }
+        scheduler.runUntilIdle();
+
+        return report;
+    }
+
+    private static final class LatencyReport {
+
+        final NetworkProfile profile;
+
+        final List<Long> latencies = new ArrayList<>();
+
+        int failures;
+
+        LatencyReport(NetworkProfile profile) {
+            this.profile = profile;
+        }
+
+        /**
+         * Returns the nearest-rank percentile of the successful refreshes.
+         */
+        long percentile(int percent) {
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.size());
+            return sorted.get(Math.max(0, rank - 1));
+        }
+
+        @Override
+        public String toString() {
+            return profile + ": p50=" + percentile(50) + " p90=" + percentile(90)
+                    + " p99=" + percentile(99) + " max=" + percentile(100)
+                    + " failed=" + failures + "/" + REQUEST_COUNT;
+        }
+    }
+}
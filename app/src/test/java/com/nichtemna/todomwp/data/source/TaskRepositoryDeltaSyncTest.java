@@ -0,0 +1,316 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests of refreshing {@link TaskRepository} through a {@link TaskSyncSource}.
+ */
+public class TaskRepositoryDeltaSyncTest {
+
+    private static final Task TASK_A = new Task("A", "", "a", false);
+
+    private static final Task TASK_B = new Task("B", "", "b", false);
+
+    @Mock
+    private TaskDataSource remoteDataSource;
+
+    @Mock
+    private TaskDataSource localDataSource;
+
+    @Mock
+    private TaskSyncSource syncSource;
+
+    @Mock
+    private TaskSyncStore syncStore;
+
+    @Mock
+    private TaskDataSource.LoadTasksCallback loadTasksCallback;
+
+    @Captor
+    private ArgumentCaptor<TaskSyncStore.GetSyncTokenCallback> tokenCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskDataSource.LoadTasksCallback> localCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskSyncSource.GetChangesCallback> changesCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskSyncSource.GetCurrentSyncTokenCallback> currentTokenCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskDataSource.LoadTasksCallback> remoteCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskDelta> deltaCaptor;
+
+    @Captor
+    private ArgumentCaptor<List<Task>> tasksCaptor;
+
+    private TaskRepository repository;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        repository = TaskRepository.getInstance(remoteDataSource, localDataSource);
+        repository.setDeltaSync(syncSource, syncStore);
+    }
+
+    @After
+    public void tearDown() {
+        TaskRepository.destroyInstance();
+    }
+
+    @Test
+    public void refresh_appliesTheDeltaOnTopOfTheStoredTasks() {
+        repository.refreshTasks();
+        repository.getTasks(loadTasksCallback);
+
+        verify(syncStore).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded("1");
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+        verify(syncSource).getChangesSince(eq("1"), changesCallbackCaptor.capture());
+        Task editedB = new Task("B2", "", "b", true);
+        changesCallbackCaptor.getValue().onChangesLoaded(new TaskDelta(
+                Collections.singletonList(editedB), Collections.singletonList("a"), "2", false));
+
+        verify(loadTasksCallback).onTasksLoaded(Collections.singletonList(editedB));
+        verify(syncStore).applyDelta(deltaCaptor.capture());
+        assertEquals("2", deltaCaptor.getValue().getSyncToken());
+        assertEquals(Collections.singletonList("a"), deltaCaptor.getValue().getDeletedTaskIds());
+        verify(remoteDataSource, never()).getTasks(any(TaskDataSource.LoadTasksCallback.class));
+    }
+
+    @Test
+    public void refresh_keepsTasksWithUnconfirmedLocalWrites() {
+        repository.refreshTasks();
+        repository.getTasks(loadTasksCallback);
+        verify(syncStore).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded(null);
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onDataNotAvailable();
+        verify(syncSource).getChangesSince(eq((String) null), changesCallbackCaptor.capture());
+        changesCallbackCaptor.getValue().onChangesLoaded(new TaskDelta(
+                Arrays.asList(TASK_A, TASK_B), Collections.<String>emptyList(), "1", true));
+        Task editedA = new Task("A2", "", "a", false);
+        repository.saveTask(editedA);
+
+        repository.refreshTasks();
+        repository.getTasks(loadTasksCallback);
+        verify(syncStore, times(2)).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded("1");
+        verify(syncSource).getChangesSince(eq("1"), changesCallbackCaptor.capture());
+        changesCallbackCaptor.getValue().onChangesLoaded(new TaskDelta(
+                Collections.singletonList(new Task("A3", "", "a", false)),
+                Collections.<String>emptyList(), "2", false));
+
+        verify(loadTasksCallback, times(2)).onTasksLoaded(tasksCaptor.capture());
+        assertEquals(Arrays.asList(editedA, TASK_B), tasksCaptor.getValue());
+        verify(syncStore, times(2)).applyDelta(deltaCaptor.capture());
+        assertEquals(0, deltaCaptor.getValue().getChangedTasks().size());
+    }
+
+    @Test
+    public void afterADelta_unknownIdsAreRejectedWithoutAnyIo() {
+        TaskDataSource.GetTaskCallback getTaskCallback =
+                mock(TaskDataSource.GetTaskCallback.class);
+        repository.refreshTasks();
+        repository.getTasks(loadTasksCallback);
+        verify(syncStore).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded("1");
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+        verify(syncSource).getChangesSince(eq("1"), changesCallbackCaptor.capture());
+        changesCallbackCaptor.getValue().onChangesLoaded(new TaskDelta(
+                Collections.<Task>emptyList(), Collections.<String>emptyList(), "2", false));
+
+        repository.getTask("unknown", getTaskCallback);
+
+        verify(getTaskCallback).onDataNotAvailable();
+        verify(localDataSource, never()).getTask(anyString(),
+                any(TaskDataSource.GetTaskCallback.class));
+        verify(remoteDataSource, never()).getTask(anyString(),
+                any(TaskDataSource.GetTaskCallback.class));
+    }
+
+    @Test
+    public void fullSync_keepsTheLocalStateOfPendingWrites() {
+        repository.refreshTasks();
+        repository.getTasks(loadTasksCallback);
+        verify(syncStore).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded(null);
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onDataNotAvailable();
+        Task editedA = new Task("A2", "", "a", false);
+        Task newTask = new Task("New", "", "new", false);
+        repository.saveTask(editedA);
+        repository.saveTask(newTask);
+
+        verify(syncSource).getChangesSince(eq((String) null), changesCallbackCaptor.capture());
+        changesCallbackCaptor.getValue().onChangesLoaded(new TaskDelta(
+                Arrays.asList(TASK_A, TASK_B), Collections.<String>emptyList(), "1", true));
+
+        verify(loadTasksCallback).onTasksLoaded(tasksCaptor.capture());
+        assertEquals(Arrays.asList(editedA, TASK_B, newTask), tasksCaptor.getValue());
+        verify(syncStore).applyDelta(deltaCaptor.capture());
+        assertEquals(Arrays.asList(editedA, TASK_B, newTask),
+                deltaCaptor.getValue().getChangedTasks());
+    }
+
+    @Test
+    public void streamTasksFromTheServer_goesThroughTheSync() {
+        TaskDataSource.StreamTasksCallback streamCallback =
+                mock(TaskDataSource.StreamTasksCallback.class);
+
+        repository.refreshTasks();
+        repository.streamTasks(TasksFilterType.ALL_TASKS, 1, streamCallback);
+        verify(syncStore).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded("1");
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+        verify(syncSource).getChangesSince(eq("1"), changesCallbackCaptor.capture());
+        changesCallbackCaptor.getValue().onChangesLoaded(new TaskDelta(
+                Collections.<Task>emptyList(), Collections.singletonList("a"), "2", false));
+
+        verify(streamCallback).onTasksChunkLoaded(Collections.singletonList(TASK_B));
+        verify(streamCallback).onTasksStreamComplete();
+        verify(remoteDataSource, never()).streamTasks(any(TasksFilterType.class), anyInt(),
+                any(TaskDataSource.StreamTasksCallback.class));
+    }
+
+    @Test
+    public void repair_fetchesTheChangedTasksAndDropsTheRemovedOnes() {
+        answerHashTree(syncStore, 1, digests("a", 1, "b", 1, "c", 1));
+        answerHashTree(syncSource, 2, digests("a", 2, "c", 2, "d", 1));
+        Task editedA = new Task("A2", "", "a", false);
+        Task editedC = new Task("C2", "", "c", false);
+        Task taskD = new Task("D", "", "d", false);
+
+        repository.repairDivergence(loadTasksCallback);
+        verify(syncStore).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded("1");
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(
+                Arrays.asList(TASK_A, TASK_B, new Task("C", "", "c", false)));
+        Task pendingC = new Task("C local", "", "c", true);
+        repository.saveTask(pendingC);
+        verify(syncSource).getCurrentSyncToken(currentTokenCallbackCaptor.capture());
+        verify(syncSource, never()).getHashes(anyInt(), anyListOf(Integer.class),
+                any(TaskHashTreeSource.GetHashesCallback.class));
+        currentTokenCallbackCaptor.getValue().onCurrentSyncTokenLoaded("5");
+        verify(remoteDataSource).getTasks(eq(new HashSet<>(Arrays.asList("a", "c", "d"))),
+                remoteCallbackCaptor.capture());
+        remoteCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(editedA, editedC, taskD));
+
+        verify(loadTasksCallback).onTasksLoaded(tasksCaptor.capture());
+        assertEquals(new HashSet<>(Arrays.asList(editedA, pendingC, taskD)),
+                new HashSet<>(tasksCaptor.getValue()));
+        verify(syncStore).applyDelta(deltaCaptor.capture());
+        assertEquals("5", deltaCaptor.getValue().getSyncToken());
+        assertEquals(Collections.singletonList("b"), deltaCaptor.getValue().getDeletedTaskIds());
+        assertEquals(new HashSet<>(Arrays.asList(editedA, taskD)),
+                new HashSet<>(deltaCaptor.getValue().getChangedTasks()));
+    }
+
+    @Test
+    public void repair_whenNoChangedTaskCanBeFetched_startsOverOnce() {
+        Map<String, Long> serverDigests = digests("a", 2);
+        answerHashTree(syncStore, 1, digests("a", 1, "b", 1));
+        answerHashTree(syncSource, 2, serverDigests);
+
+        repository.repairDivergence(loadTasksCallback);
+        verify(syncStore).getSyncToken(tokenCallbackCaptor.capture());
+        tokenCallbackCaptor.getValue().onSyncTokenLoaded("1");
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+        verify(syncSource).getCurrentSyncToken(currentTokenCallbackCaptor.capture());
+        currentTokenCallbackCaptor.getValue().onCurrentSyncTokenLoaded("5");
+        verify(remoteDataSource).getTasks(eq(Collections.singleton("a")),
+                remoteCallbackCaptor.capture());
+        // Deleted on the server after the diff.
+        serverDigests.clear();
+        remoteCallbackCaptor.getValue().onDataNotAvailable();
+
+        verify(syncSource, times(2)).getCurrentSyncToken(currentTokenCallbackCaptor.capture());
+        currentTokenCallbackCaptor.getValue().onCurrentSyncTokenLoaded("6");
+
+        verify(loadTasksCallback).onTasksLoaded(Collections.<Task>emptyList());
+        verify(syncStore).applyDelta(deltaCaptor.capture());
+        assertEquals("6", deltaCaptor.getValue().getSyncToken());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                new HashSet<>(deltaCaptor.getValue().getDeletedTaskIds()));
+        verify(remoteDataSource).getTasks(anyCollectionOf(String.class),
+                any(TaskDataSource.LoadTasksCallback.class));
+    }
+
+    /**
+     * Makes {@code source} answer every node of its hash tree with {@code hash}, so that the
+     * diff walks down to the buckets, and every bucket request with {@code digests}.
+     */
+    private static void answerHashTree(TaskHashTreeSource source, final long hash,
+                                       final Map<String, Long> digests) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                long[] hashes = new long[((List<?>) invocation.getArguments()[1]).size()];
+                Arrays.fill(hashes, hash);
+                ((TaskHashTreeSource.GetHashesCallback) invocation.getArguments()[2])
+                        .onHashesLoaded(hashes);
+                return null;
+            }
+        }).when(source).getHashes(anyInt(), anyListOf(Integer.class),
+                any(TaskHashTreeSource.GetHashesCallback.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((TaskHashTreeSource.GetBucketDigestsCallback) invocation.getArguments()[1])
+                        .onBucketDigestsLoaded(new HashMap<>(digests));
+                return null;
+            }
+        }).when(source).getBucketDigests(anyListOf(Integer.class),
+                any(TaskHashTreeSource.GetBucketDigestsCallback.class));
+    }
+
+    /**
+     * Returns the digests of the given ids, passed as id and digest pairs.
+     */
+    private static Map<String, Long> digests(Object... idsAndDigests) {
+        Map<String, Long> digests = new HashMap<>();
+        for (int i = 0; i < idsAndDigests.length; i += 2) {
+            digests.put((String) idsAndDigests[i], ((Integer) idsAndDigests[i + 1]).longValue());
+        }
+        return digests;
+    }
+}
@@ -0,0 +1,145 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.remote.LatencyDistribution;
+import com.nichtemna.todomwp.data.source.remote.NetworkProfile;
+import com.nichtemna.todomwp.data.source.remote.TasksRemoteDataSource;
+import com.nichtemna.todomwp.util.SingleExecutors;
+import com.nichtemna.todomwp.util.VirtualTimeScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests of the {@link TaskRepository.LookupMode}s of single task lookups, against a
+ * simulated remote data source in virtual time.
+ */
+public class TaskRepositoryLookupTest {
+
+    private static final long REMOTE_LATENCY_MILLIS = 300;
+
+    private static final long HEDGE_DELAY_MILLIS = 100;
+
+    private static final Task TASK = new Task("Title", "Description", "id", false);
+
+    private VirtualTimeScheduler scheduler;
+
+    private TasksRemoteDataSource remoteDataSource;
+
+    @Mock
+    private TaskDataSource localDataSource;
+
+    @Mock
+    private TaskDataSource.GetTaskCallback callback;
+
+    @Captor
+    private ArgumentCaptor<TaskDataSource.GetTaskCallback> localCallbackCaptor;
+
+    private TaskRepository repository;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        scheduler = new VirtualTimeScheduler();
+        remoteDataSource = spy(new TasksRemoteDataSource(new SingleExecutors(),
+                new NetworkProfile(LatencyDistribution.fixed(REMOTE_LATENCY_MILLIS),
+                        NetworkProfile.UNLIMITED_BANDWIDTH, 0, 0, 0,
+                        NetworkProfile.UNLIMITED_CONCURRENCY),
+                scheduler, scheduler, new Random(0)));
+        remoteDataSource.saveTask(TASK);
+        scheduler.runUntilIdle();
+        repository = TaskRepository.getInstance(remoteDataSource, localDataSource, scheduler,
+                scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        TaskRepository.destroyInstance();
+    }
+
+    @Test
+    public void parallel_localMiss_isAnsweredByTheRemoteLookupAlreadyInFlight() {
+        repository.setLookupMode(TaskRepository.LookupMode.PARALLEL, 0);
+        long startMillis = scheduler.elapsedMillis();
+
+        repository.getTask(TASK.getId(), callback);
+        answerLocalLookup(null);
+
+        verify(callback, never()).onDataNotAvailable();
+        scheduler.advanceBy(REMOTE_LATENCY_MILLIS);
+        verify(callback).onTaskLoaded(TASK);
+        assertEquals(startMillis + REMOTE_LATENCY_MILLIS, scheduler.elapsedMillis());
+    }
+
+    @Test
+    public void parallel_localHit_answersOnce() {
+        repository.setLookupMode(TaskRepository.LookupMode.PARALLEL, 0);
+
+        repository.getTask(TASK.getId(), callback);
+        answerLocalLookup(TASK);
+        scheduler.runUntilIdle();
+
+        verify(callback).onTaskLoaded(TASK);
+        verify(remoteDataSource).getTask(eq(TASK.getId()), any(TaskDataSource.GetTaskCallback.class));
+    }
+
+    @Test
+    public void hedged_slowLocalLookup_asksTheRemoteAfterTheHedgeDelay() {
+        repository.setLookupMode(TaskRepository.LookupMode.HEDGED, HEDGE_DELAY_MILLIS);
+
+        repository.getTask(TASK.getId(), callback);
+
+        scheduler.advanceBy(HEDGE_DELAY_MILLIS - 1);
+        verify(remoteDataSource, never()).getTask(anyString(), any(TaskDataSource.GetTaskCallback.class));
+        scheduler.advanceBy(REMOTE_LATENCY_MILLIS);
+        verify(callback, never()).onTaskLoaded(any(Task.class));
+        scheduler.advanceBy(1);
+        verify(callback).onTaskLoaded(TASK);
+    }
+
+    @Test
+    public void hedged_localHitWithinTheDelay_neverAsksTheRemote() {
+        repository.setLookupMode(TaskRepository.LookupMode.HEDGED, HEDGE_DELAY_MILLIS);
+
+        repository.getTask(TASK.getId(), callback);
+        answerLocalLookup(TASK);
+        scheduler.runUntilIdle();
+
+        verify(callback).onTaskLoaded(TASK);
+        verify(remoteDataSource, never()).getTask(anyString(), any(TaskDataSource.GetTaskCallback.class));
+    }
+
+    @Test
+    public void hedged_missEverywhere_isNotAvailableOnce() {
+        repository.setLookupMode(TaskRepository.LookupMode.HEDGED, HEDGE_DELAY_MILLIS);
+
+        repository.getTask("missing", callback);
+        scheduler.advanceBy(HEDGE_DELAY_MILLIS);
+        answerLocalLookup(null);
+        verify(callback, never()).onDataNotAvailable();
+        scheduler.runUntilIdle();
+
+        verify(callback).onDataNotAvailable();
+        verify(callback, never()).onTaskLoaded(any(Task.class));
+    }
+
+    private void answerLocalLookup(Task task) {
+        verify(localDataSource).getTask(anyString(), localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTaskLoaded(task);
+    }
+}
@@ -0,0 +1,426 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.VirtualTimeScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests of how {@link TaskRepository} reads and refreshes through its data sources.
+ */
+public class TaskRepositoryTest {
+
+    private static final Task TASK_A = new Task("A", "", "a", false);
+
+    private static final Task TASK_B = new Task("B", "", "b", false);
+
+    @Mock
+    private TaskDataSource remoteDataSource;
+
+    @Mock
+    private TaskDataSource localDataSource;
+
+    @Mock
+    private TaskDataSource.LoadTasksCallback loadTasksCallback;
+
+    @Captor
+    private ArgumentCaptor<TaskDataSource.LoadTasksCallback> localCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskDataSource.LoadTasksCallback> remoteCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskDataSource.GetTaskCallback> getTaskCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<List<Task>> tasksCaptor;
+
+    private VirtualTimeScheduler scheduler;
+
+    private TaskRepository repository;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        scheduler = new VirtualTimeScheduler();
+        repository = TaskRepository.getInstance(remoteDataSource, localDataSource, scheduler,
+                scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        TaskRepository.destroyInstance();
+    }
+
+    @Test
+    public void refresh_diffsAgainstTheLoadedCache_withoutReadingTheLocalTable() {
+        repository.getTasks(loadTasksCallback);
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+
+        repository.refreshTasks();
+        repository.getTasks(loadTasksCallback);
+        verify(remoteDataSource).getTasks(remoteCallbackCaptor.capture());
+        Task editedB = new Task("B2", "", "b", false);
+        remoteCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, editedB));
+
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        verify(localDataSource).saveTasks(Collections.singletonList(editedB));
+        verify(localDataSource, never()).deleteTasks(anyCollectionOf(String.class));
+        assertEquals(1, repository.getLastMergeResult().getUnchangedCount());
+    }
+
+    @Test
+    public void expiredTasks_areServedAtOnceAndReloadedInTheBackground() {
+        repository.setCachePolicy(new CachePolicy(1000, 10000));
+        loadFromLocal(TASK_A, TASK_B);
+        scheduler.advanceBy(1500);
+
+        repository.getTasks(loadTasksCallback);
+
+        verify(loadTasksCallback, times(2)).onTasksLoaded(anyListOf(Task.class));
+        Task editedA = new Task("A2", "", "a", false);
+        answerRemoteGetTask("a", editedA);
+        answerRemoteGetTask("b", TASK_B);
+        verify(localDataSource).saveTasks(Collections.singletonList(editedA));
+        assertEquals(editedA, repository.cachedTasks.get("a"));
+        assertFalse(repository.cachedTasks.isExpired("a"));
+    }
+
+    @Test
+    public void tasksPastTheMaxStaleness_areReloadedBeforeTheyAreServed() {
+        repository.setCachePolicy(new CachePolicy(1000, 1000));
+        loadFromLocal(TASK_A, TASK_B);
+        scheduler.advanceBy(2500);
+
+        repository.getTasks(loadTasksCallback);
+
+        verify(loadTasksCallback).onTasksLoaded(anyListOf(Task.class));
+        Task editedA = new Task("A2", "", "a", false);
+        answerRemoteGetTask("a", editedA);
+        answerRemoteGetTask("b", TASK_B);
+        verify(loadTasksCallback, times(2)).onTasksLoaded(tasksCaptor.capture());
+        assertEquals(Arrays.asList(editedA, TASK_B), new ArrayList<>(tasksCaptor.getValue()));
+    }
+
+    @Test
+    public void localWriteDuringTheReload_winsOverTheReloadedTask() {
+        repository.setCachePolicy(new CachePolicy(1000, 10000));
+        loadFromLocal(TASK_A, TASK_B);
+        scheduler.advanceBy(1500);
+        repository.refreshExpiredTasks();
+
+        repository.completeTask(TASK_A);
+        answerRemoteGetTask("a", new Task("A2", "", "a", false));
+        answerRemoteGetTask("b", TASK_B);
+
+        Task cachedA = repository.cachedTasks.get("a");
+        assertEquals("A", cachedA.getTitle());
+        assertTrue(cachedA.isCompleted());
+    }
+
+    @Test
+    public void refreshExpiredTasks_reloadsOnlyTheExpiredTasks() {
+        repository.setCachePolicy(new CachePolicy(1000, 10000));
+        loadFromLocal(TASK_A, TASK_B);
+        scheduler.advanceBy(500);
+        repository.saveTask(new Task("B2", "", "b", false));
+        scheduler.advanceBy(700);
+
+        repository.refreshExpiredTasks();
+
+        verify(remoteDataSource).getTask(eq("a"), any(TaskDataSource.GetTaskCallback.class));
+        verify(remoteDataSource, never()).getTask(eq("b"), any(TaskDataSource.GetTaskCallback.class));
+    }
+
+    @Test
+    public void concurrentGetTasks_shareOneLocalQuery() {
+        TaskDataSource.LoadTasksCallback otherCallback = mock(TaskDataSource.LoadTasksCallback.class);
+
+        repository.getTasks(loadTasksCallback);
+        repository.getTasks(otherCallback);
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+
+        verify(loadTasksCallback).onTasksLoaded(anyListOf(Task.class));
+        verify(otherCallback).onTasksLoaded(anyListOf(Task.class));
+        assertEquals(1, repository.getStartedLoadCount());
+        assertEquals(1, repository.getDeduplicatedLoadCount());
+    }
+
+    @Test
+    public void concurrentGetTask_shareOneLookup() {
+        TaskDataSource.GetTaskCallback callback = mock(TaskDataSource.GetTaskCallback.class);
+        TaskDataSource.GetTaskCallback otherCallback = mock(TaskDataSource.GetTaskCallback.class);
+
+        repository.getTask("a", callback);
+        repository.getTask("a", otherCallback);
+        verify(localDataSource).getTask(eq("a"), getTaskCallbackCaptor.capture());
+        getTaskCallbackCaptor.getValue().onTaskLoaded(TASK_A);
+
+        verify(callback).onTaskLoaded(TASK_A);
+        verify(otherCallback).onTaskLoaded(TASK_A);
+        verify(remoteDataSource, never()).getTask(eq("a"), any(TaskDataSource.GetTaskCallback.class));
+        assertEquals(1, repository.getStartedLoadCount());
+        assertEquals(1, repository.getDeduplicatedLoadCount());
+    }
+
+    @Test
+    public void getTasksAfterRefresh_startsANewLoad_insteadOfJoiningTheOneInFlight() {
+        TaskDataSource.LoadTasksCallback otherCallback = mock(TaskDataSource.LoadTasksCallback.class);
+        repository.refreshTasks();
+        repository.getTasks(loadTasksCallback);
+
+        repository.refreshTasks();
+        repository.getTasks(otherCallback);
+
+        verify(remoteDataSource, times(2)).getTasks(remoteCallbackCaptor.capture());
+        remoteCallbackCaptor.getAllValues().get(0).onTasksLoaded(Collections.singletonList(TASK_A));
+        verify(loadTasksCallback).onTasksLoaded(anyListOf(Task.class));
+        verify(otherCallback, never()).onTasksLoaded(anyListOf(Task.class));
+        remoteCallbackCaptor.getAllValues().get(1).onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+        verify(otherCallback).onTasksLoaded(tasksCaptor.capture());
+        assertEquals(Arrays.asList(TASK_A, TASK_B), new ArrayList<>(tasksCaptor.getValue()));
+        assertEquals(2, repository.getStartedLoadCount());
+        assertEquals(0, repository.getDeduplicatedLoadCount());
+    }
+
+    @Test
+    public void destroyInstance_writesThePendingWrites() {
+        repository.saveTask(TASK_A);
+        verify(localDataSource, never()).saveTasks(anyCollectionOf(Task.class));
+
+        TaskRepository.destroyInstance();
+
+        verify(localDataSource).saveTasks(Collections.singletonList(TASK_A));
+        verify(remoteDataSource).saveTasks(Collections.singletonList(TASK_A));
+    }
+
+    @Test
+    public void failedRemoteLookup_doesNotRuleTheIdOut_butAConfirmedMissDoes() {
+        TaskDataSource.GetTaskCallback callback = mock(TaskDataSource.GetTaskCallback.class);
+
+        repository.getTask("c", callback);
+        verify(localDataSource).getTask(eq("c"), getTaskCallbackCaptor.capture());
+        getTaskCallbackCaptor.getValue().onDataNotAvailable();
+        verify(remoteDataSource).getTask(eq("c"), getTaskCallbackCaptor.capture());
+        getTaskCallbackCaptor.getValue().onDataNotAvailable();
+
+        repository.getTask("c", callback);
+        verify(localDataSource, times(2)).getTask(eq("c"), getTaskCallbackCaptor.capture());
+        getTaskCallbackCaptor.getValue().onDataNotAvailable();
+        verify(remoteDataSource, times(2)).getTask(eq("c"), getTaskCallbackCaptor.capture());
+        getTaskCallbackCaptor.getValue().onTaskLoaded(null);
+
+        repository.getTask("c", callback);
+        verify(localDataSource, times(2)).getTask(eq("c"), any(TaskDataSource.GetTaskCallback.class));
+        verify(callback, times(3)).onDataNotAvailable();
+    }
+
+    @Test
+    public void localTaskList_doesNotRuleOtherIdsOut() {
+        loadFromLocal(TASK_A, TASK_B);
+
+        repository.getTask("c", mock(TaskDataSource.GetTaskCallback.class));
+
+        verify(localDataSource).getTask(eq("c"), any(TaskDataSource.GetTaskCallback.class));
+    }
+
+    @Test
+    public void staleWhileRevalidate_deliversTheStaleTasksThenTheFreshOnes() {
+        TaskRepository.RevalidatingLoadTasksCallback callback =
+                mock(TaskRepository.RevalidatingLoadTasksCallback.class);
+        loadFromLocal(TASK_A, TASK_B);
+        repository.refreshTasks();
+
+        repository.getTasks(TasksFilterType.ALL_TASKS,
+                TaskRepository.RefreshMode.STALE_WHILE_REVALIDATE, callback);
+        verify(remoteDataSource).getTasks(remoteCallbackCaptor.capture());
+        Task editedB = new Task("B2", "", "b", false);
+        remoteCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(TASK_A, editedB));
+
+        InOrder inOrder = inOrder(callback);
+        inOrder.verify(callback).onStaleTasksLoaded(tasksCaptor.capture());
+        assertEquals(Arrays.asList(TASK_A, TASK_B), new ArrayList<>(tasksCaptor.getValue()));
+        inOrder.verify(callback).onTasksLoaded(tasksCaptor.capture());
+        assertEquals(Arrays.asList(TASK_A, editedB), new ArrayList<>(tasksCaptor.getValue()));
+    }
+
+    @Test
+    public void staleWhileRevalidate_dropsTheStaleTasksOnceTheFreshOnesArrived() {
+        TaskRepository.RevalidatingLoadTasksCallback callback =
+                mock(TaskRepository.RevalidatingLoadTasksCallback.class);
+        repository.refreshTasks();
+
+        repository.getTasks(TasksFilterType.ALL_TASKS,
+                TaskRepository.RefreshMode.STALE_WHILE_REVALIDATE, callback);
+        verify(localDataSource).getTasks(eq(TasksFilterType.ALL_TASKS),
+                localCallbackCaptor.capture());
+        TaskDataSource.LoadTasksCallback staleLoad = localCallbackCaptor.getValue();
+        verify(remoteDataSource).getTasks(remoteCallbackCaptor.capture());
+        remoteCallbackCaptor.getValue().onTasksLoaded(Collections.singletonList(TASK_A));
+        staleLoad.onTasksLoaded(Arrays.asList(TASK_A, TASK_B));
+
+        verify(callback).onTasksLoaded(anyListOf(Task.class));
+        verify(callback, never()).onStaleTasksLoaded(anyListOf(Task.class));
+    }
+
+    @Test
+    public void blockingRefresh_answersOnlyWithTheFreshTasks() {
+        TaskRepository.RevalidatingLoadTasksCallback callback =
+                mock(TaskRepository.RevalidatingLoadTasksCallback.class);
+        loadFromLocal(TASK_A, TASK_B);
+        repository.refreshTasks();
+
+        repository.getTasks(TasksFilterType.ALL_TASKS, TaskRepository.RefreshMode.BLOCKING,
+                callback);
+        verify(callback, never()).onTasksLoaded(anyListOf(Task.class));
+        verify(remoteDataSource).getTasks(remoteCallbackCaptor.capture());
+        remoteCallbackCaptor.getValue().onTasksLoaded(Collections.singletonList(TASK_A));
+
+        verify(callback).onTasksLoaded(Collections.singletonList(TASK_A));
+        verify(callback, never()).onStaleTasksLoaded(anyListOf(Task.class));
+    }
+
+    @Test
+    public void taskCounts_followEveryMutation_withoutCountingAgain() {
+        List<Task> tasks = new ArrayList<>(Arrays.asList(TASK_A, TASK_B,
+                new Task("C", "", "c", true), new Task("D", "", "d", false)));
+        loadPageFromLocal(tasks);
+        answerLocalGetTaskCounts(tasks);
+
+        replace(tasks, new Task("A2", "", "a", false));
+        repository.saveTask(new Task("A2", "", "a", false));
+        assertCountsMatch(tasks);
+
+        replace(tasks, new Task("A2", "", "a", true));
+        repository.completeTask("a");
+        assertCountsMatch(tasks);
+
+        replace(tasks, new Task("C", "", "c", false));
+        repository.activateTask("c");
+        assertCountsMatch(tasks);
+
+        replace(tasks, new Task("B", "", "b", true));
+        replace(tasks, new Task("D", "", "d", true));
+        repository.completeTasks(Arrays.asList("b", "d"));
+        assertCountsMatch(tasks);
+
+        replace(tasks, new Task("D", "", "d", false));
+        repository.activateTasks(Collections.singletonList("d"));
+        assertCountsMatch(tasks);
+
+        tasks.remove(1);
+        repository.deleteTask("b");
+        assertCountsMatch(tasks);
+
+        tasks.remove(0);
+        repository.clearCompletedTasks();
+        assertCountsMatch(tasks);
+
+        verify(localDataSource).getTaskCounts(any(TaskDataSource.GetTaskCountsCallback.class));
+    }
+
+    @Test
+    public void completingAnUncachedTask_countsAgainOnce() {
+        List<Task> tasks = new ArrayList<>(Arrays.asList(TASK_A, TASK_B));
+        loadPageFromLocal(tasks);
+        answerLocalGetTaskCounts(tasks);
+
+        repository.completeTasks(Arrays.asList("a", "uncached"));
+        replace(tasks, new Task("A", "", "a", true));
+        tasks.add(new Task("Uncached", "", "uncached", true));
+
+        answerLocalGetTaskCounts(tasks);
+        assertCountsMatch(tasks);
+        verify(localDataSource, times(2)).getTaskCounts(
+                any(TaskDataSource.GetTaskCountsCallback.class));
+    }
+
+    private void loadPageFromLocal(List<Task> tasks) {
+        ArgumentCaptor<TaskDataSource.LoadTaskPageCallback> pageCallbackCaptor =
+                ArgumentCaptor.forClass(TaskDataSource.LoadTaskPageCallback.class);
+        repository.getTaskPage(TasksFilterType.ALL_TASKS, tasks.size(), null,
+                mock(TaskDataSource.LoadTaskPageCallback.class));
+        verify(localDataSource).getTaskPage(eq(TasksFilterType.ALL_TASKS), eq(tasks.size()),
+                eq((String) null), pageCallbackCaptor.capture());
+        pageCallbackCaptor.getValue().onTaskPageLoaded(new TaskPage(new ArrayList<>(tasks), null));
+        assertFalse(repository.cachedTasks.isLoaded());
+    }
+
+    /**
+     * Requests the counts, which the repository can't know yet, and answers the count query of
+     * the local data source with a count of {@code tasks}.
+     */
+    private void answerLocalGetTaskCounts(List<Task> tasks) {
+        ArgumentCaptor<TaskDataSource.GetTaskCountsCallback> countsCallbackCaptor =
+                ArgumentCaptor.forClass(TaskDataSource.GetTaskCountsCallback.class);
+        repository.getTaskCounts(mock(TaskDataSource.GetTaskCountsCallback.class));
+        verify(localDataSource, atLeastOnce()).getTaskCounts(countsCallbackCaptor.capture());
+        countsCallbackCaptor.getValue().onTaskCountsLoaded(countActive(tasks),
+                tasks.size() - countActive(tasks));
+    }
+
+    private void assertCountsMatch(List<Task> tasks) {
+        TaskDataSource.GetTaskCountsCallback callback =
+                mock(TaskDataSource.GetTaskCountsCallback.class);
+        repository.getTaskCounts(callback);
+        verify(callback).onTaskCountsLoaded(countActive(tasks), tasks.size() - countActive(tasks));
+    }
+
+    private static int countActive(List<Task> tasks) {
+        int activeCount = 0;
+        for (Task task : tasks) {
+            if (task.isActive()) {
+                activeCount++;
+            }
+        }
+        return activeCount;
+    }
+
+    private static void replace(List<Task> tasks, Task task) {
+        for (int i = 0; i < tasks.size(); i++) {
+            if (tasks.get(i).getId().equals(task.getId())) {
+                tasks.set(i, task);
+            }
+        }
+    }
+
+    private void loadFromLocal(Task... tasks) {
+        repository.getTasks(loadTasksCallback);
+        verify(localDataSource).getTasks(localCallbackCaptor.capture());
+        localCallbackCaptor.getValue().onTasksLoaded(Arrays.asList(tasks));
+    }
+
+    private void answerRemoteGetTask(String taskId, Task task) {
+        verify(remoteDataSource).getTask(eq(taskId), getTaskCallbackCaptor.capture());
+        getTaskCallbackCaptor.getValue().onTaskLoaded(task);
+    }
+}
@@ -0,0 +1,70 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TaskWriteTracker}.
+ */
+public class TaskWriteTrackerTest {
+
+    private static final Task ACTIVE = new Task("Title", "Description", "1", false);
+
+    private static final Task COMPLETED = new Task("Title", "Description", "1", true);
+
+    private static final Task EDITED = new Task("Edited", "Description", "1", false);
+
+    private TaskWriteTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new TaskWriteTracker();
+    }
+
+    @Test
+    public void confirmingTheLatestWrite_endsThePendingState() {
+        tracker.onLocalWrite("1", ACTIVE);
+        assertTrue(tracker.isPending("1"));
+
+        tracker.onConfirmed(TaskMutation.save(COMPLETED), COMPLETED);
+
+        assertFalse(tracker.isPending("1"));
+    }
+
+    @Test
+    public void rejectingTheLatestWrite_rollsBackToTheLastConfirmedState() {
+        tracker.onLocalWrite("1", ACTIVE);
+        tracker.onLocalWrite("1", COMPLETED);
+
+        // The first change reached the server, the second one didn't.
+        tracker.onConfirmed(TaskMutation.save(COMPLETED), EDITED);
+        TaskWriteTracker.Rollback rollback = tracker.onRejected(TaskMutation.save(EDITED), EDITED);
+
+        assertEquals(COMPLETED, rollback.getConfirmedTask());
+        assertFalse(tracker.isPending("1"));
+    }
+
+    @Test
+    public void rejectingAnOlderWrite_keepsTheLaterOnePending() {
+        tracker.onLocalWrite("1", ACTIVE);
+
+        assertNull(tracker.onRejected(TaskMutation.save(COMPLETED), EDITED));
+        assertTrue(tracker.isPending("1"));
+    }
+
+    @Test
+    public void rejectingANewTask_rollsBackToNoTask() {
+        tracker.onLocalWrite("1", null);
+
+        TaskWriteTracker.Rollback rollback = tracker.onRejected(TaskMutation.save(ACTIVE), ACTIVE);
+
+        assertNull(rollback.getConfirmedTask());
+    }
+}
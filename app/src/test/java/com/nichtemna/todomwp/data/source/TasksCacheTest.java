@@ -0,0 +1,251 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.Clock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TasksCache}, including a stress test with concurrent readers and writers.
+ */
+public class TasksCacheTest {
+
+    private static final int PAIRS = 50;
+
+    private static final int READERS = 8;
+
+    private static final int WRITERS = 4;
+
+    private static final int WRITES_PER_WRITER = 2000;
+
+    private TasksCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new TasksCache();
+    }
+
+    @Test
+    public void put_keepsInsertionOrder() {
+        cache.put(new Task("A", "", "1", false));
+        cache.put(new Task("B", "", "2", false));
+        cache.put(new Task("C", "", "3", false));
+        cache.put(new Task("B2", "", "2", true));
+
+        List<String> ids = new ArrayList<>();
+        for (Task task : cache.getTasks()) {
+            ids.add(task.getId());
+        }
+        assertEquals(Arrays.asList("1", "2", "3"), ids);
+        assertTrue(cache.get("2").isCompleted());
+    }
+
+    @Test
+    public void isLoaded_onlyAfterReplaceAll() {
+        cache.put(new Task("A", "", "1", false));
+        assertFalse(cache.isLoaded());
+
+        cache.replaceAll(new ArrayList<Task>());
+        assertTrue(cache.isLoaded());
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void removeCompleted_returnsRemovedIds() {
+        cache.replaceAll(Arrays.asList(
+                new Task("A", "", "1", true),
+                new Task("B", "", "2", false),
+                new Task("C", "", "3", true)));
+
+        assertEquals(Arrays.asList("1", "3"), cache.removeCompleted());
+        assertNull(cache.get("1"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void filterIndexes_followCompletionChanges() {
+        cache.replaceAll(Arrays.asList(
+                new Task("A", "", "1", false),
+                new Task("B", "", "2", true),
+                new Task("C", "", "3", false)));
+
+        cache.put(new Task("A", "", "1", true));
+        cache.remove("3");
+
+        assertTrue(cache.getTasks(TasksFilterType.ACTIVE_TASKS).isEmpty());
+        List<Task> completed = cache.getTasks(TasksFilterType.COMPLETED_TASKS);
+        assertEquals(2, completed.size());
+        assertEquals("1", completed.get(0).getId());
+        assertEquals("2", completed.get(1).getId());
+        assertEquals(0, cache.getActiveCount());
+        assertEquals(2, cache.getCompletedCount());
+    }
+
+    @Test
+    public void snapshot_isNotAffectedByLaterWrites() {
+        cache.replaceAll(Arrays.asList(new Task("A", "", "1", false)));
+        List<Task> snapshot = cache.getTasks();
+
+        cache.put(new Task("B", "", "2", false));
+        cache.remove("1");
+
+        assertEquals(1, snapshot.size());
+        assertEquals("1", snapshot.get(0).getId());
+    }
+
+    @Test
+    public void expiredTaskIds_areOnlyThePastTtlOnes() {
+        FakeClock clock = new FakeClock();
+        TasksCache expiringCache = new TasksCache(clock);
+        expiringCache.setPolicy(new CachePolicy(1000, 500));
+
+        expiringCache.put(new Task("A", "", "1", false));
+        clock.now = 400;
+        expiringCache.put(new Task("B", "", "2", false));
+        clock.now = 1200;
+
+        assertEquals(Arrays.asList("1"), expiringCache.getExpiredTaskIds());
+        assertTrue(expiringCache.isExpired("1"));
+        assertFalse(expiringCache.isExpired("2"));
+        assertFalse(expiringCache.hasTooStaleTasks());
+
+        clock.now = 1600;
+        assertEquals(Arrays.asList("1", "2"), expiringCache.getExpiredTaskIds());
+        assertTrue(expiringCache.isTooStale("1"));
+        assertFalse(expiringCache.isTooStale("2"));
+        assertTrue(expiringCache.hasTooStaleTasks());
+
+        // Writing a task again stamps it with a new expiry time.
+        expiringCache.put(new Task("A2", "", "1", false));
+        assertEquals(Arrays.asList("2"), expiringCache.getExpiredTaskIds());
+        assertFalse(expiringCache.hasTooStaleTasks());
+    }
+
+    @Test
+    public void putIfUnchanged_rejectsTasksWrittenSinceTheStamp() {
+        cache.put(new Task("A", "", "1", false));
+        long version = cache.getStamp("1").getVersion();
+
+        cache.put(new Task("A local", "", "1", false));
+        assertFalse(cache.putIfUnchanged(new Task("A remote", "", "1", false), version));
+        assertEquals("A local", cache.get("1").getTitle());
+
+        long newVersion = cache.getStamp("1").getVersion();
+        assertTrue(newVersion > version);
+        assertTrue(cache.putIfUnchanged(new Task("A remote", "", "1", false), newVersion));
+        assertEquals("A remote", cache.get("1").getTitle());
+        assertFalse(cache.removeIfUnchanged("1", newVersion));
+    }
+
+    @Test
+    public void neverExpirePolicy_expiresNothing() {
+        cache.put(new Task("A", "", "1", false));
+
+        assertTrue(cache.getExpiredTaskIds().isEmpty());
+        assertEquals(CachePolicy.NO_EXPIRY, cache.getStamp("1").getExpiresAtMillis());
+    }
+
+    /**
+     * Writers always update both tasks of a pair in one {@link TasksCache#putAll} call, giving
+     * them the same generation in their title. Readers check that every snapshot they see has
+     * matching generations for all pairs and that the insertion order never changes.
+     */
+    @Test
+    public void concurrentReadersAndWriters_neverSeeTornState() throws Exception {
+        List<Task> initial = new ArrayList<>();
+        for (int i = 0; i < PAIRS; i++) {
+            initial.add(new Task("0", "", "a" + i, false));
+            initial.add(new Task("0", "", "b" + i, false));
+        }
+        cache.replaceAll(initial);
+
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + WRITERS);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<?>> writers = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startSignal.await();
+                    for (int n = 1; n <= WRITES_PER_WRITER; n++) {
+                        int pair = (writer + n) % PAIRS;
+                        String generation = writer + "-" + n;
+                        boolean completed = n % 2 == 0;
+                        cache.putAll(Arrays.asList(
+                                new Task(generation, "", "a" + pair, completed),
+                                new Task(generation, "", "b" + pair, completed)));
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    startSignal.await();
+                    do {
+                        List<Task> snapshot = cache.getTasks();
+                        assertEquals(PAIRS * 2, snapshot.size());
+
+                        Iterator<Task> it = snapshot.iterator();
+                        for (int i = 0; i < PAIRS; i++) {
+                            Task a = it.next();
+                            Task b = it.next();
+                            assertEquals("a" + i, a.getId());
+                            assertEquals("b" + i, b.getId());
+                            assertEquals(a.getTitle(), b.getTitle());
+                            assertEquals(a.isCompleted(), b.isCompleted());
+                        }
+                    } while (writing.get());
+                    return null;
+                }
+            }));
+        }
+
+        startSignal.countDown();
+        for (Future<?> future : writers) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        writing.set(false);
+        for (Future<?> future : readers) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(PAIRS * 2, cache.size());
+    }
+
+    private static final class FakeClock implements Clock {
+        long now;
+
+        @Override
+        public long elapsedMillis() {
+            return now;
+        }
+    }
+}
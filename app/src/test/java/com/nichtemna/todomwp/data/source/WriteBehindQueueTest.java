@@ -0,0 +1,102 @@
+package com.nichtemna.todomwp.data.source;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.util.VirtualTimeScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Unit tests for {@link WriteBehindQueue}.
+ */
+public class WriteBehindQueueTest {
+
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+
+    @Mock
+    private TaskDataSource remoteDataSource;
+
+    @Mock
+    private TaskDataSource localDataSource;
+
+    private VirtualTimeScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        scheduler = new VirtualTimeScheduler();
+    }
+
+    @Test
+    public void flush_writesOnlyTheLastChangeOfEveryTask() {
+        WriteBehindQueue queue = newQueue(10);
+        Task active = new Task("Title", "Description", "1", false);
+        Task completed = new Task("Title", "Description", "1", true);
+
+        queue.save(completed);
+        queue.save(active);
+        queue.save(completed);
+        queue.delete("2");
+        verifyZeroInteractions(remoteDataSource, localDataSource);
+
+        queue.flush();
+
+        InOrder inOrder = inOrder(remoteDataSource, localDataSource);
+        inOrder.verify(remoteDataSource).deleteTasks(Collections.singletonList("2"));
+        inOrder.verify(remoteDataSource).saveTasks(Collections.singletonList(completed));
+        inOrder.verify(localDataSource).deleteTasks(Collections.singletonList("2"));
+        inOrder.verify(localDataSource).saveTasks(Collections.singletonList(completed));
+        assertEquals(2, queue.getCollapsedCount());
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void save_flushesOnceTheSizeThresholdIsReached() {
+        WriteBehindQueue queue = newQueue(2);
+        Task first = new Task("First", "", "1", false);
+        Task second = new Task("Second", "", "2", false);
+
+        queue.save(first);
+        verify(localDataSource, never()).saveTasks(anyCollectionOf(Task.class));
+
+        queue.save(second);
+        verify(localDataSource).saveTasks(Arrays.asList(first, second));
+        assertEquals(1, queue.getFlushedBatchCount());
+    }
+
+    @Test
+    public void timer_flushesTheDelayAfterTheFirstPendingWrite() {
+        WriteBehindQueue queue = newQueue(10);
+        Task first = new Task("First", "", "1", false);
+        Task second = new Task("Second", "", "2", false);
+
+        queue.save(first);
+        queue.flush();
+        scheduler.advanceBy(FLUSH_DELAY_MILLIS / 2);
+        queue.save(second);
+
+        // The timer of the first batch doesn't flush the second one early.
+        scheduler.advanceBy(FLUSH_DELAY_MILLIS - 1);
+        verify(localDataSource, never()).saveTasks(Collections.singletonList(second));
+        scheduler.advanceBy(1);
+        verify(localDataSource).saveTasks(Collections.singletonList(second));
+    }
+
+    private WriteBehindQueue newQueue(int maxPendingWrites) {
+        return new WriteBehindQueue(Arrays.asList(remoteDataSource, localDataSource),
+                maxPendingWrites, FLUSH_DELAY_MILLIS, scheduler);
+    }
+}
@@ -0,0 +1,181 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import android.support.annotation.NonNull;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.TaskMutationTarget;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.SingleExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Integration tests of {@link HttpTasksDataSource} against {@link LoopbackTaskServer}.
+ */
+public class HttpTasksDataSourceTest {
+
+    private static final Task TASK = new Task("Title \"quoted\"", "Line\nbreak \u00e9", "1", false);
+
+    private LoopbackTaskServer server;
+
+    private HttpTasksDataSource dataSource;
+
+    @Mock
+    private TaskDataSource.LoadTasksCallback loadTasksCallback;
+
+    @Mock
+    private TaskDataSource.GetTaskCallback getTaskCallback;
+
+    @Mock
+    private TaskDataSource.StreamTasksCallback streamCallback;
+
+    @Mock
+    private TaskMutationTarget.ApplyMutationsCallback applyCallback;
+
+    @Captor
+    private ArgumentCaptor<List<Task>> tasksCaptor;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        server = LoopbackTaskServer.start();
+        // Requests run synchronously on the test thread.
+        dataSource = new HttpTasksDataSource(server.getBaseUrl(), new SingleExecutors());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void applyMutations_reportsRejectedAndAppliesTheRest() {
+        TaskMutation emptySave = TaskMutation.save(new Task("", "", "2", false));
+
+        dataSource.applyMutations(Arrays.asList(TaskMutation.save(TASK), emptySave,
+                TaskMutation.complete(TASK.getId())), applyCallback);
+
+        verify(applyCallback).onMutationsApplied(Collections.singletonList(emptySave));
+        assertEquals(Collections.singletonList(
+                new Task(TASK.getTitle(), TASK.getDescription(), TASK.getId(), true)),
+                server.getTasks());
+    }
+
+    @Test
+    public void getTask_roundTripsTheTask() {
+        dataSource.saveTask(TASK);
+
+        dataSource.getTask(TASK.getId(), getTaskCallback);
+
+        verify(getTaskCallback).onTaskLoaded(TASK);
+    }
+
+    @Test
+    public void getTask_unknownId_isLoadedAsNull() {
+        dataSource.getTask("missing", getTaskCallback);
+
+        verify(getTaskCallback).onTaskLoaded(null);
+    }
+
+    @Test
+    public void missingListEndpoint_isNotAvailable() throws Exception {
+        HttpTasksDataSource misrouted = new HttpTasksDataSource(
+                new URL(server.getBaseUrl(), "missing/"), new SingleExecutors());
+
+        misrouted.getTasks(loadTasksCallback);
+
+        verify(loadTasksCallback).onDataNotAvailable();
+    }
+
+    @Test
+    public void largeBatches_areGzippedAndFetchedInOrder() {
+        List<Task> tasks = new ArrayList<>();
+        List<String> taskIds = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            tasks.add(new Task("Task " + i, "Description " + i, String.valueOf(i), i % 2 == 0));
+            taskIds.add(String.valueOf(199 - i));
+        }
+        dataSource.saveTasks(tasks);
+
+        dataSource.getTasks(TasksFilterType.COMPLETED_TASKS, loadTasksCallback);
+        dataSource.getTasks(taskIds, loadTasksCallback);
+
+        verify(loadTasksCallback, times(2)).onTasksLoaded(tasksCaptor.capture());
+        assertEquals(100, tasksCaptor.getAllValues().get(0).size());
+        List<Task> reversed = new ArrayList<>(tasks);
+        Collections.reverse(reversed);
+        assertEquals(reversed, tasksCaptor.getAllValues().get(1));
+    }
+
+    @Test
+    public void streamTasks_deliversTheResponseInChunks() {
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            tasks.add(new Task("Task " + i, "Description " + i, String.valueOf(i), false));
+        }
+        dataSource.saveTasks(tasks);
+
+        dataSource.streamTasks(TasksFilterType.ALL_TASKS, 5, streamCallback);
+
+        InOrder inOrder = inOrder(streamCallback);
+        inOrder.verify(streamCallback).onTasksChunkLoaded(tasks.subList(0, 5));
+        inOrder.verify(streamCallback).onTasksChunkLoaded(tasks.subList(5, 10));
+        inOrder.verify(streamCallback).onTasksChunkLoaded(tasks.subList(10, 12));
+        inOrder.verify(streamCallback).onTasksStreamComplete();
+    }
+
+    @Test
+    public void decodeTasks_handsOverTheChunksParsedBeforeABrokenStream() throws Exception {
+        String json = TaskJson.encodeTasks(Arrays.asList(TASK, TASK, TASK));
+        final List<List<Task>> chunks = new ArrayList<>();
+
+        try {
+            TaskJson.decodeTasks(new StringReader(json.substring(0, json.length() - 10)), 2,
+                    new TaskJson.TaskChunkCallback() {
+                        @Override
+                        public void onTasksChunkDecoded(@NonNull List<Task> tasks) {
+                            chunks.add(tasks);
+                        }
+                    });
+            fail("Truncated JSON was accepted");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(Collections.singletonList(Arrays.asList(TASK, TASK)), chunks);
+    }
+
+    @Test
+    public void consecutiveRequests_reuseTheConnection() {
+        for (int i = 0; i < 10; i++) {
+            dataSource.getTask(TASK.getId(), getTaskCallback);
+            dataSource.getTasks(loadTasksCallback);
+        }
+
+        assertEquals(20, server.getRequestCount());
+        assertTrue(server.getConnectionCount() < 20);
+    }
+}
@@ -0,0 +1,255 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import com.google.common.base.Charsets;
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.TaskPage;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stand-in backend for {@link HttpTasksDataSource}, served by the JDK's HTTP server on the
+ * loopback interface, so integration and load tests run offline but still pay for sockets,
+ * JSON and gzip.
+ * <p>
+ * It validates saves like the add/edit screen does and rejects empty tasks.
+ */
+public class LoopbackTaskServer {
+
+    private static final int THREAD_COUNT = 4;
+
+    private final Map<String, Task> tasks = new LinkedHashMap<>();
+
+    private final Set<InetSocketAddress> clientAddresses = new HashSet<>();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private int requestCount;
+
+    public static LoopbackTaskServer start() throws IOException {
+        return new LoopbackTaskServer();
+    }
+
+    private LoopbackTaskServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    onRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public URL getBaseUrl() throws IOException {
+        InetSocketAddress address = server.getAddress();
+        return new URL("http", address.getHostString(), address.getPort(), "/");
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Returns how many connections the clients opened; less than the request count once
+     * connections are reused.
+     */
+    public synchronized int getConnectionCount() {
+        return clientAddresses.size();
+    }
+
+    public synchronized List<Task> getTasks() {
+        return new ArrayList<>(tasks.values());
+    }
+
+    private void onRequest(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+            requestCount++;
+            clientAddresses.add(exchange.getRemoteAddress());
+        }
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getRawPath().substring(1);
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        if ("GET".equals(method) && path.equals(HttpTasksDataSource.PATH_TASKS)) {
+            respond(exchange, 200, TaskJson.encodeTasks(
+                    filter(TasksFilterType.valueOf(query.get(HttpTasksDataSource.PARAM_FILTER)))));
+        } else if ("GET".equals(method) && path.equals(HttpTasksDataSource.PATH_TASK_PAGE)) {
+            respond(exchange, 200, TaskJson.encodePage(getPage(
+                    TasksFilterType.valueOf(query.get(HttpTasksDataSource.PARAM_FILTER)),
+                    Integer.parseInt(query.get(HttpTasksDataSource.PARAM_PAGE_SIZE)),
+                    query.get(HttpTasksDataSource.PARAM_PAGE_KEY))));
+        } else if ("GET".equals(method) && path.equals(HttpTasksDataSource.PATH_TASK_COUNTS)) {
+            List<Task> completed = filter(TasksFilterType.COMPLETED_TASKS);
+            respond(exchange, 200, TaskJson.encodeCounts(
+                    filter(TasksFilterType.ALL_TASKS).size() - completed.size(), completed.size()));
+        } else if ("POST".equals(method) && path.equals(HttpTasksDataSource.PATH_TASK_BATCH)) {
+            List<Task> found = new ArrayList<>();
+            synchronized (this) {
+                for (String taskId : TaskJson.decodeIds(readBody(exchange))) {
+                    if (tasks.containsKey(taskId)) {
+                        found.add(tasks.get(taskId));
+                    }
+                }
+            }
+            respond(exchange, 200, TaskJson.encodeTasks(found));
+        } else if ("POST".equals(method) && path.equals(HttpTasksDataSource.PATH_MUTATIONS)) {
+            respond(exchange, 200, TaskJson.encodeRejected(
+                    applyMutations(TaskJson.decodeMutations(readBody(exchange)))));
+        } else if ("GET".equals(method) && path.startsWith(HttpTasksDataSource.PATH_TASKS + "/")) {
+            String taskId = URLDecoder.decode(
+                    path.substring(HttpTasksDataSource.PATH_TASKS.length() + 1), "UTF-8");
+            Task task;
+            synchronized (this) {
+                task = tasks.get(taskId);
+            }
+            if (task == null) {
+                respond(exchange, 404, "{}");
+            } else {
+                respond(exchange, 200, TaskJson.encodeTask(task));
+            }
+        } else {
+            respond(exchange, 404, "{}");
+        }
+    }
+
+    private synchronized List<Task> filter(TasksFilterType filtering) {
+        List<Task> matching = new ArrayList<>();
+        for (Task task : tasks.values()) {
+            if (filtering == TasksFilterType.ALL_TASKS
+                    || (filtering == TasksFilterType.COMPLETED_TASKS) == task.isCompleted()) {
+                matching.add(task);
+            }
+        }
+        return matching;
+    }
+
+    private synchronized TaskPage getPage(TasksFilterType filtering, int pageSize, String pageKey) {
+        List<Task> matching = filter(filtering);
+        int from = 0;
+        if (pageKey != null) {
+            from = matching.size();
+            for (int i = 0; i < matching.size(); i++) {
+                if (matching.get(i).getId().equals(pageKey)) {
+                    from = i + 1;
+                    break;
+                }
+            }
+        }
+        int to = Math.min(from + pageSize, matching.size());
+        List<Task> page = new ArrayList<>(matching.subList(from, to));
+        return new TaskPage(page, to < matching.size() ? page.get(page.size() - 1).getId() : null);
+    }
+
+    private synchronized List<Integer> applyMutations(List<TaskMutation> mutations) {
+        List<Integer> rejected = new ArrayList<>();
+        for (int i = 0; i < mutations.size(); i++) {
+            TaskMutation mutation = mutations.get(i);
+            String taskId = mutation.getTaskId();
+            switch (mutation.getType()) {
+                case SAVE:
+                    if (mutation.getTask().isEmpty()) {
+                        rejected.add(i);
+                    } else {
+                        tasks.put(taskId, mutation.getTask());
+                    }
+                    break;
+                case DELETE:
+                    tasks.remove(taskId);
+                    break;
+                case COMPLETE:
+                case ACTIVATE:
+                    Task task = tasks.get(taskId);
+                    if (task != null) {
+                        tasks.put(taskId, new Task(task.getTitle(), task.getDescription(), taskId,
+                                mutation.getType() == TaskMutation.Type.COMPLETE));
+                    }
+                    break;
+                case CLEAR_COMPLETED:
+                    Iterator<Task> it = tasks.values().iterator();
+                    while (it.hasNext()) {
+                        if (it.next().isCompleted()) {
+                            it.remove();
+                        }
+                    }
+                    break;
+                case DELETE_ALL:
+                    tasks.clear();
+                    break;
+            }
+        }
+        return rejected;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        return HttpTasksDataSource.readFully(exchange.getRequestBody(), HttpTasksDataSource.GZIP
+                .equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding")));
+    }
+
+    /**
+     * Sends a fixed-length body, which keeps the connection open for the next request.
+     */
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(Charsets.UTF_8);
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (bytes.length >= HttpTasksDataSource.MIN_GZIP_BYTES && acceptEncoding != null
+                && acceptEncoding.contains(HttpTasksDataSource.GZIP)) {
+            bytes = HttpTasksDataSource.gzip(bytes);
+            exchange.getResponseHeaders().set("Content-Encoding", HttpTasksDataSource.GZIP);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                query.put(parameter.substring(0, separator),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+}
@@ -0,0 +1,139 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskMutation;
+import com.nichtemna.todomwp.data.source.TaskMutationTarget;
+import com.nichtemna.todomwp.data.source.TaskWriteListener;
+import com.nichtemna.todomwp.data.source.local.TaskOutbox;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for the replay of {@link OutboxRemoteDataSource}.
+ */
+public class OutboxRemoteDataSourceTest {
+
+    private static final Task TASK = new Task("Title", "Description", "1", false);
+
+    @Mock
+    private TaskDataSource remoteDataSource;
+
+    @Mock
+    private TaskMutationTarget mutationTarget;
+
+    @Mock
+    private TaskOutbox outbox;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Mock
+    private TaskDataSource.LoadTasksCallback loadTasksCallback;
+
+    @Captor
+    private ArgumentCaptor<TaskOutbox.LoadBatchCallback> loadBatchCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<TaskMutationTarget.ApplyMutationsCallback> applyCallbackCaptor;
+
+    @Captor
+    private ArgumentCaptor<List<TaskMutation>> mutationsCaptor;
+
+    private OutboxRemoteDataSource dataSource;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        dataSource = new OutboxRemoteDataSource(remoteDataSource, mutationTarget, outbox, scheduler);
+    }
+
+    @Test
+    public void saveTask_isStoredInTheOutbox() {
+        dataSource.saveTask(TASK);
+
+        verify(outbox).append(mutationsCaptor.capture());
+        assertEquals(TaskMutation.Type.SAVE, mutationsCaptor.getValue().get(0).getType());
+        verify(remoteDataSource, never()).saveTask(TASK);
+    }
+
+    @Test
+    public void getTasks_waitsUntilTheOutboxIsReplayed() {
+        dataSource.getTasks(loadTasksCallback);
+        verify(remoteDataSource, never()).getTasks(loadTasksCallback);
+
+        // The leftover batch is applied, then the outbox is found empty.
+        verify(outbox).loadBatch(eq(OutboxRemoteDataSource.BATCH_SIZE), loadBatchCallbackCaptor.capture());
+        loadBatchCallbackCaptor.getValue().onBatchLoaded(batch(7));
+        verify(mutationTarget).applyMutations(anyListOf(TaskMutation.class), applyCallbackCaptor.capture());
+        applyCallbackCaptor.getValue().onMutationsApplied(Collections.<TaskMutation>emptyList());
+        verify(outbox).removeUpTo(7);
+
+        verify(outbox, times(2)).loadBatch(eq(OutboxRemoteDataSource.BATCH_SIZE),
+                loadBatchCallbackCaptor.capture());
+        loadBatchCallbackCaptor.getValue().onBatchLoaded(emptyBatch());
+
+        verify(remoteDataSource).getTasks(loadTasksCallback);
+    }
+
+    @Test
+    public void getTasks_failsAndKeepsTheBatchWhenTheServerFails() {
+        dataSource.getTasks(loadTasksCallback);
+
+        verify(outbox).loadBatch(eq(OutboxRemoteDataSource.BATCH_SIZE), loadBatchCallbackCaptor.capture());
+        loadBatchCallbackCaptor.getValue().onBatchLoaded(batch(3));
+        verify(mutationTarget).applyMutations(anyListOf(TaskMutation.class), applyCallbackCaptor.capture());
+        applyCallbackCaptor.getValue().onMutationsFailed();
+
+        verify(loadTasksCallback).onDataNotAvailable();
+        verify(outbox, never()).removeUpTo(anyLong());
+        verify(scheduler).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    public void rejectedWrites_areReportedAndRemoved() {
+        TaskWriteListener writeListener = mock(TaskWriteListener.class);
+        dataSource.setWriteListener(writeListener);
+        TaskMutation rejected = TaskMutation.save(new Task("", "", "2", false));
+        TaskOutbox.Batch batch = new TaskOutbox.Batch(
+                Arrays.asList(TaskMutation.save(TASK), rejected), 9);
+
+        verify(outbox).loadBatch(eq(OutboxRemoteDataSource.BATCH_SIZE), loadBatchCallbackCaptor.capture());
+        loadBatchCallbackCaptor.getValue().onBatchLoaded(batch);
+        verify(mutationTarget).applyMutations(anyListOf(TaskMutation.class), applyCallbackCaptor.capture());
+        applyCallbackCaptor.getValue().onMutationsApplied(Collections.singletonList(rejected));
+
+        verify(outbox).removeUpTo(9);
+        verify(writeListener).onWritesConfirmed(Collections.singletonList(batch.getMutations().get(0)));
+        verify(writeListener).onWritesRejected(Collections.singletonList(rejected));
+    }
+
+    private static TaskOutbox.Batch batch(long lastEntryId) {
+        return new TaskOutbox.Batch(Collections.singletonList(TaskMutation.save(TASK)), lastEntryId);
+    }
+
+    private static TaskOutbox.Batch emptyBatch() {
+        return new TaskOutbox.Batch(Collections.<TaskMutation>emptyList(), 0);
+    }
+}
@@ -0,0 +1,208 @@
+package com.nichtemna.todomwp.data.source.remote;
+
+import com.nichtemna.todomwp.data.Task;
+import com.nichtemna.todomwp.data.source.TaskDataSource;
+import com.nichtemna.todomwp.data.source.TaskDelta;
+import com.nichtemna.todomwp.data.source.TaskSyncSource;
+import com.nichtemna.todomwp.tasks.TasksFilterType;
+import com.nichtemna.todomwp.util.SingleExecutors;
+import com.nichtemna.todomwp.util.VirtualTimeScheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests of the network simulation and the change log of {@link TasksRemoteDataSource}, in
+ * virtual time.
+ */
+public class TasksRemoteDataSourceTest {
+
+    private VirtualTimeScheduler scheduler;
+
+    @Mock
+    private TaskDataSource.LoadTasksCallback callback;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        scheduler = new VirtualTimeScheduler();
+    }
+
+    @Test
+    public void requestsBeyondTheConcurrencyLimit_waitForAConnection() {
+        TasksRemoteDataSource dataSource = createDataSource(new NetworkProfile(
+                LatencyDistribution.fixed(100), NetworkProfile.UNLIMITED_BANDWIDTH, 0, 0, 0, 1));
+
+        dataSource.getTasks(callback);
+        dataSource.getTasks(callback);
+
+        scheduler.advanceBy(199);
+        verify(callback).onTasksLoaded(anyListOf(Task.class));
+        scheduler.advanceBy(1);
+        verify(callback, times(2)).onTasksLoaded(anyListOf(Task.class));
+    }
+
+    @Test
+    public void responses_shareTheBandwidth() {
+        TasksRemoteDataSource dataSource = createDataSource(new NetworkProfile(
+                LatencyDistribution.fixed(100), 1000, 0, 0, 0,
+                NetworkProfile.UNLIMITED_CONCURRENCY));
+        final List<Long> arrivals = new ArrayList<>();
+        TaskDataSource.LoadTasksCallback recordArrival = new TaskDataSource.LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                arrivals.add(scheduler.elapsedMillis());
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+            }
+        };
+
+        dataSource.getTasks(recordArrival);
+        dataSource.getTasks(recordArrival);
+        scheduler.runUntilIdle();
+
+        // The second response only starts once the first crossed the link, at 1000 bytes per
+        // second at least its 300 bytes of overhead take 300 ms.
+        assertEquals(2, arrivals.size());
+        assertTrue(arrivals.get(1) - arrivals.get(0) >= 300);
+    }
+
+    @Test
+    public void streamedChunks_arriveAsTheirBytesCrossTheLink() {
+        TasksRemoteDataSource dataSource = createDataSource(new NetworkProfile(
+                LatencyDistribution.fixed(100), 1000, 0, 0, 0,
+                NetworkProfile.UNLIMITED_CONCURRENCY));
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 18; i++) {
+            tasks.add(new Task("Title " + i, "Description " + i, "id" + i, false));
+        }
+        dataSource.saveTasks(tasks);
+        scheduler.runUntilIdle();
+        final List<Long> arrivals = new ArrayList<>();
+        final List<Task> streamedTasks = new ArrayList<>();
+
+        dataSource.streamTasks(TasksFilterType.ALL_TASKS, 5, new TaskDataSource.StreamTasksCallback() {
+            @Override
+            public void onTasksChunkLoaded(List<Task> tasks) {
+                arrivals.add(scheduler.elapsedMillis());
+                streamedTasks.addAll(tasks);
+            }
+
+            @Override
+            public void onTasksStreamComplete() {
+                arrivals.add(scheduler.elapsedMillis());
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+            }
+        });
+        scheduler.runUntilIdle();
+
+        // The 2 seeded tasks and the 18 saved ones, in 4 chunks and the completion.
+        assertEquals(20, streamedTasks.size());
+        assertEquals(5, arrivals.size());
+        for (int i = 1; i < 4; i++) {
+            assertTrue(arrivals.get(i) > arrivals.get(i - 1));
+        }
+        assertEquals(arrivals.get(3), arrivals.get(4));
+    }
+
+    @Test
+    public void timedOutRequests_failAfterTheTimeout() {
+        TasksRemoteDataSource dataSource = createDataSource(new NetworkProfile(
+                LatencyDistribution.fixed(100), NetworkProfile.UNLIMITED_BANDWIDTH, 0, 1, 3000,
+                NetworkProfile.UNLIMITED_CONCURRENCY));
+
+        dataSource.getTasks(callback);
+
+        scheduler.advanceBy(2999);
+        verify(callback, never()).onDataNotAvailable();
+        scheduler.advanceBy(1);
+        verify(callback).onDataNotAvailable();
+    }
+
+    @Test
+    public void writesToTheSameTask_applyInTheOrderTheyWereIssued() {
+        TasksRemoteDataSource dataSource = createDataSource(new NetworkProfile(
+                LatencyDistribution.longTail(100, 2000), NetworkProfile.UNLIMITED_BANDWIDTH, 0, 0,
+                0, NetworkProfile.UNLIMITED_CONCURRENCY));
+        Task task = new Task("Title", "Description", "id", false);
+        dataSource.saveTask(task);
+
+        for (int i = 0; i < 20; i++) {
+            dataSource.completeTask(task);
+            dataSource.activateTask(task);
+        }
+        scheduler.runUntilIdle();
+
+        TaskDataSource.GetTaskCallback taskCallback = mock(TaskDataSource.GetTaskCallback.class);
+        dataSource.getTask("id", taskCallback);
+        scheduler.runUntilIdle();
+        verify(taskCallback).onTaskLoaded(task);
+    }
+
+    @Test
+    public void changesSince_containOnlyLaterChangesAndTombstones() {
+        TasksRemoteDataSource dataSource = createDataSource(NetworkProfile.DEFAULT);
+        TaskDelta full = getChangesSince(dataSource, null);
+        Task seeded = full.getChangedTasks().get(0);
+        Task added = new Task("Title", "Description", "added", false);
+
+        dataSource.saveTask(added);
+        dataSource.deleteTask(seeded.getId());
+        scheduler.runUntilIdle();
+        TaskDelta delta = getChangesSince(dataSource, full.getSyncToken());
+
+        assertTrue(full.isFullSync());
+        assertEquals(2, full.getChangedTasks().size());
+        assertFalse(delta.isFullSync());
+        assertEquals(Collections.singletonList(added), delta.getChangedTasks());
+        assertEquals(Collections.singletonList(seeded.getId()), delta.getDeletedTaskIds());
+        assertTrue(getChangesSince(dataSource, delta.getSyncToken()).isEmpty());
+    }
+
+    @Test
+    public void changesSince_unknownToken_isFullSync() {
+        TasksRemoteDataSource dataSource = createDataSource(NetworkProfile.DEFAULT);
+
+        TaskDelta delta = getChangesSince(dataSource, "another-server:3");
+
+        assertTrue(delta.isFullSync());
+        assertEquals(2, delta.getChangedTasks().size());
+    }
+
+    private TaskDelta getChangesSince(TasksRemoteDataSource dataSource, String syncToken) {
+        TaskSyncSource.GetChangesCallback changesCallback =
+                mock(TaskSyncSource.GetChangesCallback.class);
+        dataSource.getChangesSince(syncToken, changesCallback);
+        scheduler.runUntilIdle();
+        ArgumentCaptor<TaskDelta> deltaCaptor = ArgumentCaptor.forClass(TaskDelta.class);
+        verify(changesCallback).onChangesLoaded(deltaCaptor.capture());
+        return deltaCaptor.getValue();
+    }
+
+    private TasksRemoteDataSource createDataSource(NetworkProfile profile) {
+        return new TasksRemoteDataSource(new SingleExecutors(), profile, scheduler, scheduler,
+                new Random(0));
+    }
+}
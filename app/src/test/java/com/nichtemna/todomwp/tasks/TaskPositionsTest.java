@@ -0,0 +1,63 @@
+package com.nichtemna.todomwp.tasks;
+
+import com.nichtemna.todomwp.data.Task;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests of {@link TaskPositions}.
+ */
+public class TaskPositionsTest {
+
+    private List<Task> tasks;
+
+    private TaskPositions positions;
+
+    @Before
+    public void setUp() {
+        tasks = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            tasks.add(new Task("Title " + i, "", "id" + i, false));
+        }
+        positions = new TaskPositions();
+    }
+
+    @Test
+    public void indexOf_findsEveryRow() {
+        for (int i = 0; i < tasks.size(); i++) {
+            assertEquals(i, positions.indexOf(tasks, "id" + i));
+        }
+        assertEquals(-1, positions.indexOf(tasks, "unknown"));
+    }
+
+    @Test
+    public void removalAndInsert_shiftTheFollowingRows() {
+        positions.indexOf(tasks, "id0");
+
+        tasks.remove(1);
+        positions.onRemoved("id1", 1);
+        tasks.add(2, new Task("New", "", "new", false));
+        positions.onInserted(2);
+
+        assertEquals(0, positions.indexOf(tasks, "id0"));
+        assertEquals(-1, positions.indexOf(tasks, "id1"));
+        assertEquals(1, positions.indexOf(tasks, "id2"));
+        assertEquals(2, positions.indexOf(tasks, "new"));
+        assertEquals(4, positions.indexOf(tasks, "id4"));
+    }
+
+    @Test
+    public void appendedRows_areFoundWithoutReset() {
+        positions.indexOf(tasks, "id0");
+
+        tasks.add(new Task("Appended", "", "appended", false));
+
+        assertEquals(5, positions.indexOf(tasks, "appended"));
+    }
+}
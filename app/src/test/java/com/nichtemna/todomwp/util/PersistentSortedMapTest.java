@@ -0,0 +1,67 @@
+package com.nichtemna.todomwp.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for {@link PersistentSortedMap}, checked against {@link TreeMap}.
+ */
+public class PersistentSortedMapTest {
+
+    @Test
+    public void randomOperations_matchTreeMap() {
+        Random random = new Random(42);
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        PersistentSortedMap<Integer, String> map = PersistentSortedMap.empty();
+
+        for (int i = 0; i < 20000; i++) {
+            int key = random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.minus(key);
+            } else {
+                expected.put(key, "v" + i);
+                map = map.plus(key, "v" + i);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(new ArrayList<>(expected.values()), new ArrayList<>(map.values()));
+        int index = 0;
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+            assertEquals(entry.getValue(), map.valueAt(index++));
+        }
+    }
+
+    @Test
+    public void updates_leaveOlderVersionsUntouched() {
+        PersistentSortedMap<Integer, String> first = PersistentSortedMap.<Integer, String>empty()
+                .plus(1, "a")
+                .plus(2, "b");
+        List<String> firstValues = first.values();
+
+        PersistentSortedMap<Integer, String> second = first.plus(3, "c").minus(1);
+
+        assertEquals(2, firstValues.size());
+        assertEquals("a", first.get(1));
+        assertNull(second.get(1));
+        assertEquals(2, second.size());
+    }
+
+    @Test
+    public void removingMissingKey_returnsSameMap() {
+        PersistentSortedMap<Integer, String> map = PersistentSortedMap.<Integer, String>empty().plus(1, "a");
+
+        assertSame(map, map.minus(2));
+    }
+}
@@ -0,0 +1,19 @@
+package com.nichtemna.todomwp.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Allow instant execution of tasks.
+ */
+public class SingleExecutors extends AppExecutors {
+    private static Executor instant = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    public SingleExecutors() {
+        super(instant, instant, instant, instant);
+    }
+}
@@ -0,0 +1,77 @@
+package com.nichtemna.todomwp.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.PriorityQueue;
+
+/**
+ * Runs scheduled tasks on the calling thread in virtual time, which only moves forward in
+ * {@link #advanceBy(long)} and {@link #runUntilIdle()}.
+ */
+public class VirtualTimeScheduler extends Scheduler implements Clock {
+
+    private final PriorityQueue<ScheduledTask> tasks = new PriorityQueue<>();
+
+    private long now;
+
+    private long sequence;
+
+    @Override
+    public long elapsedMillis() {
+        return now;
+    }
+
+    @Override
+    public void schedule(@NonNull Runnable task, long delayMillis) {
+        tasks.add(new ScheduledTask(now + Math.max(0, delayMillis), sequence++, task));
+    }
+
+    /**
+     * Moves the time forward by {@code millis}, running every task due until then.
+     */
+    public void advanceBy(long millis) {
+        long until = now + millis;
+        while (!tasks.isEmpty() && tasks.peek().dueMillis <= until) {
+            runNext();
+        }
+        now = until;
+    }
+
+    /**
+     * Runs tasks, including those they schedule, until none is left.
+     */
+    public void runUntilIdle() {
+        while (!tasks.isEmpty()) {
+            runNext();
+        }
+    }
+
+    private void runNext() {
+        ScheduledTask task = tasks.poll();
+        now = Math.max(now, task.dueMillis);
+        task.runnable.run();
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+
+        final long dueMillis;
+
+        final long sequence;
+
+        final Runnable runnable;
+
+        ScheduledTask(long dueMillis, long sequence, Runnable runnable) {
+            this.dueMillis = dueMillis;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(@NonNull ScheduledTask other) {
+            if (dueMillis != other.dueMillis) {
+                return dueMillis < other.dueMillis ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+    }
+}